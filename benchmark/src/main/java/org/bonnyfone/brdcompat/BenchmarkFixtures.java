@@ -0,0 +1,84 @@
+package org.bonnyfone.brdcompat;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Synthetic images used by the benchmarks, generated in memory (deterministic content)
+ */
+final class BenchmarkFixtures {
+
+    static final String FORMAT_PNG = "png";
+    static final String FORMAT_JPEG = "jpeg";
+
+    private BenchmarkFixtures(){}
+
+    /**
+     * Returns the encoded image
+     * @param format FORMAT_PNG (RGBA) or FORMAT_JPEG (baseline, 4:2:0)
+     * @param width
+     * @param height
+     */
+    static ByteBuffer encode(String format, int width, int height) throws IOException {
+        boolean png = FORMAT_PNG.equals(format);
+        BufferedImage image = createImage(width, height, png);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if(png){
+            ImageIO.write(image, "png", out);
+        }
+        else{
+            ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(0.9f);
+            MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+            writer.setOutput(stream);
+            writer.write(null, new IIOImage(image, null, null), param);
+            stream.close();
+            writer.dispose();
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Gradients with noisy blocks, so that the image compresses like a photo rather than a flat color
+     */
+    private static BufferedImage createImage(int width, int height, boolean alpha){
+        BufferedImage image = new BufferedImage(width, height, alpha ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB);
+        Random random = new Random(width * 31L + height);
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                int noise = ((x / 16 + y / 16) % 3 == 0) ? random.nextInt(64) : 0;
+                int r = (x * 255 / width + noise) & 0xFF;
+                int g = (y * 255 / height + noise) & 0xFF;
+                int b = ((x + y) * 255 / (width + height)) & 0xFF;
+                int a = alpha ? 128 + (x * 127 / width) : 255;
+                row[x] = a << 24 | r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Sink which only checksums the pixels, so that the decode is not optimized away
+     */
+    static final class ChecksumSink implements RowSink {
+        int checksum;
+
+        @Override
+        public void onRow(int y, int[] pixels, int width) {
+            checksum += pixels[0] ^ pixels[width - 1] ^ y;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.bonnyfone.brdcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * decodeRegion() of the pure-Java fallback decoders (PNG and baseline JPEG), without the Bitmap copy:
+ * the same tile decoded over and over, random tiles, and the whole image.
+ * Run with the gc profiler (see build.gradle) to get the bytes allocated per call.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FallbackDecodeBenchmark {
+
+    private static final int TILE_SIZE = 256;
+    private static final int RANDOM_TILES = 1024;
+
+    @Param({"png", "jpeg"})
+    public String format;
+
+    @Param({"1024", "4096"})
+    public int imageSize;
+
+    @Param({"1", "4", "8"})
+    public int sampleSize;
+
+    private PngReader pngReader;
+    private JpegReader jpegReader;
+    private int[] randomTiles;
+    private int nextTile;
+    private final BenchmarkFixtures.ChecksumSink sink = new BenchmarkFixtures.ChecksumSink();
+
+    @Setup
+    public void setUp() throws IOException {
+        ByteBuffer data = BenchmarkFixtures.encode(format, imageSize, imageSize);
+        if(BenchmarkFixtures.FORMAT_PNG.equals(format))
+            pngReader = new PngReader(data);
+        else
+            jpegReader = new JpegReader(data);
+
+        //tiles of sampleSize * TILE_SIZE image pixels, so that the output is always TILE_SIZE wide
+        int tiles = Math.max(1, imageSize / (TILE_SIZE * sampleSize));
+        Random random = new Random(42);
+        randomTiles = new int[RANDOM_TILES];
+        for(int i = 0; i < RANDOM_TILES; i++){
+            randomTiles[i] = random.nextInt(tiles * tiles);
+        }
+    }
+
+    private int decodeTile(int tile) throws IOException {
+        int extent = TILE_SIZE * sampleSize;
+        int tiles = Math.max(1, imageSize / extent);
+        int left = (tile % tiles) * extent;
+        int top = (tile / tiles) * extent;
+        return decode(left, top, Math.min(imageSize, left + extent), Math.min(imageSize, top + extent));
+    }
+
+    private int decode(int left, int top, int right, int bottom) throws IOException {
+        if(pngReader != null)
+            pngReader.decodeRegion(left, top, right, bottom, sampleSize, sink);
+        else
+            jpegReader.decodeRegion(left, top, right, bottom, sampleSize, sink);
+        return sink.checksum;
+    }
+
+    @Benchmark
+    public int repeatedTile() throws IOException {
+        //a tile in the middle of the image, as when zooming in and out of the same area
+        int tiles = Math.max(1, imageSize / (TILE_SIZE * sampleSize));
+        return decodeTile((tiles / 2) * tiles + tiles / 2);
+    }
+
+    @Benchmark
+    public int randomTile() throws IOException {
+        int tile = randomTiles[nextTile];
+        nextTile = (nextTile + 1) % RANDOM_TILES;
+        return decodeTile(tile);
+    }
+
+    @Benchmark
+    public int wholeImage() throws IOException {
+        return decode(0, 0, imageSize, imageSize);
+    }
+}
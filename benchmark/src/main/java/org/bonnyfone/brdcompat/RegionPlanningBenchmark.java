@@ -0,0 +1,44 @@
+package org.bonnyfone.brdcompat;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sample size and region planning of decodeBestRegion(), for a set of typical output sizes
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RegionPlanningBenchmark {
+
+    private static final int[][] TARGETS = {{96, 96}, {320, 200}, {1080, 400}, {1920, 1080}, {4000, 3000}};
+
+    @Param({"1024", "8192", "65536"})
+    public int imageSize;
+
+    private final int[] area = new int[4];
+
+    @Benchmark
+    public int planBestRegion(){
+        int result = 0;
+        for(int[] target : TARGETS){
+            result += RegionMath.planBestRegion(imageSize, imageSize * 3 / 4, target[0], target[1],
+                    RegionMath.ALIGN_CENTER, RegionMath.ALIGN_CENTER, area);
+            result += area[0] + area[3];
+        }
+        return result;
+    }
+}
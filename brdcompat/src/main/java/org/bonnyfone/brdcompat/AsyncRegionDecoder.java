@@ -0,0 +1,226 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decodes batches of regions in background, in priority order.<br>
+ * Pending requests are kept in a priority queue (visible regions first, then near-visible, then prefetch; FIFO within
+ * the same priority) and are pulled by the executor threads only when a thread is free, so requests can be cancelled
+ * until their decode actually starts: cancel the returned Future, or use {@link #cancelAll()},
+ * {@link #cancelNotIntersecting(Rect)} or {@link #cancelPriority(int)} when the viewport moves.
+ */
+public class AsyncRegionDecoder {
+
+    private static Executor defaultExecutor;
+
+    private final BitmapRegionDecoderCompat decoder;
+    private final Executor executor;
+    private final PriorityBlockingQueue<RegionTask> pending = new PriorityBlockingQueue<RegionTask>();
+    private final AtomicLong sequence = new AtomicLong();
+
+    /**
+     * Creates an asynchronous decoder running on a shared pool with one thread per core
+     * @param decoder
+     */
+    public AsyncRegionDecoder(BitmapRegionDecoderCompat decoder){
+        this(decoder, getDefaultExecutor());
+    }
+
+    /**
+     * @param decoder
+     * @param executor the executor running the decodes
+     */
+    public AsyncRegionDecoder(BitmapRegionDecoderCompat decoder, Executor executor){
+        this.decoder = decoder;
+        this.executor = executor;
+    }
+
+    private static synchronized Executor getDefaultExecutor(){
+        if(defaultExecutor == null){
+            final AtomicInteger count = new AtomicInteger();
+            defaultExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "brdcompat-decoder-" + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+        return defaultExecutor;
+    }
+
+    /**
+     * Returns the decoder used by this instance
+     */
+    public BitmapRegionDecoderCompat getDecoder() {
+        return decoder;
+    }
+
+    /**
+     * Enqueues a region request
+     * @param request
+     * @return the future result; cancelling it before the decode starts drops the request
+     */
+    public Future<Bitmap> decodeRegion(RegionRequest request){
+        RegionTask task = new RegionTask(request, sequence.getAndIncrement());
+        pending.add(task);
+        executor.execute(drainer);
+        return task;
+    }
+
+    /**
+     * Enqueues a batch of region requests
+     * @param requests
+     * @return the future results, in the same order as the requests
+     */
+    public List<Future<Bitmap>> decodeRegions(List<RegionRequest> requests){
+        List<Future<Bitmap>> futures = new ArrayList<Future<Bitmap>>(requests.size());
+        for(RegionRequest request : requests){
+            futures.add(decodeRegion(request));
+        }
+        return futures;
+    }
+
+    /**
+     * Decodes a region progressively: the region is first delivered at 8 times the requested inSampleSize
+     * (about 1/64 of the pixels), then refined down to the requested inSampleSize, through the callback.
+     * If the region cache of the decoder already holds a region covering the rect, the first pass is cropped from it.
+     * @param rect the region to decode
+     * @param options null-ok; inSampleSize and inPreferredConfig of the final pass
+     * @param callback notified of every pass
+     * @return the handle to cancel the remaining passes
+     */
+    public ProgressiveDecode decodeRegionProgressive(Rect rect, BitmapFactory.Options options, ProgressiveCallback callback){
+        ProgressiveDecode decode = new ProgressiveDecode(this, rect, options, callback);
+        decode.start();
+        return decode;
+    }
+
+    /**
+     * Cancels all the pending requests
+     * @return the number of cancelled requests
+     */
+    public int cancelAll(){
+        int cancelled = 0;
+        for(RegionTask task : pending.toArray(new RegionTask[0])){
+            if(task.cancel(false))
+                cancelled++;
+        }
+        return cancelled;
+    }
+
+    /**
+     * Cancels the pending requests whose region does not intersect the given area (e.g. the regions scrolled past)
+     * @param area
+     * @return the number of cancelled requests
+     */
+    public int cancelNotIntersecting(Rect area){
+        int cancelled = 0;
+        for(RegionTask task : pending.toArray(new RegionTask[0])){
+            if(!Rect.intersects(task.request.getRect(), area) && task.cancel(false))
+                cancelled++;
+        }
+        return cancelled;
+    }
+
+    /**
+     * Cancels the pending requests with the given priority
+     * @param priority
+     * @return the number of cancelled requests
+     */
+    public int cancelPriority(int priority){
+        int cancelled = 0;
+        for(RegionTask task : pending.toArray(new RegionTask[0])){
+            if(task.request.getPriority() == priority && task.cancel(false))
+                cancelled++;
+        }
+        return cancelled;
+    }
+
+    /**
+     * Returns the number of requests waiting to be decoded
+     */
+    public int getPendingCount(){
+        return pending.size();
+    }
+
+    /**
+     * Runs the most urgent pending request; one drainer is submitted for each request
+     */
+    private final Runnable drainer = new Runnable() {
+        @Override
+        public void run() {
+            RegionTask task;
+            while((task = pending.poll()) != null){
+                if(!task.isCancelled()){
+                    task.run();
+                    return;
+                }
+            }
+        }
+    };
+
+    private final class RegionTask extends FutureTask<Bitmap> implements Comparable<RegionTask> {
+        final RegionRequest request;
+        final long order;
+
+        RegionTask(final RegionRequest request, long order){
+            super(new Callable<Bitmap>() {
+                @Override
+                public Bitmap call() {
+                    return decoder.decodeRegion(request.getRect(), request.getOptions());
+                }
+            });
+            this.request = request;
+            this.order = order;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if(cancelled){
+                pending.remove(this);
+            }
+            return cancelled;
+        }
+
+        @Override
+        protected void done() {
+            RegionCallback callback = request.getCallback();
+            if(callback == null || isCancelled())
+                return;
+
+            try {
+                callback.onRegionDecoded(request, get());
+            } catch (ExecutionException e) {
+                callback.onRegionFailed(request, e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public int compareTo(RegionTask other) {
+            if(request.getPriority() != other.request.getPriority())
+                return request.getPriority() < other.request.getPriority() ? -1 : 1;
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+}
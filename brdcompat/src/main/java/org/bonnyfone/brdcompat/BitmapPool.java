@@ -0,0 +1,183 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Pool of reusable mutable bitmaps, keyed by size and config and bounded by the total number of bytes.<br>
+ * Decoders with a pool (see {@link BitmapRegionDecoderCompat#setBitmapPool(BitmapPool)}) take their output bitmaps
+ * from it (through BitmapFactory.Options.inBitmap on API 16+, by reusing the crop targets on the fallback path);
+ * give the bitmaps back with {@link BitmapRegionDecoderCompat#release(Bitmap)} once they are no longer displayed.
+ * When the pool is full the least recently released bitmaps are recycled.
+ */
+public class BitmapPool {
+
+    private final long maxBytes;
+    private final Map<Key, LinkedList<Bitmap>> bitmaps = new HashMap<Key, LinkedList<Bitmap>>();
+    private final LinkedHashSet<Bitmap> releaseOrder = new LinkedHashSet<Bitmap>();
+    private final Key lookupKey = new Key();
+    private long size;
+
+    private int hitCount;
+    private int missCount;
+    private int evictionCount;
+
+    /**
+     * @param maxBytes the maximum total size, in bytes, of the pooled bitmaps
+     */
+    public BitmapPool(long maxBytes){
+        if(maxBytes <= 0){
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a pooled bitmap with the exact size and config, or null if none is available.
+     * The content of the returned bitmap is undefined.
+     * @param width
+     * @param height
+     * @param config
+     * @return
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config){
+        lookupKey.set(width, height, config);
+        LinkedList<Bitmap> list = bitmaps.get(lookupKey);
+        while(list != null && !list.isEmpty()){
+            Bitmap bitmap = list.removeLast();
+            releaseOrder.remove(bitmap);
+            size -= BitmapUtils.getBitmapBytes(bitmap);
+            if(!bitmap.isRecycled()){
+                hitCount++;
+                return bitmap;
+            }
+        }
+        missCount++;
+        return null;
+    }
+
+    /**
+     * Adds a bitmap to the pool. Immutable, recycled and too big bitmaps are recycled or ignored.
+     * @param bitmap a bitmap which is no longer used by the caller
+     */
+    public void put(Bitmap bitmap){
+        if(bitmap == null || bitmap.isRecycled())
+            return;
+
+        int bytes = BitmapUtils.getBitmapBytes(bitmap);
+        if(!bitmap.isMutable() || bytes > maxBytes){
+            bitmap.recycle();
+            return;
+        }
+
+        synchronized (this){
+            if(!releaseOrder.add(bitmap))
+                return; //already pooled
+
+            Key key = new Key();
+            key.set(bitmap.getWidth(), bitmap.getHeight(), bitmap.getConfig());
+            LinkedList<Bitmap> list = bitmaps.get(key);
+            if(list == null){
+                list = new LinkedList<Bitmap>();
+                bitmaps.put(key, list);
+            }
+            list.addLast(bitmap);
+            size += bytes;
+            trimToSize(maxBytes);
+        }
+    }
+
+    private void trimToSize(long maxSize){
+        Iterator<Bitmap> it = releaseOrder.iterator();
+        while(size > maxSize && it.hasNext()){
+            Bitmap eldest = it.next();
+            it.remove();
+            lookupKey.set(eldest.getWidth(), eldest.getHeight(), eldest.getConfig());
+            LinkedList<Bitmap> list = bitmaps.get(lookupKey);
+            if(list != null){
+                list.remove(eldest);
+            }
+            size -= BitmapUtils.getBitmapBytes(eldest);
+            eldest.recycle();
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Recycles all the pooled bitmaps
+     */
+    public synchronized void clear(){
+        trimToSize(-1);
+        bitmaps.clear();
+    }
+
+    /**
+     * Returns the total size, in bytes, of the pooled bitmaps
+     */
+    public synchronized long size(){
+        return size;
+    }
+
+    /**
+     * Returns the maximum total size, in bytes, of the pooled bitmaps
+     */
+    public long maxSize(){
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of requests served with a pooled bitmap
+     */
+    public synchronized int hitCount(){
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of requests which required a new bitmap
+     */
+    public synchronized int missCount(){
+        return missCount;
+    }
+
+    /**
+     * Returns the number of bitmaps recycled to respect the size limit
+     */
+    public synchronized int evictionCount(){
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "BitmapPool[size=" + size + ",maxSize=" + maxBytes + ",hits=" + hitCount + ",misses=" + missCount + ",evictions=" + evictionCount + "]";
+    }
+
+    private static final class Key {
+        int width;
+        int height;
+        Bitmap.Config config;
+
+        void set(int width, int height, Bitmap.Config config){
+            this.width = width;
+            this.height = height;
+            this.config = config;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return width == other.width && height == other.height && config == other.config;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * width + height) + (config != null ? config.hashCode() : 0);
+        }
+    }
+}
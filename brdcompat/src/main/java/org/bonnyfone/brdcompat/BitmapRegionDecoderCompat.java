@@ -6,9 +6,14 @@ import android.graphics.Rect;
 import android.os.Build;
 import android.view.Gravity;
 
+import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * BitmapRegionDecoder can be used to decode a rectangle region from an image.
@@ -19,6 +24,10 @@ import java.io.InputStream;
 public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
 
     private static boolean FORCE_FALLBACK_IMPLEMENTATION = false;
+    private static long FALLBACK_IMAGE_CACHE_BYTES = 0;
+    private static long POOLED_DECODER_IDLE_TIMEOUT_MS = 10000;
+    private static volatile DecodeListener DECODE_LISTENER;
+    private static volatile MemoryBudget MEMORY_BUDGET;
 
     /**
      * Private empty constructor
@@ -28,16 +37,82 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
     /**
      * Constructor which wraps internal implementation
      * @param impl
+     * @param source the encoded image, null if it can not be read again (streams on the native path)
      */
-    private BitmapRegionDecoderCompat(IBitmapRegionDecoder impl){
+    private BitmapRegionDecoderCompat(IBitmapRegionDecoder impl, ImageSource source){
+        this(impl, source, source != null ? source.getType() : ImageSource.TYPE_STREAM);
+    }
+
+    /**
+     * Constructor which wraps internal implementation
+     * @param impl
+     * @param source the encoded image, may be null
+     * @param sourceType the type of the source, reported to the {@link DecodeListener}
+     */
+    private BitmapRegionDecoderCompat(IBitmapRegionDecoder impl, ImageSource source, String sourceType){
+        this.decoder = impl;
         this.impl = impl;
+        this.source = source;
+        this.sourceKey = source != null ? source.getIdentity() : this;
+        this.sourceType = sourceType;
     }
 
     /**
-     * Internal implementation object
+     * Internal implementation object, possibly wrapped by caching layers
      */
     private IBitmapRegionDecoder impl;
 
+    /**
+     * Internal implementation object, as created by newInstance(...)
+     */
+    private IBitmapRegionDecoder decoder;
+
+    /**
+     * Encoded image, may be null
+     */
+    private ImageSource source;
+
+    /**
+     * Identity of the decoded image
+     */
+    private Object sourceKey;
+
+    /**
+     * Decoder shared through a {@link DecoderRegistry} handle, null otherwise
+     */
+    private BitmapRegionDecoderCompat sharedDecoder;
+
+    /**
+     * Type of the source, reported to the listener
+     */
+    private String sourceType;
+
+    private RegionCache regionCache;
+
+    private BitmapPool bitmapPool;
+
+    private RegionDiskCache regionDiskCache;
+
+    /**
+     * Whether the image has no alpha channel, read from the header when first needed
+     */
+    private Boolean opaque;
+
+    /**
+     * Options and rect reused by decodeBestRegion() on each thread
+     */
+    private static final ThreadLocal<BitmapFactory.Options> BEST_REGION_OPTIONS = new ThreadLocal<BitmapFactory.Options>(){
+        @Override
+        protected BitmapFactory.Options initialValue() {
+            return new BitmapFactory.Options();
+        }
+    };
+    private static final ThreadLocal<Rect> BEST_REGION_RECT = new ThreadLocal<Rect>(){
+        @Override
+        protected Rect initialValue() {
+            return new Rect();
+        }
+    };
 
     /**
      * Check if we are running on Gingerbread or later
@@ -56,6 +131,202 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
         FORCE_FALLBACK_IMPLEMENTATION = forceFallback;
     }
 
+    /**
+     * Enables the decoded image cache of the fallback implementation (API < 10), for instances created afterwards.<br>
+     * Without cache every decodeRegion() call decodes the whole image and crops it; with the cache one decoded
+     * full image per inSampleSize is kept (up to maxBytes) and the regions are cropped from it.
+     * If an inSampleSize level does not fit, regions are served from a coarser level and upscaled.
+     * The cached images are released by recycle().
+     * @param maxBytes the maximum size of the decoded images kept by each decoder, 0 (default) to disable
+     */
+    public static void setFallbackImageCacheSize(long maxBytes){
+        FALLBACK_IMAGE_CACHE_BYTES = Math.max(0, maxBytes);
+    }
+
+
+    /**
+     * Creates the fallback implementation best suited for the source: the streaming PNG decoder for PNG images,
+     * the indexed JPEG decoder for baseline JPEG images, the generic (full decode and crop) one for everything else
+     * @param source
+     * @param isShareable
+     * @return
+     * @throws IOException
+     */
+    private static IBitmapRegionDecoder newFallbackInstance(ImageSource source, boolean isShareable) throws IOException {
+        try {
+            ByteBuffer buffer = source.getBuffer();
+            if(PngReader.isPng(buffer)){
+                return PngRegionDecoder.newInstance(source);
+            }
+            else if(JpegReader.isJpeg(buffer)){
+                return JpegRegionDecoder.newInstance(source);
+            }
+        } catch (IOException e) {
+            //not supported by the pure-Java decoders: use the generic fallback
+        }
+        BitmapRegionDecoderGinger decoder = BitmapRegionDecoderGinger.newInstance(source, isShareable);
+        decoder.setDecodedImageCacheSize(FALLBACK_IMAGE_CACHE_BYTES);
+        return decoder;
+    }
+
+    /**
+     * Creates the implementation for the source on the current platform
+     */
+    private static IBitmapRegionDecoder newDecoder(ImageSource source, boolean isShareable) throws IOException {
+        return isAPI10() ? source.newNativeDecoder(isShareable) : newFallbackInstance(source, isShareable);
+    }
+
+    /**
+     * Sets how long an extra decoder of a pooled instance can stay idle before being recycled
+     * (see {@link #newPooledInstance(String, boolean, int)}). Default is 10 seconds.
+     * @param millis
+     */
+    public static void setPooledDecoderIdleTimeout(long millis){
+        POOLED_DECODER_IDLE_TIMEOUT_MS = Math.max(0, millis);
+    }
+
+    /**
+     * Sets a listener notified of the creation, decodes and recycling of all the instances, e.g. a {@link DecodeMetrics}.
+     * Without listener (default) no timing is taken.
+     * @param listener the listener, or null to disable the notifications
+     */
+    public static void setDecodeListener(DecodeListener listener){
+        DECODE_LISTENER = listener;
+    }
+
+    /**
+     * Returns the listener set by {@link #setDecodeListener(DecodeListener)}, or null
+     * @return
+     */
+    public static DecodeListener getDecodeListener(){
+        return DECODE_LISTENER;
+    }
+
+    /**
+     * Sets a memory budget shared by all the instances: decodes are degraded (RGB_565 for opaque images,
+     * then coarser inSampleSize) to fit the bytes left by the live decoded bitmaps, instead of running out of memory.
+     * Give the bitmaps back with {@link #release(Bitmap)} (or recycle them) to free their share of the budget.
+     * @param budget the budget, or null (default) to decode as requested
+     */
+    public static void setMemoryBudget(MemoryBudget budget){
+        MEMORY_BUDGET = budget;
+    }
+
+    /**
+     * Returns the budget set by {@link #setMemoryBudget(MemoryBudget)}, or null
+     * @return
+     */
+    public static MemoryBudget getMemoryBudget(){
+        return MEMORY_BUDGET;
+    }
+
+    /**
+     * Returns the start time of an operation, only if a listener is set
+     */
+    private static long startTiming(){
+        return DECODE_LISTENER != null ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Notifies the listener of the creation of an instance
+     */
+    private static BitmapRegionDecoderCompat onCreated(BitmapRegionDecoderCompat compat, long start){
+        DecodeListener listener = DECODE_LISTENER;
+        if(listener != null && start != 0){
+            listener.onDecoderCreated(compat.getImplementationName(), compat.sourceType, System.nanoTime() - start);
+        }
+        return compat;
+    }
+
+    /**
+     * Notifies the listener of a decode
+     */
+    private void onDecoded(DecodeListener listener, int operation, Rect rect, int sampleSize, long start, long outputBytes){
+        listener.onRegionDecoded(getImplementationName(), sourceType, operation, (long) rect.width() * rect.height(),
+                sampleSize, System.nanoTime() - start, outputBytes);
+    }
+
+    /**
+     * Returns the name of the implementation in use (e.g. BitmapRegionDecoderNative, JpegRegionDecoder)
+     * @return
+     */
+    public String getImplementationName(){
+        if(sharedDecoder != null)
+            return sharedDecoder.getImplementationName();
+        if(decoder instanceof LazyRegionDecoder)
+            return ((LazyRegionDecoder) decoder).getImplementationName();
+        return decoder.getClass().getSimpleName();
+    }
+
+    private static BitmapRegionDecoderCompat newPooledInstance(final ImageSource source, final boolean isShareable, int maxDecoders) throws IOException {
+        long start = startTiming();
+        PooledRegionDecoder.Factory factory = new PooledRegionDecoder.Factory() {
+            @Override
+            public IBitmapRegionDecoder create() throws IOException {
+                return newDecoder(source, isShareable);
+            }
+        };
+        return onCreated(new BitmapRegionDecoderCompat(new PooledRegionDecoder(factory, maxDecoders, POOLED_DECODER_IDLE_TIMEOUT_MS), source), start);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from a file path, which can decode up to maxDecoders regions in parallel.<br>
+     * The platform decoder serializes decodeRegion() calls: this instance lazily opens up to maxDecoders decoders
+     * for the same file and lends one to each concurrent decodeRegion() call. Decoders left idle are recycled after
+     * a timeout (see {@link #setPooledDecoderIdleTimeout(long)}); statistics are available through {@link #getPoolStats()}.
+     *
+     * @param pathName complete path name for the file to be decoded.
+     * @param isShareable see {@link #newInstance(String, boolean)}
+     * @param maxDecoders maximum number of decoders, usually the number of decoding threads
+     * @return BitmapRegionDecoder, or null if the image data could not be decoded.
+     * @throws java.io.IOException if the image format is not supported or can not be decoded.
+     */
+    public static BitmapRegionDecoderCompat newPooledInstance(String pathName, boolean isShareable, int maxDecoders) throws IOException {
+        return newPooledInstance(ImageSource.fromPath(pathName), isShareable, maxDecoders);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from the file descriptor, which can decode up to maxDecoders regions in parallel.
+     * See {@link #newPooledInstance(String, boolean, int)}.
+     *
+     * @param fd The file descriptor containing the data to decode
+     * @param isShareable see {@link #newInstance(FileDescriptor, boolean)}
+     * @param maxDecoders maximum number of decoders, usually the number of decoding threads
+     * @return BitmapRegionDecoder, or null if the image data could not be decoded.
+     * @throws java.io.IOException if the image format is not supported or can not be decoded.
+     */
+    public static BitmapRegionDecoderCompat newPooledInstance(FileDescriptor fd, boolean isShareable, int maxDecoders) throws IOException {
+        return newPooledInstance(ImageSource.fromFileDescriptor(fd), isShareable, maxDecoders);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from the specified byte array, which can decode up to maxDecoders regions in parallel.
+     * The array is shared by all the decoders. See {@link #newPooledInstance(String, boolean, int)}.
+     *
+     * @param data byte array of compressed image data.
+     * @param offset offset into data for where the decoder should begin parsing.
+     * @param length the number of bytes, beginning at offset, to parse
+     * @param maxDecoders maximum number of decoders, usually the number of decoding threads
+     * @return BitmapRegionDecoder, or null if the image data could not be decoded.
+     * @throws java.io.IOException if the image format is not supported or can not be decoded.
+     */
+    public static BitmapRegionDecoderCompat newPooledInstance(byte[] data, int offset, int length, int maxDecoders) throws IOException {
+        return newPooledInstance(ImageSource.fromByteArray(data, offset, length), true, maxDecoders);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from an input stream, which can decode up to maxDecoders regions in parallel.
+     * The stream is read once and spooled, the spooled data is shared by all the decoders.
+     * See {@link #newPooledInstance(String, boolean, int)}.
+     *
+     * @param is The input stream that holds the raw data to be decoded.
+     * @param maxDecoders maximum number of decoders, usually the number of decoding threads
+     * @return BitmapRegionDecoder, or null if the image data could not be decoded.
+     * @throws java.io.IOException if the image format is not supported or can not be decoded.
+     */
+    public static BitmapRegionDecoderCompat newPooledInstance(InputStream is, int maxDecoders) throws IOException {
+        return newPooledInstance(ImageSource.fromStream(is), true, maxDecoders);
+    }
 
     /**
      * Create a BitmapRegionDecoder from a file path.
@@ -71,7 +342,9 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
      * @throws java.io.IOException if the image format is not supported or can not be decoded.
      */
     public static BitmapRegionDecoderCompat newInstance(String pathName, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderCompat(isAPI10() ? BitmapRegionDecoderNative.newInstance(pathName, isShareable) : BitmapRegionDecoderGinger.newInstance(pathName, isShareable));
+        long start = startTiming();
+        ImageSource source = ImageSource.fromPath(pathName);
+        return onCreated(new BitmapRegionDecoderCompat(isAPI10() ? BitmapRegionDecoderNative.newInstance(pathName, isShareable) : newFallbackInstance(source, isShareable), source), start);
     }
 
 
@@ -94,7 +367,12 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
      * @throws java.io.IOException if the image format is not supported or can not be decoded.
      */
     public static BitmapRegionDecoderCompat newInstance(InputStream is, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderCompat(isAPI10() ? BitmapRegionDecoderNative.newInstance(is, isShareable) : BitmapRegionDecoderGinger.newInstance(is, isShareable));
+        long start = startTiming();
+        if(isAPI10()){
+            return onCreated(new BitmapRegionDecoderCompat(BitmapRegionDecoderNative.newInstance(is, isShareable), null), start);
+        }
+        ImageSource source = ImageSource.fromStream(is);
+        return onCreated(new BitmapRegionDecoderCompat(newFallbackInstance(source, isShareable), source), start);
     }
 
     /**
@@ -115,7 +393,9 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
      *
      */
     public static BitmapRegionDecoderCompat newInstance(FileDescriptor fd, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderCompat(isAPI10() ? BitmapRegionDecoderNative.newInstance(fd, isShareable) : BitmapRegionDecoderGinger.newInstance(fd, isShareable));
+        long start = startTiming();
+        ImageSource source = ImageSource.fromFileDescriptor(fd);
+        return onCreated(new BitmapRegionDecoderCompat(isAPI10() ? BitmapRegionDecoderNative.newInstance(fd, isShareable) : newFallbackInstance(source, isShareable), source), start);
     }
 
 
@@ -138,7 +418,338 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
      *
      */
     public static BitmapRegionDecoderCompat newInstance(byte[] data, int offset, int length, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderCompat(isAPI10() ? BitmapRegionDecoderNative.newInstance(data, offset, length, isShareable) : BitmapRegionDecoderGinger.newInstance(data, offset, length, isShareable));
+        long start = startTiming();
+        ImageSource source = ImageSource.fromByteArray(data, offset, length);
+        return onCreated(new BitmapRegionDecoderCompat(isAPI10() ? BitmapRegionDecoderNative.newInstance(data, offset, length, isShareable) : newFallbackInstance(source, isShareable), source), start);
+    }
+
+    private static BitmapRegionDecoderCompat newLazyInstance(final ImageSource source, final boolean isShareable, Executor executor) throws IOException {
+        long start = startTiming();
+        PooledRegionDecoder.Factory factory = new PooledRegionDecoder.Factory() {
+            @Override
+            public IBitmapRegionDecoder create() throws IOException {
+                return newDecoder(source, isShareable);
+            }
+        };
+        return onCreated(new BitmapRegionDecoderCompat(new LazyRegionDecoder(source, factory, executor), source), start);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from a file path, without opening the decoder.<br>
+     * Only the image header is read, to know the size; the decoder is opened by the first decodeRegion() call
+     * and can be closed again with {@link #trimMemory()}. Use it for lists and grids of images that may never be decoded.
+     *
+     * @param pathName complete path name for the file to be decoded.
+     * @param isShareable see {@link #newInstance(String, boolean)}
+     * @param executor null-ok; reads the header in background instead of on the calling thread:
+     *                 getWidth() and getHeight() wait for it (0 if the image can not be read).
+     * @return BitmapRegionDecoder.
+     * @throws java.io.IOException if the header is read synchronously and the image can not be read.
+     */
+    public static BitmapRegionDecoderCompat newLazyInstance(String pathName, boolean isShareable, Executor executor) throws IOException {
+        return newLazyInstance(ImageSource.fromPath(pathName), isShareable, executor);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from the file descriptor, without opening the decoder.
+     * The descriptor must stay open, at the same position, until the instance is recycled.
+     * See {@link #newLazyInstance(String, boolean, Executor)}.
+     *
+     * @param fd The file descriptor containing the data to decode
+     * @param isShareable see {@link #newInstance(FileDescriptor, boolean)}
+     * @param executor null-ok; reads the header in background instead of on the calling thread.
+     * @return BitmapRegionDecoder.
+     * @throws java.io.IOException if the header is read synchronously and the image can not be read.
+     */
+    public static BitmapRegionDecoderCompat newLazyInstance(FileDescriptor fd, boolean isShareable, Executor executor) throws IOException {
+        return newLazyInstance(ImageSource.fromFileDescriptor(fd), isShareable, executor);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from the specified byte array, without opening the decoder.
+     * The array must not be modified. See {@link #newLazyInstance(String, boolean, Executor)}.
+     *
+     * @param data byte array of compressed image data.
+     * @param offset offset into data for where the decoder should begin parsing.
+     * @param length the number of bytes, beginning at offset, to parse
+     * @param executor null-ok; reads the header in background instead of on the calling thread.
+     * @return BitmapRegionDecoder.
+     * @throws java.io.IOException if the header is read synchronously and the image can not be read.
+     */
+    public static BitmapRegionDecoderCompat newLazyInstance(byte[] data, int offset, int length, Executor executor) throws IOException {
+        return newLazyInstance(ImageSource.fromByteArray(data, offset, length), true, executor);
+    }
+
+    /**
+     * Create a BitmapRegionDecoder from an input stream, without opening the decoder.
+     * The stream is read once and spooled on the calling thread. See {@link #newLazyInstance(String, boolean, Executor)}.
+     *
+     * @param is The input stream that holds the raw data to be decoded.
+     * @param executor null-ok; reads the header in background instead of on the calling thread.
+     * @return BitmapRegionDecoder.
+     * @throws java.io.IOException if the stream can not be read.
+     */
+    public static BitmapRegionDecoderCompat newLazyInstance(InputStream is, Executor executor) throws IOException {
+        return newLazyInstance(ImageSource.fromStream(is), true, executor);
+    }
+
+    /**
+     * Closes the idle decoders of all the lazy instances (see {@link #newLazyInstance(String, boolean, Executor)}),
+     * e.g. from onTrimMemory(). They are opened again by the next decodeRegion() call.
+     */
+    public static void trimLazyInstances(){
+        LazyRegionDecoder.trimAll();
+    }
+
+    /**
+     * Opens a tile pyramid file written by {@link #writeTilePyramid(File, int, Bitmap.CompressFormat, int)}.<br>
+     * decodeRegion() reads and decodes only the tiles covering the region, at the pyramid level closest to inSampleSize:
+     * no full-resolution decode is needed at any zoom level.
+     *
+     * @param pyramidFile the tile pyramid file.
+     * @return BitmapRegionDecoder serving regions from the pyramid.
+     * @throws java.io.IOException if the file can not be read or is not a tile pyramid.
+     */
+    public static BitmapRegionDecoderCompat newPyramidInstance(File pyramidFile) throws IOException {
+        long start = startTiming();
+        return onCreated(new BitmapRegionDecoderCompat(TilePyramidDecoder.newInstance(pyramidFile), null, TilePyramidDecoder.SOURCE_TYPE), start);
+    }
+
+    /**
+     * Reads the image metadata (format, size, bit depth, progressive/interlaced flag, EXIF orientation) of a file
+     * without creating a decoder: only the headers are read (usually a few KB, at most 256 KB).
+     * Supports JPEG, PNG, GIF and WebP images.
+     *
+     * @param pathName complete path name of the image file.
+     * @return the image metadata, or null if the format is not recognized.
+     * @throws java.io.IOException if the file can not be read.
+     */
+    public static ImageInfo getImageInfo(String pathName) throws IOException {
+        return ImageSource.fromPath(pathName).getImageInfo();
+    }
+
+    /**
+     * Reads the image metadata from the beginning of the stream, without creating a decoder.
+     * If is.markSupported() returns true the stream is reset to its initial position (the mark limit is 256 KB,
+     * the most the headers are read for), otherwise the header bytes are consumed.
+     *
+     * @param is The input stream positioned at the beginning of the image.
+     * @return the image metadata, or null if the format is not recognized.
+     * @throws java.io.IOException if the stream can not be read.
+     */
+    public static ImageInfo getImageInfo(InputStream is) throws IOException {
+        if(is.markSupported()){
+            is.mark(ImageProber.PROBE_LIMIT);
+            try {
+                return ImageProber.probe(is);
+            } finally {
+                is.reset();
+            }
+        }
+        return ImageProber.probe(is);
+    }
+
+    /**
+     * Reads the image metadata from the file descriptor, without creating a decoder.
+     * The position within the descriptor will not be changed.
+     *
+     * @param fd The file descriptor containing the image.
+     * @return the image metadata, or null if the format is not recognized.
+     * @throws java.io.IOException if the descriptor can not be read.
+     */
+    public static ImageInfo getImageInfo(FileDescriptor fd) throws IOException {
+        return ImageSource.fromFileDescriptor(fd).getImageInfo();
+    }
+
+    /**
+     * Reads the image metadata from the specified byte array, without creating a decoder.
+     *
+     * @param data byte array of compressed image data.
+     * @param offset offset into data for where the image begins.
+     * @param length the number of bytes, beginning at offset, to parse
+     * @return the image metadata, or null if the format is not recognized.
+     */
+    public static ImageInfo getImageInfo(byte[] data, int offset, int length) {
+        try {
+            return ImageSource.fromByteArray(data, offset, length).getImageInfo();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the metadata of the decoded image, read from its header.
+     * @return the image metadata, or null if it is not available (unrecognized format, or stream-based instance on API 10+)
+     */
+    public ImageInfo getImageInfo() {
+        if(source == null)
+            return null;
+        try {
+            return source.getImageInfo();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes a multi-resolution tile pyramid of the image (sample sizes 1, 2, 4... down to a single tile) to a file,
+     * which can be opened later with {@link #newPyramidInstance(File)}.<br>
+     * The image is decoded only once, one row of tiles at a time; the coarser levels are downscaled from the finer ones.
+     * This is a long operation: run it in background.
+     *
+     * @param pyramidFile the file to write, replaced once the pyramid is complete.
+     * @param tileSize the size of the tiles, in pixels (even, usually 256 or 512).
+     * @param format the compression of the tiles (JPEG for photos, PNG to keep the alpha channel).
+     * @param quality the compression quality (0-100), ignored by PNG.
+     * @throws java.io.IOException if the image can not be decoded or the file can not be written.
+     */
+    public void writeTilePyramid(File pyramidFile, int tileSize, Bitmap.CompressFormat format, int quality) throws IOException {
+        TilePyramidWriter.write(decoder, pyramidFile, tileSize, format, quality);
+    }
+
+    /**
+     * Closes the decoder of a lazy instance (see {@link #newLazyInstance(String, boolean, Executor)}) once the running
+     * decodes complete; the next decodeRegion() call opens it again. The caches are not affected.
+     * @return true if the decoder was open, false if it was already closed or this is not a lazy instance
+     */
+    public boolean trimMemory(){
+        return decoder instanceof LazyRegionDecoder && ((LazyRegionDecoder) decoder).trim();
+    }
+
+    /**
+     * Returns false if this is a lazy instance whose decoder is currently closed, true otherwise
+     * @return
+     */
+    public boolean isDecoderOpen(){
+        return !(decoder instanceof LazyRegionDecoder) || ((LazyRegionDecoder) decoder).isOpen();
+    }
+
+    /**
+     * Returns the statistics of a pooled instance (pool size, wait times), or null if this is not a pooled instance
+     * @return
+     */
+    public DecoderPoolStats getPoolStats(){
+        return decoder instanceof PooledRegionDecoder ? ((PooledRegionDecoder) decoder).getStats() : null;
+    }
+
+    /**
+     * Enables an in-memory cache of the decoded regions: repeated decodeRegion() calls with the same rect,
+     * inSampleSize and inPreferredConfig are served without decoding again.
+     * The same cache can be shared by several instances; regions decoded from the same file path share entries.<br>
+     * <b>Cached bitmaps are shared</b>: do not recycle bitmaps returned while a cache is set.
+     * @param cache the cache to use, or null to disable caching
+     */
+    public void setRegionCache(RegionCache cache){
+        this.regionCache = cache;
+        rebuildImpl();
+    }
+
+    /**
+     * Returns the region cache in use, or null
+     * @return
+     */
+    public RegionCache getRegionCache(){
+        return regionCache;
+    }
+
+    /**
+     * Enables a persistent cache of the decoded regions, which survives process restarts: regions decoded
+     * in a previous session are loaded back from disk instead of being decoded again.
+     * Used below the in-memory region cache, if any. Not available for stream-based instances on API 10+.
+     * @param cache the cache to use, or null to disable it
+     */
+    public void setRegionDiskCache(RegionDiskCache cache){
+        this.regionDiskCache = cache;
+        rebuildImpl();
+    }
+
+    /**
+     * Returns the region disk cache in use, or null
+     * @return
+     */
+    public RegionDiskCache getRegionDiskCache(){
+        return regionDiskCache;
+    }
+
+    /**
+     * Makes decodeRegion() reuse the bitmaps of the pool instead of allocating new ones: through inBitmap on API 16+,
+     * by decoding into pooled bitmaps on the fallback implementation. Give the bitmaps back with {@link #release(Bitmap)}.
+     * The same pool can be shared by several instances.
+     * @param pool the pool to use, or null to always allocate new bitmaps
+     */
+    public void setBitmapPool(BitmapPool pool){
+        this.bitmapPool = pool;
+        if(decoder instanceof PooledOutput){
+            ((PooledOutput) decoder).setBitmapPool(pool);
+        }
+        rebuildImpl();
+    }
+
+    /**
+     * Returns the bitmap pool in use, or null
+     * @return
+     */
+    public BitmapPool getBitmapPool(){
+        return bitmapPool;
+    }
+
+    /**
+     * Gives back a bitmap returned by this decoder which is no longer used: it is added to the bitmap pool,
+     * or recycled if no pool is set. Bitmaps still held by the region cache are left untouched.
+     * @param bitmap
+     */
+    public void release(Bitmap bitmap){
+        if(bitmap == null || bitmap.isRecycled())
+            return;
+        MemoryBudget budget = MEMORY_BUDGET;
+        if(budget != null)
+            budget.untrack(bitmap);
+        if(regionCache != null && regionCache.contains(bitmap))
+            return;
+
+        if(bitmapPool != null)
+            bitmapPool.put(bitmap);
+        else
+            bitmap.recycle();
+    }
+
+    /**
+     * Creates another instance over the same image which decodes through the given handle
+     * (see {@link DecoderRegistry}), sharing the source of this instance
+     */
+    BitmapRegionDecoderCompat newSharedHandle(IBitmapRegionDecoder handle){
+        BitmapRegionDecoderCompat compat = new BitmapRegionDecoderCompat(handle, source, sourceType);
+        compat.sharedDecoder = this;
+        return compat;
+    }
+
+    /**
+     * Returns the internal decoder, without the caches, the memory budget and the listener notifications
+     * of this instance (used by the handles of {@link DecoderRegistry}, which have their own)
+     */
+    IBitmapRegionDecoder getDecoder(){
+        return decoder;
+    }
+
+    /**
+     * Returns the identity of the image in the region cache
+     */
+    Object getSourceKey(){
+        return sourceKey;
+    }
+
+    /**
+     * Wraps the internal decoder with the enabled layers
+     */
+    private void rebuildImpl(){
+        IBitmapRegionDecoder chain = decoder;
+        if(regionDiskCache != null && source != null){
+            chain = new DiskCachingRegionDecoder(chain, regionDiskCache, source, bitmapPool);
+        }
+        if(regionCache != null){
+            chain = new CachingRegionDecoder(chain, regionCache, sourceKey);
+        }
+        impl = chain;
     }
 
     /**
@@ -150,7 +761,45 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
      */
     @Override
     public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
-        return impl.decodeRegion(rect, options);
+        DecodeListener listener = DECODE_LISTENER;
+        if(listener == null)
+            return decodeInternal(rect, options);
+
+        long start = System.nanoTime();
+        Bitmap bitmap = null;
+        try {
+            bitmap = decodeInternal(rect, options);
+            return bitmap;
+        } finally {
+            onDecoded(listener, DecodeListener.OPERATION_DECODE_REGION, rect, options != null ? BitmapUtils.getSampleSize(options.inSampleSize) : 1,
+                    start, bitmap != null ? BitmapUtils.getBitmapBytes(bitmap) : 0);
+        }
+    }
+
+    /**
+     * Decodes a rectangle region into a caller-supplied buffer, e.g. a tile of a texture atlas.
+     * The pure-Java and fallback implementations write the pixels straight into the buffer; the platform decoder
+     * writes them through one bitmap (taken from the bitmap pool, if set). The region caches are not used.
+     * @param rect The rectangle that specified the region to be decode.
+     * @param inSampleSize the downsampling factor, as BitmapFactory.Options.inSampleSize
+     * @param output the destination; its getOutWidth()/getOutHeight() report the size of the decoded region.
+     * @return true if the region was decoded, false if the image data could not be decoded.
+     * @throws IllegalArgumentException if the region is outside the image or does not fit in the buffer
+     */
+    public boolean decodeRegion(Rect rect, int inSampleSize, PixelBuffer output){
+        DecodeListener listener = DECODE_LISTENER;
+        if(listener == null)
+            return PixelBuffer.decode(decoder, rect, inSampleSize, output, bitmapPool);
+
+        long start = System.nanoTime();
+        boolean decoded = false;
+        try {
+            decoded = PixelBuffer.decode(decoder, rect, inSampleSize, output, bitmapPool);
+            return decoded;
+        } finally {
+            onDecoded(listener, DecodeListener.OPERATION_DECODE_REGION, rect, BitmapUtils.getSampleSize(inSampleSize), start,
+                    decoded ? (long) output.getOutWidth() * output.getOutHeight() * output.getBytesPerPixel() : 0);
+        }
     }
 
     /**
@@ -177,76 +826,196 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
      * @return
      */
     public Bitmap decodeBestRegion(int requiredWidth, int requiredHeight, int gravity) {
+        BitmapFactory.Options options = BEST_REGION_OPTIONS.get();
+        Rect area = BEST_REGION_RECT.get();
+        options.inSampleSize = planBestRegion(getWidth(), getHeight(), requiredWidth, requiredHeight, gravity, area);
+
+        DecodeListener listener = DECODE_LISTENER;
+        if(listener == null)
+            return decodeInternal(area, options);
+
+        long start = System.nanoTime();
+        Bitmap bitmap = null;
+        try {
+            bitmap = decodeInternal(area, options);
+            return bitmap;
+        } finally {
+            onDecoded(listener, DecodeListener.OPERATION_DECODE_BEST_REGION, area, options.inSampleSize,
+                    start, bitmap != null ? BitmapUtils.getBitmapBytes(bitmap) : 0);
+        }
+    }
+
+    /**
+     * Extracts the "best" region (see {@link #decodeBestRegion(int, int, int)}) for several output sizes with a single decode.<br>
+     * The union of the regions is decoded once, at the finest inSampleSize required by the targets, and each target
+     * is cropped and scaled out of it. Unlike decodeBestRegion(), targets bigger than the image are upscaled
+     * to the exact required size.
+     * @param targets the required sizes and gravities
+     * @return one bitmap per target, in the same order (null elements if the image data could not be decoded)
+     */
+    public List<Bitmap> decodeBestRegions(List<RegionTarget> targets) {
+        int count = targets.size();
+        List<Bitmap> results = new ArrayList<Bitmap>(count);
+        if(count == 0)
+            return results;
 
-        boolean upscaling = false; //TODO handle upscaling as an option
         int realWidth = getWidth();
         int realHeight = getHeight();
+        Rect[] areas = new Rect[count];
+        Rect union = null;
+        int minSampleSize = Integer.MAX_VALUE;
+        for(int i = 0; i < count; i++){
+            RegionTarget target = targets.get(i);
+            areas[i] = new Rect();
+            int sampleSize = planBestRegion(realWidth, realHeight, target.getWidth(), target.getHeight(), target.getGravity(), areas[i]);
+            minSampleSize = Math.min(minSampleSize, sampleSize);
+            if(union == null)
+                union = new Rect(areas[i]);
+            else
+                union.union(areas[i]);
+        }
 
-        BitmapFactory.Options   options = new BitmapFactory.Options();
+        DecodeListener listener = DECODE_LISTENER;
+        long start = listener != null ? System.nanoTime() : 0;
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = minSampleSize;
+        Bitmap decoded = decodeInternal(union, options);
+        if(decoded == null){
+            for(int i = 0; i < count; i++){
+                results.add(null);
+            }
+            if(listener != null)
+                onDecoded(listener, DecodeListener.OPERATION_DECODE_BEST_REGION, union, minSampleSize, start, 0);
+            return results;
+        }
 
+        //the decoder may round the region size differently: map the areas on the actual bitmap
+        float scaleX = (float) decoded.getWidth() / union.width();
+        float scaleY = (float) decoded.getHeight() / union.height();
+        boolean decodedReturned = false;
+        for(int i = 0; i < count; i++){
+            RegionTarget target = targets.get(i);
+            Rect area = areas[i];
+            int left = RegionMath.clamp(Math.round((area.left - union.left) * scaleX), 0, decoded.getWidth() - 1);
+            int top = RegionMath.clamp(Math.round((area.top - union.top) * scaleY), 0, decoded.getHeight() - 1);
+            int right = RegionMath.clamp(Math.round((area.right - union.left) * scaleX), left + 1, decoded.getWidth());
+            int bottom = RegionMath.clamp(Math.round((area.bottom - union.top) * scaleY), top + 1, decoded.getHeight());
 
-		/* -- Check for upscale -- */
-		/* ----------------------- */
+            Bitmap region = Bitmap.createBitmap(decoded, left, top, right - left, bottom - top);
+            if(region.getWidth() != target.getWidth() || region.getHeight() != target.getHeight()){
+                Bitmap scaled = Bitmap.createScaledBitmap(region, target.getWidth(), target.getHeight(), true);
+                if(region != decoded && scaled != region)
+                    region.recycle();
+                region = scaled;
+            }
+            if(region == decoded)
+                decodedReturned = true;
+            results.add(region);
+        }
 
-        if( ! (requiredWidth <= realWidth && requiredHeight <= realHeight ) ){ //image is smaller than box
-            float widthRatio = (float)requiredWidth / realWidth;
-            float heightRatio = (float)requiredHeight / realHeight;
-            float destinationRatio = Math.max(widthRatio, heightRatio);
+        if(!decodedReturned)
+            release(decoded);
 
-            requiredWidth = Math.round(((float)requiredWidth/destinationRatio));
-            requiredHeight = Math.round(((float)requiredHeight/destinationRatio));
-            upscaling = true;
+        MemoryBudget budget = MEMORY_BUDGET;
+        if(budget != null){
+            for(Bitmap result : results){
+                budget.track(result);
+            }
         }
 
+        if(listener != null){
+            long outputBytes = 0;
+            for(Bitmap result : results){
+                outputBytes += BitmapUtils.getBitmapBytes(result);
+            }
+            onDecoded(listener, DecodeListener.OPERATION_DECODE_BEST_REGION, union, minSampleSize, start, outputBytes);
+        }
+        return results;
+    }
+
+    /**
+     * Decodes through the implementation chain, fitting the request in the memory budget if one is set
+     */
+    private Bitmap decodeInternal(Rect rect, BitmapFactory.Options options){
+        MemoryBudget budget = MEMORY_BUDGET;
+        if(budget == null || !CachingRegionDecoder.isCacheable(options))
+            return impl.decodeRegion(rect, options);
 
-		/* -- Downsampling -- */
-		/* ------------------ */
+        if(options == null)
+            options = new BitmapFactory.Options();
+        int requestedSampleSize = options.inSampleSize;
+        Bitmap.Config requestedConfig = options.inPreferredConfig;
+        int width = Math.max(1, Math.min(getWidth(), rect.right) - Math.max(0, rect.left));
+        int height = Math.max(1, Math.min(getHeight(), rect.bottom) - Math.max(0, rect.top));
 
-        boolean limitReached = false;
-        int basePow = 0;
-        int actualScale;
-        while( !limitReached ){
-            actualScale = (int) Math.pow(2, basePow+1);
-            if( requiredWidth <= realWidth/actualScale && requiredHeight <= realHeight/actualScale){
-                basePow++;
-            }else{
-                limitReached = true;
+        MemoryBudget.Plan plan = budget.plan(width, height, BitmapUtils.getSampleSize(requestedSampleSize), requestedConfig, isOpaque());
+        options.inSampleSize = plan.sampleSize;
+        options.inPreferredConfig = plan.config;
+        try {
+            Bitmap bitmap;
+            try {
+                bitmap = impl.decodeRegion(rect, options);
+            } catch (OutOfMemoryError e) {
+                plan = budget.planRetry(plan.sampleSize, plan.config);
+                options.inSampleSize = plan.sampleSize;
+                try {
+                    bitmap = impl.decodeRegion(rect, options);
+                } catch (OutOfMemoryError again) {
+                    return null;
+                }
             }
+            budget.track(bitmap);
+            return bitmap;
+        } finally {
+            options.inSampleSize = requestedSampleSize;
+            options.inPreferredConfig = requestedConfig;
         }
-        //basePow+=1; //extra compression!
-        options.inSampleSize = (int) Math.pow(2, basePow);
+    }
 
+    /**
+     * Returns true if the image is known to have no alpha channel
+     */
+    private boolean isOpaque(){
+        if(opaque == null){
+            ImageInfo info = getImageInfo();
+            opaque = info != null && !info.hasAlpha();
+        }
+        return opaque;
+    }
 
-        int fromTop = 0;
-        int fromLeft = 0;
+    /**
+     * Computes the "best" region for the required size and gravity (see {@link RegionMath#planBestRegion(int, int, int, int, int, int, int[])})
+     * @param area set to the region to decode
+     * @return the sample size
+     */
+    private static int planBestRegion(int realWidth, int realHeight, int requiredWidth, int requiredHeight, int gravity, Rect area) {
+        int horizontalAlign = RegionMath.ALIGN_START;
+        int verticalAlign = RegionMath.ALIGN_START;
 
         //Default is Gravity.CENTER
         if(gravity == Gravity.CENTER){
-            fromTop = (realHeight - requiredHeight * options.inSampleSize) / 2;
-            fromLeft = (realWidth - requiredWidth * options.inSampleSize)  / 2;
+            horizontalAlign = RegionMath.ALIGN_CENTER;
+            verticalAlign = RegionMath.ALIGN_CENTER;
         }
         else{
             int horizontalGravity = gravity & Gravity.HORIZONTAL_GRAVITY_MASK;
             int verticalGravity = gravity & Gravity.VERTICAL_GRAVITY_MASK;
 
-            if(horizontalGravity == Gravity.LEFT)
-                fromLeft = 0;
-            else if(horizontalGravity == Gravity.RIGHT)
-                fromLeft = realWidth - requiredWidth * options.inSampleSize;
+            if(horizontalGravity == Gravity.RIGHT)
+                horizontalAlign = RegionMath.ALIGN_END;
             else if(horizontalGravity == Gravity.CENTER_HORIZONTAL)
-                fromLeft = (realWidth - requiredWidth * options.inSampleSize)  / 2;
+                horizontalAlign = RegionMath.ALIGN_CENTER;
 
-            if(verticalGravity == Gravity.TOP)
-                fromTop = 0;
-            else if(verticalGravity == Gravity.BOTTOM)
-                fromTop = realHeight - requiredHeight * options.inSampleSize;
+            if(verticalGravity == Gravity.BOTTOM)
+                verticalAlign = RegionMath.ALIGN_END;
             else if(verticalGravity == Gravity.CENTER_VERTICAL)
-                fromTop = (realHeight - requiredHeight * options.inSampleSize) / 2;
+                verticalAlign = RegionMath.ALIGN_CENTER;
         }
 
-        Rect area = new Rect(fromLeft, fromTop, fromLeft + requiredWidth * options.inSampleSize, fromTop + requiredHeight * options.inSampleSize);
-        return impl.decodeRegion(area, options);
-
+        int[] bounds = new int[4];
+        int sampleSize = RegionMath.planBestRegion(realWidth, realHeight, requiredWidth, requiredHeight, horizontalAlign, verticalAlign, bounds);
+        area.set(bounds[0], bounds[1], bounds[2], bounds[3]);
+        return sampleSize;
     }
 
     /**
@@ -283,5 +1052,10 @@ public class BitmapRegionDecoderCompat implements IBitmapRegionDecoder {
     @Override
     public void recycle() {
         impl.recycle();
+        DecodeListener listener = DECODE_LISTENER;
+        //a shared handle only releases its reference: the shared instance reports its own recycling
+        if(listener != null && sharedDecoder == null){
+            listener.onDecoderRecycled(getImplementationName(), sourceType);
+        }
     }
 }
@@ -2,56 +2,62 @@ package org.bonnyfone.brdcompat;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
 import android.graphics.Rect;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Backward-compatible implementation of the BitmapRegionDecoder API
  */
-class BitmapRegionDecoderGinger implements IBitmapRegionDecoder {
+class BitmapRegionDecoderGinger implements IBitmapRegionDecoder, PooledOutput, PixelOutput {
 
-    private Object encodedImage;
+    private ImageSource source;
     private BitmapFactory.Options bitmapOptions;
 
-    private int offset = -1;
-    private int length = -1;
     private int width = -1;
     private int height = -1;
     private boolean isRecycled;
     private boolean decoderIsSharable;
 
-    private BitmapRegionDecoderGinger(){}
+    /**
+     * Decoded full images, one per sample level (only when decodedImageCacheBytes > 0)
+     */
+    private final Map<Integer, Bitmap> decodedImages = new HashMap<Integer, Bitmap>();
+    /**
+     * Config requested for each cached level, and levels being decoded (guarded by decodedImages)
+     */
+    private final Map<Integer, Bitmap.Config> decodedConfigs = new HashMap<Integer, Bitmap.Config>();
+    private final Set<Integer> loadingLevels = new HashSet<Integer>();
+    private long decodedImageCacheBytes;
 
-    private BitmapRegionDecoderGinger(String pathName, boolean isShareable) throws IOException {
-        encodedImage = pathName;
-        init(isShareable);
-        BitmapFactory.decodeFile(pathName, bitmapOptions);
-        checkInit();
-    }
+    private volatile BitmapPool bitmapPool;
+    private int[] rowBuffer;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
 
-    private BitmapRegionDecoderGinger(FileDescriptor fd, boolean isShareable) throws IOException {
-        encodedImage = fd;
-        init(isShareable);
-        BitmapFactory.decodeFileDescriptor(fd, null, bitmapOptions);
-        checkInit();
-    }
+    private BitmapRegionDecoderGinger(){}
 
-    private BitmapRegionDecoderGinger(byte[] data, int offset, int length, boolean isShareable) throws IOException {
-        encodedImage = data;
-        this.offset = offset;
-        this.length = length;
+    private BitmapRegionDecoderGinger(ImageSource source, boolean isShareable) throws IOException {
+        this.source = source;
         init(isShareable);
-        BitmapFactory.decodeByteArray(data, offset, length, bitmapOptions);
-        checkInit();
-    }
 
-    private BitmapRegionDecoderGinger(InputStream is, boolean isShareable) throws IOException {
-        encodedImage = is;
-        init(isShareable);
-        BitmapFactory.decodeStream(is, null, bitmapOptions);
+        //the header is enough for the supported formats, BitmapFactory is used for the others
+        ImageInfo info = source.getImageInfo();
+        if(info != null){
+            bitmapOptions.outWidth = info.getWidth();
+            bitmapOptions.outHeight = info.getHeight();
+        }
+        else{
+            source.decode(bitmapOptions);
+        }
         checkInit();
     }
 
@@ -66,48 +72,296 @@ class BitmapRegionDecoderGinger implements IBitmapRegionDecoder {
         width = bitmapOptions.outWidth;
         height = bitmapOptions.outHeight;
 
-        if(width == -1 || height == -1){
+        if(width <= 0 || height <= 0){
             throw new IOException("Unable to decode image bounds.");
         }
     }
 
+    /**
+     * Enables the decoded image cache: instead of decoding the whole image on every decodeRegion() call,
+     * one decoded full image is kept per inSampleSize level and regions are cropped from it.
+     * When a level would exceed the limit, the region is served (and upscaled) from a coarser level.
+     * @param maxBytes the maximum size of the decoded images, 0 to disable the cache
+     */
+    void setDecodedImageCacheSize(long maxBytes){
+        synchronized (decodedImages){
+            decodedImageCacheBytes = maxBytes;
+            trimDecodedImages(maxBytes, -1);
+        }
+    }
+
     /**
      * Fallback decode-region method
-     * @param encodedImage
+     * @param source
      * @param area
      * @param opts
      * @return
      */
-    private Bitmap fallbackDecode(Object encodedImage, Rect area, BitmapFactory.Options opts) {
+    private Bitmap fallbackDecode(ImageSource source, Rect area, BitmapFactory.Options opts) {
         int rectFactor = 1;
         if(opts != null){
             rectFactor = opts.inSampleSize >= 1 ? opts.inSampleSize : 1;
             //TODO more cases here
         }
 
-        return Bitmap.createBitmap(decodeObjectToBitmap(encodedImage, opts), area.left/rectFactor, area.top/rectFactor, area.right/rectFactor - area.left/rectFactor, area.bottom/rectFactor - area.top/rectFactor);
-    }
+        if(decodedImageCacheBytes > 0){
+            return cachedDecode(source, area, rectFactor, opts);
+        }
+
+        Bitmap image = source.decode(opts);
+        if(image == null)
+            return null;
 
-    private Bitmap decodeObjectToBitmap(Object encodedImage, BitmapFactory.Options opts){
-        if(encodedImage instanceof byte[]){
-            return BitmapFactory.decodeByteArray((byte[])encodedImage, offset, length, opts);
+        int left = area.left/rectFactor;
+        int top = area.top/rectFactor;
+        int regionWidth = area.right/rectFactor - left;
+        int regionHeight = area.bottom/rectFactor - top;
+        Bitmap region = cropIntoPooled(image, left, top, regionWidth, regionHeight);
+        if(region != null){
+            image.recycle();
+            return region;
         }
-        else if(encodedImage instanceof InputStream){
-            return BitmapFactory.decodeStream((InputStream)encodedImage, null, opts);
+        return Bitmap.createBitmap(image, left, top, regionWidth, regionHeight);
+    }
+
+    /**
+     * Copies a region of the image into a bitmap taken from the pool, or into a new mutable bitmap on a pool miss,
+     * so that the region can go back to the pool once released
+     * @return the region, or null if there is no pool
+     */
+    private Bitmap cropIntoPooled(Bitmap image, int left, int top, int regionWidth, int regionHeight){
+        Bitmap target = getPooledTarget(regionWidth, regionHeight, image.getConfig());
+        if(target == null)
+            return null;
+
+        synchronized (decodedImages){
+            if(rowBuffer == null || rowBuffer.length < regionWidth){
+                rowBuffer = new int[regionWidth];
+            }
+            for(int y = 0; y < regionHeight; y++){
+                image.getPixels(rowBuffer, 0, regionWidth, left, top + y, regionWidth, 1);
+                target.setPixels(rowBuffer, 0, regionWidth, 0, y, regionWidth, 1);
+            }
         }
-        else if(encodedImage instanceof String){
-            return BitmapFactory.decodeFile((String)encodedImage, opts);
+        return target;
+    }
+
+    /**
+     * Returns a mutable bitmap from the pool, or a new one on a pool miss
+     * @return the bitmap, or null if there is no pool
+     */
+    private Bitmap getPooledTarget(int regionWidth, int regionHeight, Bitmap.Config config){
+        BitmapPool pool = bitmapPool;
+        if(pool == null || regionWidth <= 0 || regionHeight <= 0)
+            return null;
+
+        if(config == null)
+            config = Bitmap.Config.ARGB_8888;
+        Bitmap target = pool.get(regionWidth, regionHeight, config);
+        return target != null ? target : Bitmap.createBitmap(regionWidth, regionHeight, config);
+    }
+
+    @Override
+    public void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
+    }
+
+    /**
+     * Decode-region method which crops the region out of a cached decoded image
+     * @param source
+     * @param area
+     * @param sampleSize the requested sample size
+     * @param opts
+     * @return
+     */
+    private Bitmap cachedDecode(ImageSource source, Rect area, int sampleSize, BitmapFactory.Options opts) {
+        Bitmap.Config config = opts != null && opts.inPreferredConfig != null ? opts.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        int outWidth = area.right/sampleSize - area.left/sampleSize;
+        int outHeight = area.bottom/sampleSize - area.top/sampleSize;
+
+        int level;
+        synchronized (decodedImages){
+            //pick the finest level which fits in the cache
+            level = sampleSize;
+            while(estimateDecodedBytes(level, config) > decodedImageCacheBytes && (width / level > 1 || height / level > 1)){
+                level *= 2;
+            }
+
+            //wait for a decode of the same level already running on another thread
+            while(true){
+                Bitmap image = decodedImages.get(level);
+                if(image != null && !image.isRecycled() && decodedConfigs.get(level) == config)
+                    return cropLevel(image, area, outWidth, outHeight);
+                if(!loadingLevels.contains(level))
+                    break;
+                try {
+                    decodedImages.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return null;
+                }
+            }
+
+            loadingLevels.add(level);
+            trimDecodedImages(decodedImageCacheBytes - estimateDecodedBytes(level, config), level);
+            Bitmap stale = decodedImages.remove(level);
+            decodedConfigs.remove(level);
+            if(stale != null)
+                stale.recycle();
         }
-        else if(encodedImage instanceof  FileDescriptor){
-            return BitmapFactory.decodeFileDescriptor((FileDescriptor)encodedImage, null, opts);
+
+        //decode outside of the lock, so that regions of the other levels are served meanwhile
+        Bitmap image = null;
+        try {
+            BitmapFactory.Options levelOptions = new BitmapFactory.Options();
+            levelOptions.inSampleSize = level;
+            levelOptions.inPreferredConfig = config;
+            levelOptions.inInputShareable = decoderIsSharable;
+            image = source.decode(levelOptions);
+        } finally {
+            synchronized (decodedImages){
+                loadingLevels.remove(level);
+                decodedImages.notifyAll();
+                if(image != null && isRecycled){
+                    image.recycle();
+                    image = null;
+                }
+                if(image != null){
+                    //keyed on the requested config: BitmapFactory may pick another one (e.g. ARGB_8888 for translucent images)
+                    decodedImages.put(level, image);
+                    decodedConfigs.put(level, config);
+                }
+            }
         }
-        else
+        if(image == null)
             return null;
+
+        synchronized (decodedImages){
+            return image.isRecycled() ? null : cropLevel(image, area, outWidth, outHeight);
+        }
+    }
+
+    /**
+     * Crops (and scales, if needed) the region out of a cached decoded image. Called with the lock held.
+     */
+    private Bitmap cropLevel(Bitmap image, Rect area, int outWidth, int outHeight){
+        //the decoder may pick a different sample size than the requested one: map the area on the actual image
+        float scaleX = (float) image.getWidth() / width;
+        float scaleY = (float) image.getHeight() / height;
+        int left = clamp(Math.round(area.left * scaleX), 0, image.getWidth() - 1);
+        int top = clamp(Math.round(area.top * scaleY), 0, image.getHeight() - 1);
+        int right = clamp(Math.round(area.right * scaleX), left + 1, image.getWidth());
+        int bottom = clamp(Math.round(area.bottom * scaleY), top + 1, image.getHeight());
+
+        boolean needsScaling = outWidth > 0 && outHeight > 0 && (right - left != outWidth || bottom - top != outHeight);
+        if(!needsScaling){
+            Bitmap pooled = cropIntoPooled(image, left, top, right - left, bottom - top);
+            if(pooled != null)
+                return pooled;
+        }
+        else{
+            //every pixel is overwritten, so a pooled bitmap needs no erase
+            Bitmap pooled = getPooledTarget(outWidth, outHeight, image.getConfig());
+            if(pooled != null){
+                new Canvas(pooled).drawBitmap(image, new Rect(left, top, right, bottom), new Rect(0, 0, outWidth, outHeight), paint);
+                return pooled;
+            }
+        }
+
+        Bitmap region = Bitmap.createBitmap(image, left, top, right - left, bottom - top);
+        if(outWidth > 0 && outHeight > 0 && (region.getWidth() != outWidth || region.getHeight() != outHeight)){
+            Bitmap scaled = Bitmap.createScaledBitmap(region, outWidth, outHeight, true);
+            if(region != image && scaled != region)
+                region.recycle();
+            region = scaled;
+        }
+
+        //never hand out the cached image itself
+        if(region == image){
+            region = image.copy(image.getConfig(), false);
+        }
+        return region;
+    }
+
+    private long estimateDecodedBytes(int level, Bitmap.Config config){
+        long levelWidth = (width + level - 1) / level;
+        long levelHeight = (height + level - 1) / level;
+        return levelWidth * levelHeight * BitmapUtils.getBytesPerPixel(config);
+    }
+
+    /**
+     * Recycles cached decoded images until their size is below the given limit
+     * @param maxBytes
+     * @param keepLevel level which should not be evicted, or -1
+     */
+    private void trimDecodedImages(long maxBytes, int keepLevel){
+        long size = 0;
+        for(Bitmap image : decodedImages.values()){
+            size += BitmapUtils.getBitmapBytes(image);
+        }
+
+        Iterator<Map.Entry<Integer, Bitmap>> it = decodedImages.entrySet().iterator();
+        while(size > maxBytes && it.hasNext()){
+            Map.Entry<Integer, Bitmap> entry = it.next();
+            if(entry.getKey() == keepLevel)
+                continue;
+            size -= BitmapUtils.getBitmapBytes(entry.getValue());
+            entry.getValue().recycle();
+            decodedConfigs.remove(entry.getKey());
+            it.remove();
+        }
+    }
+
+    private static int clamp(int value, int min, int max){
+        return Math.max(min, Math.min(value, max));
     }
 
     @Override
     public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
-        return fallbackDecode(encodedImage, rect, options);
+        return fallbackDecode(source, rect, options);
+    }
+
+    /**
+     * Copies the region straight from the decoded image, without a region bitmap
+     * (through one when the decoded image cache is enabled)
+     */
+    @Override
+    public boolean decodeRegion(Rect rect, int sampleSize, PixelBuffer output) {
+        sampleSize = BitmapUtils.getSampleSize(sampleSize);
+        if(decodedImageCacheBytes > 0){
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            Bitmap region = cachedDecode(source, rect, sampleSize, options);
+            if(region == null)
+                return false;
+            output.copyFrom(region, 0, 0, region.getWidth(), region.getHeight());
+            BitmapPool pool = bitmapPool;
+            if(pool != null)
+                pool.put(region);
+            else
+                region.recycle();
+            return true;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inInputShareable = decoderIsSharable;
+        Bitmap image = source.decode(options);
+        if(image == null)
+            return false;
+        try {
+            //the decoder may pick a different sample size than the requested one: map the area on the actual image
+            float scaleX = (float) image.getWidth() / width;
+            float scaleY = (float) image.getHeight() / height;
+            int left = clamp(Math.round(rect.left * scaleX), 0, image.getWidth() - 1);
+            int top = clamp(Math.round(rect.top * scaleY), 0, image.getHeight() - 1);
+            int right = clamp(Math.round(rect.right * scaleX), left + 1, image.getWidth());
+            int bottom = clamp(Math.round(rect.bottom * scaleY), top + 1, image.getHeight());
+            output.copyFrom(image, left, top, right - left, bottom - top);
+        } finally {
+            image.recycle();
+        }
+        return true;
     }
 
     @Override
@@ -127,29 +381,45 @@ class BitmapRegionDecoderGinger implements IBitmapRegionDecoder {
 
     @Override
     public void recycle() {
-        isRecycled = true;
+        synchronized (decodedImages){
+            for(Bitmap image : decodedImages.values()){
+                image.recycle();
+            }
+            decodedImages.clear();
+            decodedConfigs.clear();
+            rowBuffer = null;
+            isRecycled = true;
+        }
         bitmapOptions = null;
-        encodedImage = null;
+        if(source != null){
+            source.release();
+            source = null;
+        }
         width = -1;
         height = -1;
-        offset = -1;
-        length = -1;
     }
 
     public static BitmapRegionDecoderGinger newInstance(String pathName, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderGinger(pathName, isShareable);
+        return new BitmapRegionDecoderGinger(ImageSource.fromPath(pathName), isShareable);
     }
 
     public static BitmapRegionDecoderGinger newInstance(FileDescriptor fd, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderGinger(fd, isShareable);
+        return new BitmapRegionDecoderGinger(ImageSource.fromFileDescriptor(fd), isShareable);
      }
 
     public static BitmapRegionDecoderGinger newInstance(byte[] data, int offset, int length, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderGinger(data, offset, length, isShareable);
+        return new BitmapRegionDecoderGinger(ImageSource.fromByteArray(data, offset, length), isShareable);
      }
 
+    /**
+     * The stream is spooled once, so that it can be read again by every decodeRegion() call
+     */
     public static BitmapRegionDecoderGinger newInstance(InputStream is, boolean isShareable) throws IOException {
-        return new BitmapRegionDecoderGinger(is, isShareable);
+        return new BitmapRegionDecoderGinger(ImageSource.fromStream(is), isShareable);
+    }
+
+    static BitmapRegionDecoderGinger newInstance(ImageSource source, boolean isShareable) throws IOException {
+        return new BitmapRegionDecoderGinger(source, isShareable);
     }
 
 }
@@ -14,9 +14,10 @@ import java.io.InputStream;
  * Internal wrapper over the native API, allows to maintain type interoperability
  */
 @TargetApi(Build.VERSION_CODES.HONEYCOMB)
-class BitmapRegionDecoderNative implements IBitmapRegionDecoder {
+class BitmapRegionDecoderNative implements IBitmapRegionDecoder, PooledOutput {
 
     private android.graphics.BitmapRegionDecoder nativeDecoder;
+    private volatile BitmapPool bitmapPool;
 
     private BitmapRegionDecoderNative(android.graphics.BitmapRegionDecoder nativeDecoder){
         this.nativeDecoder = nativeDecoder;
@@ -24,7 +25,44 @@ class BitmapRegionDecoderNative implements IBitmapRegionDecoder {
 
     @Override
     public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
-        return nativeDecoder.decodeRegion(rect, options);
+        BitmapPool pool = bitmapPool;
+        //inBitmap is supported by the platform region decoder since API 16
+        if(pool == null || Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN || options == null || options.inBitmap != null || options.inJustDecodeBounds)
+            return nativeDecoder.decodeRegion(rect, options);
+
+        int left = Math.max(0, rect.left);
+        int top = Math.max(0, rect.top);
+        int right = Math.min(getWidth(), rect.right);
+        int bottom = Math.min(getHeight(), rect.bottom);
+        if(right <= left || bottom <= top)
+            return nativeDecoder.decodeRegion(rect, options);
+
+        int sampleSize = BitmapUtils.getSampleSize(options.inSampleSize);
+        Bitmap.Config config = options.inPreferredConfig != null ? options.inPreferredConfig : Bitmap.Config.ARGB_8888;
+        int outWidth = RegionMath.getSampledSize(right - left, sampleSize);
+        int outHeight = RegionMath.getSampledSize(bottom - top, sampleSize);
+        Bitmap candidate = pool.get(outWidth, outHeight, config);
+        if(candidate == null){
+            //decode into a new mutable bitmap, so that it can go back to the pool once released
+            candidate = Bitmap.createBitmap(outWidth, outHeight, config);
+        }
+
+        options.inBitmap = candidate;
+        try {
+            return nativeDecoder.decodeRegion(rect, options);
+        } catch (IllegalArgumentException e) {
+            //the candidate can not be reused (e.g. the decoder picked another size or config): decode into a new bitmap
+            options.inBitmap = null;
+            pool.put(candidate);
+            return nativeDecoder.decodeRegion(rect, options);
+        } finally {
+            options.inBitmap = null;
+        }
+    }
+
+    @Override
+    public void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
     }
 
     @Override
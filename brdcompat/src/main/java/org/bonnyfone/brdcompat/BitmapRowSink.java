@@ -0,0 +1,20 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+
+/**
+ * RowSink which writes the rows into a mutable Bitmap
+ */
+class BitmapRowSink implements RowSink {
+
+    private final Bitmap bitmap;
+
+    BitmapRowSink(Bitmap bitmap){
+        this.bitmap = bitmap;
+    }
+
+    @Override
+    public void onRow(int y, int[] pixels, int width) {
+        bitmap.setPixels(pixels, 0, width, 0, y, width, 1);
+    }
+}
@@ -0,0 +1,46 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+
+/**
+ * Internal helpers shared by decoders, caches and pools
+ */
+final class BitmapUtils {
+
+    private BitmapUtils(){}
+
+    /**
+     * Returns the number of bytes used to store the pixels of the given bitmap.
+     * Bitmap.getByteCount() requires API 12, so the size is computed from the row bytes.
+     * @param bitmap
+     * @return
+     */
+    static int getBitmapBytes(Bitmap bitmap){
+        if(bitmap == null)
+            return 0;
+        return bitmap.getRowBytes() * bitmap.getHeight();
+    }
+
+    /**
+     * Returns the number of bytes per pixel of the given config (ARGB_8888 when unknown)
+     * @param config
+     * @return
+     */
+    static int getBytesPerPixel(Bitmap.Config config){
+        if(config == Bitmap.Config.ALPHA_8)
+            return 1;
+        else if(config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444)
+            return 2;
+        else
+            return 4;
+    }
+
+    /**
+     * Returns the effective sample size, as interpreted by BitmapFactory, for the given value
+     * @param inSampleSize
+     * @return
+     */
+    static int getSampleSize(int inSampleSize){
+        return inSampleSize >= 1 ? inSampleSize : 1;
+    }
+}
@@ -0,0 +1,74 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Build;
+
+/**
+ * Decorator which serves repeated decodeRegion() calls from a {@link RegionCache}
+ */
+class CachingRegionDecoder implements IBitmapRegionDecoder {
+
+    private final IBitmapRegionDecoder decoder;
+    private final RegionCache cache;
+    private final Object imageKey;
+
+    CachingRegionDecoder(IBitmapRegionDecoder decoder, RegionCache cache, Object imageKey){
+        this.decoder = decoder;
+        this.cache = cache;
+        this.imageKey = imageKey;
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        if(!isCacheable(options)){
+            return decoder.decodeRegion(rect, options);
+        }
+
+        RegionCache.Key key = new RegionCache.Key(imageKey, rect,
+                options != null ? BitmapUtils.getSampleSize(options.inSampleSize) : 1,
+                options != null ? options.inPreferredConfig : null);
+
+        Bitmap bitmap = cache.get(key);
+        if(bitmap == null){
+            bitmap = decoder.decodeRegion(rect, options);
+            if(bitmap != null){
+                cache.put(key, bitmap);
+            }
+        }
+        return bitmap;
+    }
+
+    /**
+     * Bounds-only decodes and decodes into a caller-supplied bitmap are never cached
+     */
+    static boolean isCacheable(BitmapFactory.Options options){
+        if(options == null)
+            return true;
+        if(options.inJustDecodeBounds)
+            return false;
+        return Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB || options.inBitmap == null;
+    }
+
+    @Override
+    public int getHeight() {
+        return decoder.getHeight();
+    }
+
+    @Override
+    public int getWidth() {
+        return decoder.getWidth();
+    }
+
+    @Override
+    public boolean isRecycled() {
+        return decoder.isRecycled();
+    }
+
+    @Override
+    public void recycle() {
+        cache.evictImage(imageKey);
+        decoder.recycle();
+    }
+}
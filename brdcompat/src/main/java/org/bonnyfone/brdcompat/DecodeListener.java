@@ -0,0 +1,46 @@
+package org.bonnyfone.brdcompat;
+
+/**
+ * Observes the work of the region decoders (see {@link BitmapRegionDecoderCompat#setDecodeListener(DecodeListener)}),
+ * e.g. to find slow images in the field. {@link DecodeMetrics} is a ready-made implementation.<br>
+ * Methods are invoked synchronously on the calling thread: implementations must be thread-safe and fast.
+ */
+public interface DecodeListener {
+
+    /**
+     * A decodeRegion() call
+     */
+    int OPERATION_DECODE_REGION = 0;
+
+    /**
+     * A decodeBestRegion() or decodeBestRegions() call
+     */
+    int OPERATION_DECODE_BEST_REGION = 1;
+
+    /**
+     * Called when a decoder has been created
+     * @param implementation the implementation in use (e.g. BitmapRegionDecoderNative, JpegRegionDecoder)
+     * @param sourceType the type of the source (path, fd, bytes, stream, pyramid)
+     * @param elapsedNanos the time spent creating the decoder
+     */
+    void onDecoderCreated(String implementation, String sourceType, long elapsedNanos);
+
+    /**
+     * Called when a decode completes, successfully or not
+     * @param implementation the implementation in use
+     * @param sourceType the type of the source
+     * @param operation one of the OPERATION_* constants
+     * @param rectArea the area, in pixels of the original image, of the decoded region
+     * @param sampleSize the sample size used
+     * @param elapsedNanos the wall time of the call
+     * @param outputBytes the size of the returned bitmaps, 0 if the decode failed
+     */
+    void onRegionDecoded(String implementation, String sourceType, int operation, long rectArea, int sampleSize, long elapsedNanos, long outputBytes);
+
+    /**
+     * Called when a decoder is recycled
+     * @param implementation the implementation in use
+     * @param sourceType the type of the source
+     */
+    void onDecoderRecycled(String implementation, String sourceType);
+}
@@ -0,0 +1,300 @@
+package org.bonnyfone.brdcompat;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Low-overhead {@link DecodeListener} which aggregates the decodes in lock-free counters and fixed-bucket
+ * latency histograms; {@link #snapshot()} returns a consistent-enough copy to log or upload.
+ */
+public class DecodeMetrics implements DecodeListener {
+
+    /**
+     * Upper bounds, in microseconds, of the latency buckets (the last bucket is unbounded)
+     */
+    static final long[] BUCKET_BOUNDS_MICROS = {500, 1000, 2000, 4000, 8000, 16000, 32000, 64000, 128000, 256000, 512000, 1024000};
+    static final int BUCKET_COUNT = BUCKET_BOUNDS_MICROS.length + 1;
+    private static final int OPERATION_COUNT = 2;
+
+    private final AtomicLong decodersCreated = new AtomicLong();
+    private final AtomicLong decodersRecycled = new AtomicLong();
+    private final AtomicLong creationNanos = new AtomicLong();
+    private final ConcurrentHashMap<String, AtomicLong> implementations = new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, AtomicLong> sourceTypes = new ConcurrentHashMap<String, AtomicLong>();
+
+    private final AtomicLongArray counts = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray failures = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray totalNanos = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray maxNanos = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray totalBytes = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray totalArea = new AtomicLongArray(OPERATION_COUNT);
+    private final AtomicLongArray histogram = new AtomicLongArray(OPERATION_COUNT * BUCKET_COUNT);
+
+    @Override
+    public void onDecoderCreated(String implementation, String sourceType, long elapsedNanos) {
+        decodersCreated.incrementAndGet();
+        creationNanos.addAndGet(elapsedNanos);
+        increment(implementations, implementation);
+        increment(sourceTypes, sourceType);
+    }
+
+    @Override
+    public void onRegionDecoded(String implementation, String sourceType, int operation, long rectArea, int sampleSize, long elapsedNanos, long outputBytes) {
+        if(operation < 0 || operation >= OPERATION_COUNT)
+            return;
+
+        counts.incrementAndGet(operation);
+        if(outputBytes <= 0)
+            failures.incrementAndGet(operation);
+        totalNanos.addAndGet(operation, elapsedNanos);
+        totalBytes.addAndGet(operation, outputBytes);
+        totalArea.addAndGet(operation, rectArea);
+        histogram.incrementAndGet(operation * BUCKET_COUNT + getBucket(elapsedNanos));
+
+        long max;
+        while(elapsedNanos > (max = maxNanos.get(operation)) && !maxNanos.compareAndSet(operation, max, elapsedNanos)){
+            //retry
+        }
+    }
+
+    @Override
+    public void onDecoderRecycled(String implementation, String sourceType) {
+        decodersRecycled.incrementAndGet();
+    }
+
+    static int getBucket(long elapsedNanos){
+        long micros = elapsedNanos / 1000;
+        for(int i = 0; i < BUCKET_BOUNDS_MICROS.length; i++){
+            if(micros < BUCKET_BOUNDS_MICROS[i])
+                return i;
+        }
+        return BUCKET_BOUNDS_MICROS.length;
+    }
+
+    private static void increment(ConcurrentHashMap<String, AtomicLong> counters, String key){
+        if(key == null)
+            return;
+        AtomicLong counter = counters.get(key);
+        if(counter == null){
+            AtomicLong created = new AtomicLong();
+            counter = counters.putIfAbsent(key, created);
+            if(counter == null)
+                counter = created;
+        }
+        counter.incrementAndGet();
+    }
+
+    private static Map<String, Long> copy(ConcurrentHashMap<String, AtomicLong> counters){
+        Map<String, Long> copy = new HashMap<String, Long>();
+        for(Map.Entry<String, AtomicLong> entry : counters.entrySet()){
+            copy.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(copy);
+    }
+
+    /**
+     * Returns a copy of the current values. Counters updated during the copy may be slightly out of sync.
+     * @return
+     */
+    public Snapshot snapshot(){
+        long[][] buckets = new long[OPERATION_COUNT][BUCKET_COUNT];
+        long[][] values = new long[OPERATION_COUNT][6];
+        for(int op = 0; op < OPERATION_COUNT; op++){
+            for(int b = 0; b < BUCKET_COUNT; b++){
+                buckets[op][b] = histogram.get(op * BUCKET_COUNT + b);
+            }
+            values[op][0] = counts.get(op);
+            values[op][1] = failures.get(op);
+            values[op][2] = totalNanos.get(op);
+            values[op][3] = maxNanos.get(op);
+            values[op][4] = totalBytes.get(op);
+            values[op][5] = totalArea.get(op);
+        }
+        return new Snapshot(decodersCreated.get(), decodersRecycled.get(), creationNanos.get(),
+                copy(implementations), copy(sourceTypes), values, buckets);
+    }
+
+    /**
+     * Resets all the counters
+     */
+    public void reset(){
+        decodersCreated.set(0);
+        decodersRecycled.set(0);
+        creationNanos.set(0);
+        implementations.clear();
+        sourceTypes.clear();
+        for(int op = 0; op < OPERATION_COUNT; op++){
+            counts.set(op, 0);
+            failures.set(op, 0);
+            totalNanos.set(op, 0);
+            maxNanos.set(op, 0);
+            totalBytes.set(op, 0);
+            totalArea.set(op, 0);
+        }
+        for(int i = 0; i < histogram.length(); i++){
+            histogram.set(i, 0);
+        }
+    }
+
+    /**
+     * Immutable copy of the metrics. Per-operation values take one of the DecodeListener.OPERATION_* constants.
+     */
+    public static class Snapshot {
+
+        private final long decodersCreated;
+        private final long decodersRecycled;
+        private final long creationNanos;
+        private final Map<String, Long> implementations;
+        private final Map<String, Long> sourceTypes;
+        private final long[][] values;
+        private final long[][] buckets;
+
+        Snapshot(long decodersCreated, long decodersRecycled, long creationNanos, Map<String, Long> implementations,
+                 Map<String, Long> sourceTypes, long[][] values, long[][] buckets){
+            this.decodersCreated = decodersCreated;
+            this.decodersRecycled = decodersRecycled;
+            this.creationNanos = creationNanos;
+            this.implementations = implementations;
+            this.sourceTypes = sourceTypes;
+            this.values = values;
+            this.buckets = buckets;
+        }
+
+        /**
+         * Returns the number of decoders created
+         */
+        public long getDecodersCreated() {
+            return decodersCreated;
+        }
+
+        /**
+         * Returns the number of decoders recycled
+         */
+        public long getDecodersRecycled() {
+            return decodersRecycled;
+        }
+
+        /**
+         * Returns the total time spent creating decoders
+         */
+        public long getCreationNanos() {
+            return creationNanos;
+        }
+
+        /**
+         * Returns the number of decoders created per implementation
+         */
+        public Map<String, Long> getImplementationCounts() {
+            return implementations;
+        }
+
+        /**
+         * Returns the number of decoders created per source type
+         */
+        public Map<String, Long> getSourceTypeCounts() {
+            return sourceTypes;
+        }
+
+        /**
+         * Returns the number of calls of the operation
+         */
+        public long getCount(int operation) {
+            return values[operation][0];
+        }
+
+        /**
+         * Returns the number of calls of the operation which returned no bitmap
+         */
+        public long getFailureCount(int operation) {
+            return values[operation][1];
+        }
+
+        /**
+         * Returns the total wall time of the operation
+         */
+        public long getTotalNanos(int operation) {
+            return values[operation][2];
+        }
+
+        /**
+         * Returns the slowest call of the operation
+         */
+        public long getMaxNanos(int operation) {
+            return values[operation][3];
+        }
+
+        /**
+         * Returns the total size of the bitmaps returned by the operation
+         */
+        public long getTotalOutputBytes(int operation) {
+            return values[operation][4];
+        }
+
+        /**
+         * Returns the total area, in pixels of the original images, decoded by the operation
+         */
+        public long getTotalRectArea(int operation) {
+            return values[operation][5];
+        }
+
+        /**
+         * Returns the number of calls of the operation per latency bucket (see {@link #getBucketBoundsMicros()})
+         */
+        public long[] getHistogram(int operation) {
+            return buckets[operation].clone();
+        }
+
+        /**
+         * Returns the upper bounds, in microseconds, of the latency buckets; the last bucket has no bound
+         */
+        public static long[] getBucketBoundsMicros() {
+            return BUCKET_BOUNDS_MICROS.clone();
+        }
+
+        /**
+         * Estimates a latency percentile of the operation from the histogram
+         * @param operation
+         * @param percentile between 0 and 100
+         * @return the upper bound, in microseconds, of the bucket holding the percentile
+         *         (capped to the maximum latency), 0 if there were no calls
+         */
+        public long getPercentileMicros(int operation, double percentile) {
+            long count = 0;
+            for(long c : buckets[operation]){
+                count += c;
+            }
+            if(count == 0)
+                return 0;
+
+            long rank = (long) Math.ceil(count * Math.max(0, Math.min(percentile, 100)) / 100);
+            long seen = 0;
+            for(int b = 0; b < BUCKET_BOUNDS_MICROS.length; b++){
+                seen += buckets[operation][b];
+                if(seen >= rank && seen > 0)
+                    return Math.min(BUCKET_BOUNDS_MICROS[b], getMaxNanos(operation) / 1000);
+            }
+            return getMaxNanos(operation) / 1000;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder("DecodeMetrics[decoders=").append(decodersCreated)
+                    .append(",implementations=").append(implementations)
+                    .append(",sources=").append(sourceTypes);
+            String[] names = {"decodeRegion", "decodeBestRegion"};
+            for(int op = 0; op < names.length; op++){
+                builder.append(',').append(names[op]).append("[count=").append(getCount(op))
+                        .append(",failures=").append(getFailureCount(op))
+                        .append(",p50=").append(getPercentileMicros(op, 50)).append("us")
+                        .append(",p95=").append(getPercentileMicros(op, 95)).append("us")
+                        .append(",max=").append(getMaxNanos(op) / 1000).append("us")
+                        .append(",bytes=").append(getTotalOutputBytes(op)).append(']');
+            }
+            return builder.append(']').toString();
+        }
+    }
+}
@@ -0,0 +1,89 @@
+package org.bonnyfone.brdcompat;
+
+/**
+ * Snapshot of the statistics of a pooled decoder (see BitmapRegionDecoderCompat.newPooledInstance(...))
+ */
+public class DecoderPoolStats {
+
+    private final int poolSize;
+    private final int busyCount;
+    private final int maxPoolSize;
+    private final int peakPoolSize;
+    private final long acquireCount;
+    private final long waitCount;
+    private final long totalWaitNanos;
+    private final long maxWaitNanos;
+
+    DecoderPoolStats(int poolSize, int busyCount, int maxPoolSize, int peakPoolSize, long acquireCount, long waitCount, long totalWaitNanos, long maxWaitNanos){
+        this.poolSize = poolSize;
+        this.busyCount = busyCount;
+        this.maxPoolSize = maxPoolSize;
+        this.peakPoolSize = peakPoolSize;
+        this.acquireCount = acquireCount;
+        this.waitCount = waitCount;
+        this.totalWaitNanos = totalWaitNanos;
+        this.maxWaitNanos = maxWaitNanos;
+    }
+
+    /**
+     * Returns the number of open decoders
+     */
+    public int getPoolSize() {
+        return poolSize;
+    }
+
+    /**
+     * Returns the number of decoders currently decoding
+     */
+    public int getBusyCount() {
+        return busyCount;
+    }
+
+    /**
+     * Returns the maximum number of decoders the pool may open
+     */
+    public int getMaxPoolSize() {
+        return maxPoolSize;
+    }
+
+    /**
+     * Returns the highest number of decoders open at the same time
+     */
+    public int getPeakPoolSize() {
+        return peakPoolSize;
+    }
+
+    /**
+     * Returns the number of decodeRegion() calls served
+     */
+    public long getAcquireCount() {
+        return acquireCount;
+    }
+
+    /**
+     * Returns the number of decodeRegion() calls which had to wait for a free decoder
+     */
+    public long getWaitCount() {
+        return waitCount;
+    }
+
+    /**
+     * Returns the total time spent waiting for a free decoder, in nanoseconds
+     */
+    public long getTotalWaitNanos() {
+        return totalWaitNanos;
+    }
+
+    /**
+     * Returns the longest time spent waiting for a free decoder, in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos;
+    }
+
+    @Override
+    public String toString() {
+        return "DecoderPoolStats[size=" + poolSize + ",busy=" + busyCount + ",max=" + maxPoolSize + ",peak=" + peakPoolSize
+                + ",acquires=" + acquireCount + ",waits=" + waitCount + ",waitMs=" + (totalWaitNanos / 1000000) + "]";
+    }
+}
@@ -0,0 +1,393 @@
+package org.bonnyfone.brdcompat;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.Build;
+import android.os.SystemClock;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Shares one decoder among all the users of the same image.<br>
+ * {@link #acquire(String, boolean)} returns a handle to the decoder of the file, opening it only if no handle is
+ * alive; recycle() on a handle releases it, and the decoder is recycled when its last handle is released.
+ * Recently released decoders can be kept open ("warm") for a short time, so that reopening a popular image
+ * is a lookup instead of a decoder construction; a background timer recycles them once they time out.
+ * Files are identified by path, size and modification time, file descriptors by device, inode, size, modification time and position (API 21+; older platforms get a private decoder).<br>
+ * Handles are regular BitmapRegionDecoderCompat instances: each one has its own caches, pool and recycled state.
+ */
+public class DecoderRegistry {
+
+    private static DecoderRegistry defaultRegistry;
+    private static Timer expiryTimer;
+
+    private final int maxWarmDecoders;
+    private final long warmTimeoutMillis;
+
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final LinkedHashMap<String, Entry> warm = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+
+    private long acquireCount;
+    private long sharedCount;
+    private long warmHitCount;
+    private boolean expiryScheduled;
+
+    /**
+     * @param maxWarmDecoders the maximum number of released decoders kept open (0 to recycle them immediately)
+     * @param warmTimeoutMillis how long a released decoder is kept open
+     */
+    public DecoderRegistry(int maxWarmDecoders, long warmTimeoutMillis){
+        this.maxWarmDecoders = Math.max(0, maxWarmDecoders);
+        this.warmTimeoutMillis = Math.max(0, warmTimeoutMillis);
+    }
+
+    /**
+     * Returns the registry shared by the whole process (4 warm decoders for up to 5 seconds)
+     * @return
+     */
+    public static synchronized DecoderRegistry getDefault(){
+        if(defaultRegistry == null){
+            defaultRegistry = new DecoderRegistry(4, 5000);
+        }
+        return defaultRegistry;
+    }
+
+    /**
+     * Returns a handle to the shared decoder of the file, opening it if needed.
+     * Call recycle() on the handle when done.
+     *
+     * @param pathName complete path name for the file to be decoded.
+     * @param isShareable see {@link BitmapRegionDecoderCompat#newInstance(String, boolean)}, used when the decoder is opened.
+     * @return a handle to the shared decoder.
+     * @throws java.io.IOException if the image format is not supported or can not be decoded.
+     */
+    public BitmapRegionDecoderCompat acquire(final String pathName, final boolean isShareable) throws IOException {
+        File file = new File(pathName);
+        String key = "path:" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        return acquire(key, new Opener() {
+            @Override
+            public BitmapRegionDecoderCompat open() throws IOException {
+                return BitmapRegionDecoderCompat.newInstance(pathName, isShareable);
+            }
+        });
+    }
+
+    /**
+     * Returns a handle to the shared decoder of the file descriptor, opening it if needed.
+     * Descriptors are identified on API 21+ only: older platforms always open a new decoder.
+     * Call recycle() on the handle when done.
+     *
+     * @param fd The file descriptor containing the data to decode.
+     * @param isShareable see {@link BitmapRegionDecoderCompat#newInstance(FileDescriptor, boolean)}, used when the decoder is opened.
+     * @return a handle to the shared decoder.
+     * @throws java.io.IOException if the image format is not supported or can not be decoded.
+     */
+    public BitmapRegionDecoderCompat acquire(final FileDescriptor fd, final boolean isShareable) throws IOException {
+        String key = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP ? getDescriptorKey(fd) : null;
+        if(key == null){
+            return BitmapRegionDecoderCompat.newInstance(fd, isShareable);
+        }
+        return acquire(key, new Opener() {
+            @Override
+            public BitmapRegionDecoderCompat open() throws IOException {
+                return BitmapRegionDecoderCompat.newInstance(fd, isShareable);
+            }
+        });
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static String getDescriptorKey(FileDescriptor fd){
+        try {
+            StructStat stat = Os.fstat(fd);
+            long position = Os.lseek(fd, 0, OsConstants.SEEK_CUR);
+            return "fd:" + stat.st_dev + ":" + stat.st_ino + ":" + stat.st_size + ":" + stat.st_mtime + ":" + position;
+        } catch (ErrnoException e) {
+            return null;
+        }
+    }
+
+    private interface Opener {
+        BitmapRegionDecoderCompat open() throws IOException;
+    }
+
+    private BitmapRegionDecoderCompat acquire(String key, Opener opener) throws IOException {
+        Entry entry;
+        boolean opening = false;
+        List<Entry> expired;
+        synchronized (this){
+            acquireCount++;
+            expired = removeExpired();
+            entry = entries.get(key);
+            if(entry == null){
+                entry = new Entry(key);
+                entries.put(key, entry);
+                opening = true;
+            }
+            else if(warm.remove(key) != null){
+                warmHitCount++;
+            }
+            else{
+                sharedCount++;
+            }
+            entry.refs++;
+        }
+        recycleAll(expired);
+
+        if(opening){
+            //open outside of the registry lock: the others wait on the entry
+            BitmapRegionDecoderCompat decoder = null;
+            IOException error = null;
+            try {
+                decoder = opener.open();
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                error = new IOException(e.toString());
+            }
+            synchronized (this){
+                if(decoder == null)
+                    entries.remove(key);
+            }
+            entry.setDecoder(decoder, error);
+        }
+
+        BitmapRegionDecoderCompat shared = entry.awaitDecoder();
+        if(shared == null){
+            synchronized (this){
+                entry.refs--;
+            }
+            throw entry.error != null ? entry.error : new IOException("Cannot open the decoder");
+        }
+        return shared.newSharedHandle(new Handle(entry));
+    }
+
+    private void release(Entry entry){
+        List<Entry> toRecycle;
+        synchronized (this){
+            entry.refs--;
+            if(entry.refs > 0)
+                return;
+
+            entry.releasedAt = SystemClock.uptimeMillis();
+            warm.put(entry.key, entry);
+            toRecycle = removeExpired();
+            scheduleExpiry();
+        }
+        recycleAll(toRecycle);
+    }
+
+    /**
+     * Recycles the warm decoders which timed out
+     */
+    private void expire(){
+        List<Entry> expired;
+        synchronized (this){
+            expired = removeExpired();
+        }
+        recycleAll(expired);
+    }
+
+    /**
+     * Schedules the expiration of the oldest warm decoder, if not already scheduled
+     */
+    private void scheduleExpiry(){
+        if(expiryScheduled || warm.isEmpty())
+            return;
+
+        long delay = warm.values().iterator().next().releasedAt + warmTimeoutMillis - SystemClock.uptimeMillis() + 1;
+        expiryScheduled = true;
+        getExpiryTimer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                List<Entry> expired;
+                synchronized (DecoderRegistry.this){
+                    expiryScheduled = false;
+                    expired = removeExpired();
+                    scheduleExpiry();
+                }
+                recycleAll(expired);
+            }
+        }, Math.max(0, delay));
+    }
+
+    private static synchronized Timer getExpiryTimer(){
+        if(expiryTimer == null){
+            expiryTimer = new Timer("DecoderRegistry", true);
+        }
+        return expiryTimer;
+    }
+
+    /**
+     * Removes the warm decoders which timed out or exceed the limit
+     */
+    private List<Entry> removeExpired(){
+        List<Entry> expired = null;
+        long now = SystemClock.uptimeMillis();
+        Iterator<Entry> it = warm.values().iterator();
+        while(it.hasNext()){
+            Entry entry = it.next();
+            if(warm.size() > maxWarmDecoders || now - entry.releasedAt > warmTimeoutMillis){
+                it.remove();
+                entries.remove(entry.key);
+                if(expired == null)
+                    expired = new ArrayList<Entry>();
+                expired.add(entry);
+            }
+        }
+        return expired;
+    }
+
+    private static void recycleAll(List<Entry> entries){
+        if(entries != null){
+            for(Entry entry : entries){
+                entry.decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Recycles all the warm decoders, e.g. when the memory is low. Decoders with live handles are not affected.
+     */
+    public void trim(){
+        List<Entry> trimmed;
+        synchronized (this){
+            trimmed = new ArrayList<Entry>(warm.values());
+            for(Entry entry : trimmed){
+                entries.remove(entry.key);
+            }
+            warm.clear();
+        }
+        recycleAll(trimmed);
+    }
+
+    /**
+     * Returns the number of open decoders (with live handles or warm)
+     */
+    public int getOpenCount(){
+        expire();
+        synchronized (this){
+            return entries.size();
+        }
+    }
+
+    /**
+     * Returns the number of warm decoders
+     */
+    public int getWarmCount(){
+        expire();
+        synchronized (this){
+            return warm.size();
+        }
+    }
+
+    @Override
+    public String toString() {
+        expire();
+        synchronized (this){
+            return "DecoderRegistry[open=" + entries.size() + ",warm=" + warm.size() + ",acquires=" + acquireCount
+                    + ",shared=" + sharedCount + ",warmHits=" + warmHitCount + "]";
+        }
+    }
+
+    private static final class Entry {
+        final String key;
+        int refs;
+        long releasedAt;
+        BitmapRegionDecoderCompat decoder;
+        IOException error;
+        boolean ready;
+
+        Entry(String key){
+            this.key = key;
+        }
+
+        synchronized void setDecoder(BitmapRegionDecoderCompat decoder, IOException error){
+            this.decoder = decoder;
+            this.error = error;
+            this.ready = true;
+            notifyAll();
+        }
+
+        synchronized BitmapRegionDecoderCompat awaitDecoder() throws IOException {
+            boolean interrupted = false;
+            while(!ready){
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+            return decoder;
+        }
+    }
+
+    /**
+     * Decoder of a handle: delegates to the internal decoder of the shared instance (the handle applies its own
+     * caches, budget and notifications), recycle() releases the reference
+     */
+    private final class Handle implements IBitmapRegionDecoder, PixelOutput {
+        private final Entry entry;
+        private volatile boolean released;
+
+        Handle(Entry entry){
+            this.entry = entry;
+        }
+
+        @Override
+        public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+            if(released)
+                throw new IllegalStateException("Cannot decode region: decoder is recycled");
+            return entry.decoder.getDecoder().decodeRegion(rect, options);
+        }
+
+        @Override
+        public boolean decodeRegion(Rect rect, int sampleSize, PixelBuffer output) {
+            if(released)
+                throw new IllegalStateException("Cannot decode region: decoder is recycled");
+            return PixelBuffer.decode(entry.decoder.getDecoder(), rect, sampleSize, output, null);
+        }
+
+        @Override
+        public int getHeight() {
+            return entry.decoder.getHeight();
+        }
+
+        @Override
+        public int getWidth() {
+            return entry.decoder.getWidth();
+        }
+
+        @Override
+        public boolean isRecycled() {
+            return released;
+        }
+
+        @Override
+        public void recycle() {
+            synchronized (this){
+                if(released)
+                    return;
+                released = true;
+            }
+            release(entry);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+/**
+ * Decorator which serves decodeRegion() calls from a {@link RegionDiskCache}, storing the regions it decodes
+ */
+class DiskCachingRegionDecoder implements IBitmapRegionDecoder {
+
+    private final IBitmapRegionDecoder decoder;
+    private final RegionDiskCache cache;
+    private final ImageSource source;
+    private final BitmapPool bitmapPool;
+
+    DiskCachingRegionDecoder(IBitmapRegionDecoder decoder, RegionDiskCache cache, ImageSource source, BitmapPool bitmapPool){
+        this.decoder = decoder;
+        this.cache = cache;
+        this.source = source;
+        this.bitmapPool = bitmapPool;
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        String fingerprint = null;
+        if(CachingRegionDecoder.isCacheable(options)){
+            try {
+                fingerprint = source.getFingerprint();
+            } catch (IOException e) {
+                //the source can not be identified: not cacheable
+            }
+        }
+        if(fingerprint == null){
+            return decoder.decodeRegion(rect, options);
+        }
+
+        int sampleSize = options != null ? BitmapUtils.getSampleSize(options.inSampleSize) : 1;
+        Bitmap.Config config = options != null ? options.inPreferredConfig : null;
+        Bitmap bitmap = cache.get(fingerprint, rect, sampleSize, config, bitmapPool);
+        if(bitmap != null){
+            if(options != null){
+                options.outWidth = bitmap.getWidth();
+                options.outHeight = bitmap.getHeight();
+            }
+            return bitmap;
+        }
+
+        bitmap = decoder.decodeRegion(rect, options);
+        if(bitmap != null){
+            cache.put(fingerprint, rect, sampleSize, config, bitmap);
+        }
+        return bitmap;
+    }
+
+    @Override
+    public int getHeight() {
+        return decoder.getHeight();
+    }
+
+    @Override
+    public int getWidth() {
+        return decoder.getWidth();
+    }
+
+    @Override
+    public boolean isRecycled() {
+        return decoder.isRecycled();
+    }
+
+    @Override
+    public void recycle() {
+        decoder.recycle();
+    }
+}
@@ -0,0 +1,106 @@
+package org.bonnyfone.brdcompat;
+
+/**
+ * Image metadata read from the image header, without decoding the image.<br>
+ * Obtain it with BitmapRegionDecoderCompat.getImageInfo(...).
+ */
+public class ImageInfo {
+
+    public static final String FORMAT_JPEG = "image/jpeg";
+    public static final String FORMAT_PNG = "image/png";
+    public static final String FORMAT_GIF = "image/gif";
+    public static final String FORMAT_WEBP = "image/webp";
+
+    /**
+     * EXIF orientation values (same as android.media.ExifInterface)
+     */
+    public static final int ORIENTATION_UNDEFINED = 0;
+    public static final int ORIENTATION_NORMAL = 1;
+    public static final int ORIENTATION_FLIP_HORIZONTAL = 2;
+    public static final int ORIENTATION_ROTATE_180 = 3;
+    public static final int ORIENTATION_FLIP_VERTICAL = 4;
+    public static final int ORIENTATION_TRANSPOSE = 5;
+    public static final int ORIENTATION_ROTATE_90 = 6;
+    public static final int ORIENTATION_TRANSVERSE = 7;
+    public static final int ORIENTATION_ROTATE_270 = 8;
+
+    private final String format;
+    private final int width;
+    private final int height;
+    private final int bitDepth;
+    private final boolean progressive;
+    private final boolean hasAlpha;
+    private final int orientation;
+
+    ImageInfo(String format, int width, int height, int bitDepth, boolean progressive, boolean hasAlpha, int orientation){
+        this.format = format;
+        this.width = width;
+        this.height = height;
+        this.bitDepth = bitDepth;
+        this.progressive = progressive;
+        this.hasAlpha = hasAlpha;
+        this.orientation = orientation;
+    }
+
+    /**
+     * Returns the mime type of the image (one of the FORMAT_* constants)
+     * @return
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the image's width, as stored (EXIF orientation not applied)
+     * @return
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Returns the image's height, as stored (EXIF orientation not applied)
+     * @return
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Returns the number of bits per sample (per palette index for indexed images), or 0 if unknown
+     * @return
+     */
+    public int getBitDepth() {
+        return bitDepth;
+    }
+
+    /**
+     * Returns true if the image is progressive (JPEG) or interlaced (PNG, GIF)
+     * @return
+     */
+    public boolean isProgressive() {
+        return progressive;
+    }
+
+    /**
+     * Returns true if the image declares an alpha channel or transparent colors (PNG tRNS, GIF transparency)
+     * @return
+     */
+    public boolean hasAlpha() {
+        return hasAlpha;
+    }
+
+    /**
+     * Returns the EXIF orientation (one of the ORIENTATION_* constants), ORIENTATION_UNDEFINED if not available
+     * @return
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    @Override
+    public String toString() {
+        return "ImageInfo[" + format + "," + width + "x" + height + ",bitDepth=" + bitDepth + ",progressive=" + progressive
+                + ",alpha=" + hasAlpha + ",orientation=" + orientation + "]";
+    }
+}
@@ -0,0 +1,335 @@
+package org.bonnyfone.brdcompat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads the image metadata from the headers: JPEG SOFn (and EXIF orientation), PNG IHDR (and tRNS),
+ * GIF screen and first image descriptors, WebP VP8/VP8L/VP8X.
+ * Only the first bytes of the image are read; JPEG segments and PNG chunks which are not needed are skipped.
+ */
+final class ImageProber {
+
+    /**
+     * Max number of bytes read or skipped: the frame header of a JPEG may follow large EXIF, ICC and XMP segments.
+     * The prober never goes past it, so a stream marked with this limit can always be reset
+     */
+    static final int PROBE_LIMIT = 256 * 1024;
+
+    private static final int EXIF_ORIENTATION_TAG = 0x0112;
+
+    private final InputStream in;
+    private int consumed;
+
+    private ImageProber(InputStream in){
+        this.in = in;
+    }
+
+    /**
+     * Reads the image metadata from the beginning of the stream
+     * @param in the stream, positioned at the beginning of the image; it is left in an undefined position
+     * @return the metadata, or null if the format is not recognized
+     * @throws IOException if the stream can not be read
+     */
+    static ImageInfo probe(InputStream in) throws IOException {
+        ImageProber prober = new ImageProber(in);
+        try {
+            return prober.probe();
+        } catch (EOFException e) {
+            return null;
+        }
+    }
+
+    private ImageInfo probe() throws IOException {
+        int b0 = read();
+        int b1 = read();
+        if(b0 == 0xFF && b1 == 0xD8)
+            return probeJpeg();
+        if(b0 == 0x89 && b1 == 'P')
+            return probePng();
+        if(b0 == 'G' && b1 == 'I')
+            return probeGif();
+        if(b0 == 'R' && b1 == 'I')
+            return probeWebp();
+        return null;
+    }
+
+    private ImageInfo probeJpeg() throws IOException {
+        int orientation = ImageInfo.ORIENTATION_UNDEFINED;
+        while(consumed < PROBE_LIMIT){
+            //find the next marker
+            int marker = read();
+            if(marker != 0xFF)
+                continue;
+            while(marker == 0xFF){
+                marker = read();
+            }
+            if(marker == 0x00 || marker == 0x01 || (marker >= 0xD0 && marker <= 0xD8))
+                continue;
+            if(marker == 0xD9 || marker == 0xDA)
+                return null; //no frame header before the scan
+
+            int length = readU16BE() - 2;
+            if(length < 0)
+                return null;
+
+            if(isSofMarker(marker)){
+                int precision = read();
+                int height = readU16BE();
+                int width = readU16BE();
+                boolean progressive = marker == 0xC2 || marker == 0xC6 || marker == 0xCA || marker == 0xCE;
+                return new ImageInfo(ImageInfo.FORMAT_JPEG, width, height, precision, progressive, false, orientation);
+            }
+            else if(marker == 0xE1 && orientation == ImageInfo.ORIENTATION_UNDEFINED && length >= 14){
+                byte[] segment = new byte[length];
+                readFully(segment);
+                orientation = parseExifOrientation(segment);
+            }
+            else{
+                skip(length);
+            }
+        }
+        return null;
+    }
+
+    private static boolean isSofMarker(int marker){
+        return marker >= 0xC0 && marker <= 0xCF && marker != 0xC4 && marker != 0xC8 && marker != 0xCC;
+    }
+
+    /**
+     * Returns the orientation stored in IFD0 of the APP1 Exif segment, or ORIENTATION_UNDEFINED
+     */
+    static int parseExifOrientation(byte[] segment){
+        if(segment[0] != 'E' || segment[1] != 'x' || segment[2] != 'i' || segment[3] != 'f' || segment[4] != 0 || segment[5] != 0)
+            return ImageInfo.ORIENTATION_UNDEFINED;
+
+        int tiff = 6;
+        boolean littleEndian = segment[tiff] == 'I' && segment[tiff + 1] == 'I';
+        if(!littleEndian && !(segment[tiff] == 'M' && segment[tiff + 1] == 'M'))
+            return ImageInfo.ORIENTATION_UNDEFINED;
+
+        long ifd = tiff + (getInt(segment, tiff + 4, littleEndian) & 0xFFFFFFFFL);
+        if(ifd + 2 > segment.length)
+            return ImageInfo.ORIENTATION_UNDEFINED;
+
+        int entries = getShort(segment, (int) ifd, littleEndian);
+        for(int i = 0; i < entries; i++){
+            int entry = (int) ifd + 2 + i * 12;
+            if(entry + 12 > segment.length)
+                break;
+            if(getShort(segment, entry, littleEndian) == EXIF_ORIENTATION_TAG){
+                int value = getShort(segment, entry + 8, littleEndian);
+                return value >= ImageInfo.ORIENTATION_NORMAL && value <= ImageInfo.ORIENTATION_ROTATE_270 ? value : ImageInfo.ORIENTATION_UNDEFINED;
+            }
+        }
+        return ImageInfo.ORIENTATION_UNDEFINED;
+    }
+
+    private static int getShort(byte[] b, int p, boolean littleEndian){
+        return littleEndian ? (b[p] & 0xFF) | ((b[p + 1] & 0xFF) << 8) : ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+    }
+
+    private static int getInt(byte[] b, int p, boolean littleEndian){
+        return littleEndian ? getShort(b, p, true) | (getShort(b, p + 2, true) << 16) : (getShort(b, p, false) << 16) | getShort(b, p + 2, false);
+    }
+
+    private ImageInfo probePng() throws IOException {
+        //signature (8) + IHDR length (4) + type (4)
+        skip(6 + 4);
+        if(read() != 'I' || read() != 'H' || read() != 'D' || read() != 'R')
+            return null;
+
+        int width = readU32BE();
+        int height = readU32BE();
+        int bitDepth = read();
+        int colorType = read();
+        read(); //compression
+        read(); //filter
+        boolean interlaced = read() != 0;
+        boolean alpha = colorType == PngReader.COLOR_GREY_ALPHA || colorType == PngReader.COLOR_RGBA || hasPngTransparency();
+        return new ImageInfo(ImageInfo.FORMAT_PNG, width, height, bitDepth, interlaced, alpha, ImageInfo.ORIENTATION_UNDEFINED);
+    }
+
+    /**
+     * Looks for a tRNS chunk between IHDR and the first IDAT.
+     * Returns true, to be safe, if the chunks can not be read within the probe limit.
+     */
+    private boolean hasPngTransparency() throws IOException {
+        try {
+            skip(4); //IHDR crc
+            while(true){
+                int length = readU32BE();
+                int t0 = read(), t1 = read(), t2 = read(), t3 = read();
+                if(t0 == 't' && t1 == 'R' && t2 == 'N' && t3 == 'S')
+                    return true;
+                if(t0 == 'I' && t1 == 'D' && t2 == 'A' && t3 == 'T')
+                    return false;
+                if(t0 == 'I' && t1 == 'E' && t2 == 'N' && t3 == 'D')
+                    return false;
+                if(length < 0 || (long) consumed + length + 4 > PROBE_LIMIT)
+                    return true;
+                skip(length + 4);
+            }
+        } catch (EOFException e) {
+            return true;
+        }
+    }
+
+    private ImageInfo probeGif() throws IOException {
+        if(read() != 'F')
+            return null;
+        skip(3); //87a / 89a
+        int width = readU16LE();
+        int height = readU16LE();
+        int packed = read();
+        int bitDepth = (packed & 0x07) + 1;
+
+        //transparency from the graphic control extension, interlace from the descriptor of the first image;
+        //transparency is assumed if the blocks can not be read within the probe limit
+        boolean alpha = false;
+        boolean interlaced = false;
+        try {
+            skip(2); //background color, aspect ratio
+            if((packed & 0x80) != 0){
+                skip(3 << bitDepth); //global color table
+            }
+            while(true){
+                int block = read();
+                if(block == 0x21){
+                    int label = read();
+                    if(label == 0xF9){
+                        int size = read();
+                        if(size >= 1){
+                            alpha |= (read() & 0x01) != 0;
+                            skip(size - 1);
+                        }
+                        else{
+                            skip(size);
+                        }
+                    }
+                    skipGifSubBlocks();
+                }
+                else if(block == 0x2C){
+                    skip(8); //position and size
+                    interlaced = (read() & 0x40) != 0;
+                    break;
+                }
+                else{
+                    break; //trailer or unknown block
+                }
+                if(consumed > PROBE_LIMIT){
+                    alpha = true;
+                    break;
+                }
+            }
+        } catch (EOFException e) {
+            alpha = true;
+        }
+        return new ImageInfo(ImageInfo.FORMAT_GIF, width, height, bitDepth, interlaced, alpha, ImageInfo.ORIENTATION_UNDEFINED);
+    }
+
+    private void skipGifSubBlocks() throws IOException {
+        int size;
+        while((size = read()) != 0 && consumed < PROBE_LIMIT){
+            skip(size);
+        }
+    }
+
+    private ImageInfo probeWebp() throws IOException {
+        if(read() != 'F' || read() != 'F')
+            return null;
+        skip(4); //RIFF size
+        if(read() != 'W' || read() != 'E' || read() != 'B' || read() != 'P')
+            return null;
+
+        int c0 = read(), c1 = read(), c2 = read(), c3 = read();
+        skip(4); //chunk size
+        if(c0 != 'V' || c1 != 'P' || c2 != '8')
+            return null;
+
+        if(c3 == ' '){
+            //lossy: frame tag (3), start code (3), 14-bit dimensions
+            skip(3);
+            if(read() != 0x9D || read() != 0x01 || read() != 0x2A)
+                return null;
+            int width = readU16LE() & 0x3FFF;
+            int height = readU16LE() & 0x3FFF;
+            return new ImageInfo(ImageInfo.FORMAT_WEBP, width, height, 8, false, false, ImageInfo.ORIENTATION_UNDEFINED);
+        }
+        else if(c3 == 'L'){
+            if(read() != 0x2F)
+                return null;
+            int bits = readU16LE() | (readU16LE() << 16);
+            int width = (bits & 0x3FFF) + 1;
+            int height = ((bits >>> 14) & 0x3FFF) + 1;
+            boolean alpha = ((bits >>> 28) & 0x01) != 0;
+            return new ImageInfo(ImageInfo.FORMAT_WEBP, width, height, 8, false, alpha, ImageInfo.ORIENTATION_UNDEFINED);
+        }
+        else if(c3 == 'X'){
+            int flags = read();
+            skip(3);
+            int width = (read() | (read() << 8) | (read() << 16)) + 1;
+            int height = (read() | (read() << 8) | (read() << 16)) + 1;
+            boolean alpha = (flags & 0x10) != 0;
+            return new ImageInfo(ImageInfo.FORMAT_WEBP, width, height, 8, false, alpha, ImageInfo.ORIENTATION_UNDEFINED);
+        }
+        return null;
+    }
+
+    private int read() throws IOException {
+        checkLimit(1);
+        int b = in.read();
+        if(b < 0)
+            throw new EOFException();
+        consumed++;
+        return b;
+    }
+
+    private void readFully(byte[] buffer) throws IOException {
+        checkLimit(buffer.length);
+        int done = 0;
+        while(done < buffer.length){
+            int n = in.read(buffer, done, buffer.length - done);
+            if(n < 0)
+                throw new EOFException();
+            done += n;
+        }
+        consumed += done;
+    }
+
+    private void skip(int count) throws IOException {
+        checkLimit(count);
+        int remaining = count;
+        while(remaining > 0){
+            long n = in.skip(remaining);
+            if(n <= 0){
+                if(in.read() < 0)
+                    throw new EOFException();
+                n = 1;
+            }
+            remaining -= n;
+        }
+        consumed += count;
+    }
+
+    /**
+     * Handles the data past the probe limit as the end of the stream
+     */
+    private void checkLimit(int count) throws EOFException {
+        if((long) consumed + count > PROBE_LIMIT)
+            throw new EOFException();
+    }
+
+    private int readU16BE() throws IOException {
+        return (read() << 8) | read();
+    }
+
+    private int readU16LE() throws IOException {
+        return read() | (read() << 8);
+    }
+
+    private int readU32BE() throws IOException {
+        return (readU16BE() << 16) | readU16BE();
+    }
+}
@@ -0,0 +1,421 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+
+/**
+ * Replayable source of encoded image data.<br>
+ * Files and file descriptors are memory-mapped on demand; byte arrays are wrapped; non-seekable input streams
+ * are spooled once (into a direct buffer, or a memory-mapped temp file when large) so that they can be read
+ * again by every decode without further copies.
+ */
+abstract class ImageSource {
+
+    static final String TYPE_PATH = "path";
+    static final String TYPE_FILE_DESCRIPTOR = "fd";
+    static final String TYPE_BYTE_ARRAY = "bytes";
+    static final String TYPE_STREAM = "stream";
+
+    /**
+     * Streams up to this size are spooled into a direct buffer, bigger streams into a temp file
+     */
+    private static final int SPOOL_IN_MEMORY_LIMIT = 1024 * 1024;
+    private static final int SPOOL_CHUNK_SIZE = 16 * 1024;
+
+    private static final int HEADER_BUFFER_SIZE = 8 * 1024;
+
+    private ByteBuffer buffer;
+    private ImageInfo imageInfo;
+    private String fingerprint;
+
+    /**
+     * Returns a view of the whole encoded data, positioned at 0.
+     * Every call returns an independent view (position and limit) over the same memory, which may be writable:
+     * callers must not write through it.
+     * @return
+     * @throws IOException
+     */
+    synchronized ByteBuffer getBuffer() throws IOException {
+        if(buffer == null){
+            buffer = createBuffer();
+        }
+        return buffer.duplicate();
+    }
+
+    /**
+     * Returns a new stream over the encoded data
+     * @return
+     * @throws IOException
+     */
+    InputStream openStream() throws IOException {
+        return new ByteBufferInputStream(getBuffer());
+    }
+
+    /**
+     * Returns the image metadata read from the header (cached), or null if the format is not recognized
+     * @return
+     * @throws IOException
+     */
+    synchronized ImageInfo getImageInfo() throws IOException {
+        if(imageInfo == null){
+            if(buffer == null && this instanceof PathSource){
+                //just the headers are needed: do not map the whole file
+                InputStream is = new BufferedInputStream(new FileInputStream(((PathSource) this).pathName), HEADER_BUFFER_SIZE);
+                try {
+                    imageInfo = ImageProber.probe(is);
+                } finally {
+                    is.close();
+                }
+            }
+            else{
+                imageInfo = ImageProber.probe(openStream());
+            }
+        }
+        return imageInfo;
+    }
+
+    /**
+     * Returns an identity of the encoded data which is stable across processes (cached), used as disk cache key
+     * @return
+     * @throws IOException
+     */
+    synchronized String getFingerprint() throws IOException {
+        if(fingerprint == null){
+            fingerprint = createFingerprint();
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Hashes the whole content; sources which can be identified more cheaply override this
+     */
+    String createFingerprint() throws IOException {
+        MessageDigest digest = RegionDiskCache.newDigest();
+        ByteBuffer data = getBuffer();
+        int length = data.remaining();
+        digest.update(data);
+        return getType() + ":" + length + ":" + RegionDiskCache.toHex(digest.digest());
+    }
+
+    /**
+     * Decodes the image with BitmapFactory, using the most direct entry point for the source
+     * @param opts
+     * @return the decoded bitmap, or null
+     */
+    abstract Bitmap decode(BitmapFactory.Options opts);
+
+    /**
+     * Creates a platform (API 10+) region decoder, using the most direct entry point for the source
+     * @param isShareable
+     * @return
+     * @throws IOException
+     */
+    abstract IBitmapRegionDecoder newNativeDecoder(boolean isShareable) throws IOException;
+
+    /**
+     * Identity of the image, suitable as cache key
+     * @return
+     */
+    abstract Object getIdentity();
+
+    /**
+     * Short description of the source type (path, fd, bytes, stream)
+     * @return
+     */
+    abstract String getType();
+
+    abstract ByteBuffer createBuffer() throws IOException;
+
+    /**
+     * Releases the mapping/spooled data. The source must not be used afterwards.
+     */
+    synchronized void release(){
+        buffer = null;
+    }
+
+    static ImageSource fromPath(String pathName){
+        return new PathSource(pathName);
+    }
+
+    static ImageSource fromFileDescriptor(FileDescriptor fd){
+        return new FileDescriptorSource(fd);
+    }
+
+    static ImageSource fromByteArray(byte[] data, int offset, int length){
+        return new ByteArraySource(data, offset, length);
+    }
+
+    /**
+     * Spools the remaining content of the stream. The stream is not closed.
+     * @param is
+     * @return
+     * @throws IOException
+     */
+    static ImageSource fromStream(InputStream is) throws IOException {
+        return new SpooledSource(spool(is));
+    }
+
+    private static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer spool(InputStream is) throws IOException {
+        byte[] chunk = new byte[SPOOL_CHUNK_SIZE];
+        ByteBuffer memory = ByteBuffer.allocateDirect(Math.min(SPOOL_IN_MEMORY_LIMIT, Math.max(SPOOL_CHUNK_SIZE, is.available())));
+
+        int read;
+        while((read = is.read(chunk)) != -1){
+            if(memory.remaining() < read){
+                if(memory.capacity() >= SPOOL_IN_MEMORY_LIMIT){
+                    return spoolToFile(memory, chunk, read, is);
+                }
+
+                ByteBuffer bigger = ByteBuffer.allocateDirect(Math.min(SPOOL_IN_MEMORY_LIMIT, Math.max(memory.capacity() * 2, memory.position() + read)));
+                memory.flip();
+                bigger.put(memory);
+                memory = bigger;
+                if(memory.remaining() < read){
+                    return spoolToFile(memory, chunk, read, is);
+                }
+            }
+            memory.put(chunk, 0, read);
+        }
+
+        memory.flip();
+        return memory.slice();
+    }
+
+    /**
+     * Moves the data spooled so far, plus the rest of the stream, into a temp file and maps it
+     */
+    private static ByteBuffer spoolToFile(ByteBuffer spooled, byte[] chunk, int pending, InputStream is) throws IOException {
+        File file = File.createTempFile("brdcompat", ".spool");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            FileChannel channel = raf.getChannel();
+            spooled.flip();
+            while(spooled.hasRemaining()){
+                channel.write(spooled);
+            }
+
+            int read = pending;
+            do {
+                ByteBuffer wrapped = ByteBuffer.wrap(chunk, 0, read);
+                while(wrapped.hasRemaining()){
+                    channel.write(wrapped);
+                }
+            } while((read = is.read(chunk)) != -1);
+
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+            //the mapping stays valid after the file is unlinked
+            file.delete();
+        }
+    }
+
+    private static final class PathSource extends ImageSource {
+        private final String pathName;
+
+        PathSource(String pathName){
+            this.pathName = pathName;
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options opts) {
+            return BitmapFactory.decodeFile(pathName, opts);
+        }
+
+        @Override
+        IBitmapRegionDecoder newNativeDecoder(boolean isShareable) throws IOException {
+            return BitmapRegionDecoderNative.newInstance(pathName, isShareable);
+        }
+
+        @Override
+        Object getIdentity() {
+            return pathName;
+        }
+
+        @Override
+        String getType() {
+            return TYPE_PATH;
+        }
+
+        @Override
+        ByteBuffer createBuffer() throws IOException {
+            return mapFile(new File(pathName));
+        }
+
+        @Override
+        String createFingerprint() throws IOException {
+            File file = new File(pathName);
+            if(!file.isFile())
+                throw new IOException("Cannot read " + pathName);
+            return TYPE_PATH + ":" + file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+        }
+    }
+
+    private static final class FileDescriptorSource extends ImageSource {
+        private final FileDescriptor fd;
+        /**
+         * Keeps the stream (and so the descriptor) reachable: it is never closed since the descriptor belongs to the caller
+         */
+        private FileInputStream fis;
+
+        FileDescriptorSource(FileDescriptor fd){
+            this.fd = fd;
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options opts) {
+            return BitmapFactory.decodeFileDescriptor(fd, null, opts);
+        }
+
+        @Override
+        IBitmapRegionDecoder newNativeDecoder(boolean isShareable) throws IOException {
+            return BitmapRegionDecoderNative.newInstance(fd, isShareable);
+        }
+
+        @Override
+        Object getIdentity() {
+            return fd;
+        }
+
+        @Override
+        String getType() {
+            return TYPE_FILE_DESCRIPTOR;
+        }
+
+        @Override
+        ByteBuffer createBuffer() throws IOException {
+            if(fis == null){
+                fis = new FileInputStream(fd);
+            }
+            //map from the current position, which is left unchanged
+            FileChannel channel = fis.getChannel();
+            long position = channel.position();
+            return channel.map(FileChannel.MapMode.READ_ONLY, position, channel.size() - position);
+        }
+    }
+
+    private static final class ByteArraySource extends ImageSource {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+        private final ByteRange identity;
+
+        ByteArraySource(byte[] data, int offset, int length){
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.identity = new ByteRange(data, offset, length);
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options opts) {
+            return BitmapFactory.decodeByteArray(data, offset, length, opts);
+        }
+
+        @Override
+        IBitmapRegionDecoder newNativeDecoder(boolean isShareable) throws IOException {
+            return BitmapRegionDecoderNative.newInstance(data, offset, length, isShareable);
+        }
+
+        @Override
+        Object getIdentity() {
+            return identity;
+        }
+
+        @Override
+        String getType() {
+            return TYPE_BYTE_ARRAY;
+        }
+
+        @Override
+        ByteBuffer createBuffer() {
+            return ByteBuffer.wrap(data, offset, length).slice();
+        }
+    }
+
+    /**
+     * Identity of a range of an array: images at different offsets of the same array are different images
+     */
+    private static final class ByteRange {
+        private final byte[] data;
+        private final int offset;
+        private final int length;
+
+        ByteRange(byte[] data, int offset, int length){
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof ByteRange))
+                return false;
+            ByteRange other = (ByteRange) o;
+            return data == other.data && offset == other.offset && length == other.length;
+        }
+
+        @Override
+        public int hashCode() {
+            return (System.identityHashCode(data) * 31 + offset) * 31 + length;
+        }
+    }
+
+    private static final class SpooledSource extends ImageSource {
+        private final ByteBuffer spooled;
+
+        SpooledSource(ByteBuffer spooled){
+            this.spooled = spooled;
+        }
+
+        @Override
+        Bitmap decode(BitmapFactory.Options opts) {
+            try {
+                return BitmapFactory.decodeStream(openStream(), null, opts);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+
+        @Override
+        IBitmapRegionDecoder newNativeDecoder(boolean isShareable) throws IOException {
+            return BitmapRegionDecoderNative.newInstance(openStream(), isShareable);
+        }
+
+        @Override
+        Object getIdentity() {
+            return this;
+        }
+
+        @Override
+        String getType() {
+            return TYPE_STREAM;
+        }
+
+        @Override
+        ByteBuffer createBuffer() {
+            return spooled;
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package org.bonnyfone.brdcompat;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Lossless compressed-domain crop of baseline JPEG images.<br>
+ * The quantized coefficients of the MCUs covering a region are entropy-decoded (no dequantization, no IDCT)
+ * and written, with the original quantization tables, as a small standalone baseline JPEG that BitmapFactory
+ * can decode in the time of a tile instead of the whole image. The crop is aligned to the MCU grid: the caller
+ * trims the decoded image to the exact region.<br>
+ * The original huffman tables may lack the codes of the new DC differences at the crop edges, so the data is
+ * re-encoded with the standard tables of the JPEG specification (Annex K.3), which cover all the baseline symbols.
+ */
+final class JpegCropper {
+
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+            0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+            0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+            0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+            0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+            0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+            0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+            0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+            0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+            0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+            0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+            0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+            0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+            0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+            0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+            0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+            0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+            0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+            0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+            0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+            0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+            0xf9, 0xfa
+    };
+
+    private static final HuffmanCode DC_LUMINANCE = new HuffmanCode(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private static final HuffmanCode DC_CHROMINANCE = new HuffmanCode(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private static final HuffmanCode AC_LUMINANCE = new HuffmanCode(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private static final HuffmanCode AC_CHROMINANCE = new HuffmanCode(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    /**
+     * Dequantization with this table leaves the coefficients quantized
+     */
+    private static final int[] UNIT_QUANT = new int[64];
+    static {
+        Arrays.fill(UNIT_QUANT, 1);
+    }
+
+    private final JpegReader reader;
+
+    JpegCropper(JpegReader reader){
+        this.reader = reader;
+    }
+
+    /**
+     * Writes the MCUs covering the region [left, right) x [top, bottom) as a standalone JPEG image
+     * @param bounds receives the bounds of the cropped image in the source image (left, top, right, bottom)
+     * @return the encoded image
+     * @throws IOException if the image data is corrupted
+     */
+    byte[] crop(int left, int top, int right, int bottom, int[] bounds) throws IOException {
+        JpegReader.Component[] components = reader.components;
+        //with subsampled chroma, keep one MCU around the region: the upsampling at the edges reads the neighbors
+        int margin = reader.maxH > 1 || reader.maxV > 1 ? 1 : 0;
+        int colStart = Math.max(0, left / reader.mcuWidth - margin);
+        int colEnd = Math.min(reader.mcusX - 1, (right - 1) / reader.mcuWidth + margin);
+        int rowStart = Math.max(0, top / reader.mcuHeight - margin);
+        int rowEnd = Math.min(reader.mcusY - 1, (bottom - 1) / reader.mcuHeight + margin);
+        int cropLeft = colStart * reader.mcuWidth;
+        int cropTop = rowStart * reader.mcuHeight;
+        int cropWidth = Math.min((colEnd + 1) * reader.mcuWidth, reader.width) - cropLeft;
+        int cropHeight = Math.min((rowEnd + 1) * reader.mcuHeight, reader.height) - cropTop;
+
+        //the share of the source scan covered by the crop, plus the headers: the encoder grows if the estimate is short
+        long cropMcus = (long) (colEnd - colStart + 1) * (rowEnd - rowStart + 1);
+        long scanEstimate = reader.getScanLength() * cropMcus / ((long) reader.mcusX * reader.mcusY);
+        Encoder encoder = new Encoder((int) scanEstimate + 1024, components.length);
+        writeHeaders(encoder, cropWidth, cropHeight);
+
+        int[] coefficients = new int[64];
+        JpegReader.ScanState state = reader.seek(rowStart * reader.mcusX);
+        for(int row = rowStart; row <= rowEnd; row++){
+            int lastMcu = row == rowEnd ? colEnd : reader.mcusX - 1;
+            for(int mcuX = 0; mcuX <= lastMcu; mcuX++){
+                state.beginMcu();
+                boolean inside = mcuX >= colStart && mcuX <= colEnd;
+                for(int c = 0; c < components.length; c++){
+                    int blocks = components[c].h * components[c].v;
+                    for(int b = 0; b < blocks; b++){
+                        if(inside){
+                            state.decodeBlock(c, coefficients, UNIT_QUANT);
+                            encoder.encodeBlock(c, coefficients, c == 0 ? DC_LUMINANCE : DC_CHROMINANCE, c == 0 ? AC_LUMINANCE : AC_CHROMINANCE);
+                        }
+                        else{
+                            state.skipBlock(c);
+                        }
+                    }
+                }
+            }
+            if(row < rowEnd){
+                reader.addRowCheckpoint(row + 1, state);
+            }
+        }
+        encoder.flushBits();
+        encoder.writeMarker(0xD9);
+
+        bounds[0] = cropLeft;
+        bounds[1] = cropTop;
+        bounds[2] = cropLeft + cropWidth;
+        bounds[3] = cropTop + cropHeight;
+        return encoder.toByteArray();
+    }
+
+    private void writeHeaders(Encoder out, int cropWidth, int cropHeight){
+        JpegReader.Component[] components = reader.components;
+        out.writeMarker(0xD8);
+
+        if(reader.rgb){
+            //Adobe segment, transform 0: the components are not YCbCr
+            out.writeMarker(0xEE);
+            out.writeU16(14);
+            out.writeBytes(new int[]{'A', 'd', 'o', 'b', 'e', 0, 100, 0, 0, 0, 0, 0});
+        }
+        else{
+            out.writeMarker(0xE0);
+            out.writeU16(16);
+            out.writeBytes(new int[]{'J', 'F', 'I', 'F', 0, 1, 1, 0, 0, 1, 0, 1, 0, 0});
+        }
+
+        boolean wideTables = false;
+        for(int t = 0; t < reader.quantTables.length; t++){
+            int[] table = reader.quantTables[t];
+            if(table == null)
+                continue;
+            boolean wide = false;
+            for(int value : table){
+                wide |= value > 255;
+            }
+            wideTables |= wide;
+            out.writeMarker(0xDB);
+            out.writeU16(2 + 1 + (wide ? 128 : 64));
+            out.writeByte((wide ? 0x10 : 0) | t);
+            for(int k = 0; k < 64; k++){
+                int value = table[JpegReader.ZIGZAG[k]];
+                if(wide)
+                    out.writeU16(value);
+                else
+                    out.writeByte(value);
+            }
+        }
+
+        //16-bit quantization tables need the extended sequential frame
+        out.writeMarker(wideTables ? 0xC1 : 0xC0);
+        out.writeU16(8 + components.length * 3);
+        out.writeByte(8);
+        out.writeU16(cropHeight);
+        out.writeU16(cropWidth);
+        out.writeByte(components.length);
+        for(JpegReader.Component component : components){
+            out.writeByte(component.id);
+            out.writeByte((component.h << 4) | component.v);
+            out.writeByte(component.tq);
+        }
+
+        writeHuffmanTable(out, 0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        writeHuffmanTable(out, 0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        if(components.length > 1){
+            writeHuffmanTable(out, 0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+            writeHuffmanTable(out, 0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+        }
+
+        out.writeMarker(0xDA);
+        out.writeU16(6 + components.length * 2);
+        out.writeByte(components.length);
+        for(int c = 0; c < components.length; c++){
+            out.writeByte(components[c].id);
+            out.writeByte(c == 0 ? 0x00 : 0x11);
+        }
+        out.writeByte(0);
+        out.writeByte(63);
+        out.writeByte(0);
+    }
+
+    private static void writeHuffmanTable(Encoder out, int info, int[] bits, int[] values){
+        out.writeMarker(0xC4);
+        out.writeU16(2 + 1 + 16 + values.length);
+        out.writeByte(info);
+        out.writeBytes(bits);
+        out.writeBytes(values);
+    }
+
+    /**
+     * Huffman code and length of every symbol of a table
+     */
+    private static final class HuffmanCode {
+        final int[] codes = new int[256];
+        final int[] lengths = new int[256];
+
+        HuffmanCode(int[] bits, int[] values){
+            int code = 0;
+            int index = 0;
+            for(int length = 1; length <= 16; length++){
+                for(int i = 0; i < bits[length - 1]; i++){
+                    codes[values[index]] = code++;
+                    lengths[values[index]] = length;
+                    index++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+    /**
+     * Growable output with a bit writer for the entropy-coded data
+     */
+    private static final class Encoder {
+        private byte[] bytes;
+        private int size;
+        private int bitBuffer;
+        private int bitCount;
+        private final int[] predictors;
+
+        Encoder(int capacity, int componentCount){
+            bytes = new byte[capacity];
+            predictors = new int[componentCount];
+        }
+
+        void writeByte(int b){
+            if(size == bytes.length){
+                byte[] bigger = new byte[size * 2];
+                System.arraycopy(bytes, 0, bigger, 0, size);
+                bytes = bigger;
+            }
+            bytes[size++] = (byte) b;
+        }
+
+        void writeU16(int value){
+            writeByte(value >> 8);
+            writeByte(value);
+        }
+
+        void writeMarker(int marker){
+            writeByte(0xFF);
+            writeByte(marker);
+        }
+
+        void writeBytes(int[] values){
+            for(int value : values){
+                writeByte(value);
+            }
+        }
+
+        void writeBits(int value, int length){
+            bitBuffer = (bitBuffer << length) | (value & ((1 << length) - 1));
+            bitCount += length;
+            while(bitCount >= 8){
+                int b = (bitBuffer >> (bitCount - 8)) & 0xFF;
+                writeByte(b);
+                if(b == 0xFF)
+                    writeByte(0);
+                bitCount -= 8;
+            }
+        }
+
+        /**
+         * Pads the last byte with 1 bits
+         */
+        void flushBits(){
+            if(bitCount > 0){
+                writeBits(0x7F, 8 - bitCount);
+            }
+            bitBuffer = 0;
+        }
+
+        void writeSymbol(HuffmanCode table, int symbol) throws IOException {
+            int length = table.lengths[symbol];
+            if(length == 0)
+                throw new IOException("Invalid JPEG coefficient");
+            writeBits(table.codes[symbol], length);
+        }
+
+        /**
+         * Writes the category of the value followed by its low bits
+         */
+        private void writeValue(HuffmanCode table, int run, int value) throws IOException {
+            int magnitude = value < 0 ? -value : value;
+            int category = 32 - Integer.numberOfLeadingZeros(magnitude);
+            writeSymbol(table, (run << 4) | category);
+            if(category > 0){
+                writeBits(value < 0 ? value - 1 : value, category);
+            }
+        }
+
+        /**
+         * Encodes a block of quantized coefficients (natural order, absolute DC)
+         */
+        void encodeBlock(int c, int[] coefficients, HuffmanCode dc, HuffmanCode ac) throws IOException {
+            int diff = coefficients[0] - predictors[c];
+            predictors[c] = coefficients[0];
+            if(diff < -2047 || diff > 2047)
+                throw new IOException("Invalid JPEG coefficient");
+            writeValue(dc, 0, diff);
+
+            int run = 0;
+            for(int k = 1; k < 64; k++){
+                int value = coefficients[JpegReader.ZIGZAG[k]];
+                if(value == 0){
+                    run++;
+                    continue;
+                }
+                if(value < -1023 || value > 1023)
+                    throw new IOException("Invalid JPEG coefficient");
+                while(run > 15){
+                    writeSymbol(ac, 0xF0);
+                    run -= 16;
+                }
+                writeValue(ac, run, value);
+                run = 0;
+            }
+            if(run > 0){
+                writeSymbol(ac, 0x00);
+            }
+        }
+
+        byte[] toByteArray(){
+            byte[] result = new byte[size];
+            System.arraycopy(bytes, 0, result, 0, size);
+            return result;
+        }
+    }
+}
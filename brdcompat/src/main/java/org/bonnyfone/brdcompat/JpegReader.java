@@ -0,0 +1,1072 @@
+package org.bonnyfone.brdcompat;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Pure-Java baseline JPEG reader with random access to the MCU rows.<br>
+ * The entropy-coded data is indexed once: when the image has restart markers (DRI) the index holds the offset of
+ * every restart interval and is built by scanning the markers, otherwise it holds the decoder state at the beginning
+ * of every MCU row and is extended lazily, while rows are decoded for the first time.
+ * A region decode seeks to the first MCU row touching the region, entropy-decodes only the rows it covers and runs
+ * dequantization and IDCT only for the MCUs inside the region.<br>
+ * Supports baseline and extended (8-bit, huffman) sequential images with 1 or 3 interleaved components.
+ */
+final class JpegReader {
+
+    private static final int MARKER_SOF0 = 0xC0;
+    private static final int MARKER_SOF1 = 0xC1;
+    private static final int MARKER_DHT = 0xC4;
+    private static final int MARKER_SOI = 0xD8;
+    private static final int MARKER_EOI = 0xD9;
+    private static final int MARKER_SOS = 0xDA;
+    private static final int MARKER_DQT = 0xDB;
+    private static final int MARKER_DRI = 0xDD;
+    private static final int MARKER_APP14 = 0xEE;
+
+    /**
+     * Zig-zag index to natural (row-major) index
+     */
+    static final int[] ZIGZAG = {
+            0, 1, 8, 16, 9, 2, 3, 10,
+            17, 24, 32, 25, 18, 11, 4, 5,
+            12, 19, 26, 33, 40, 48, 41, 34,
+            27, 20, 13, 6, 7, 14, 21, 28,
+            35, 42, 49, 56, 57, 50, 43, 36,
+            29, 22, 15, 23, 30, 37, 44, 51,
+            58, 59, 52, 45, 38, 31, 39, 46,
+            53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /**
+     * Sample sizes from this one on are served from the DC coefficients alone (see {@link #decodeRegionDc})
+     */
+    static final int DC_ONLY_SAMPLE_SIZE = 8;
+
+    private final ByteBuffer data;
+
+    final int width;
+    final int height;
+    final int restartInterval;
+
+    final Component[] components;
+    final int maxH;
+    final int maxV;
+    final int mcuWidth;
+    final int mcuHeight;
+    final int mcusX;
+    final int mcusY;
+
+    /**
+     * Raw quantization tables, natural order
+     */
+    final int[][] quantTables = new int[4][];
+    final boolean rgb;
+
+    /**
+     * Offset of the entropy-coded data of the (single) scan
+     */
+    final int scanStart;
+
+    //Index: decoder state at known MCUs (restart intervals or MCU rows)
+    private int checkpointCount;
+    private int[] checkpointMcu;
+    private int[] checkpointPos;
+    private int[] checkpointBits;
+    private int[] checkpointBitCount;
+    private int[] checkpointDc;
+
+    /**
+     * Returns true if the buffer starts with a JPEG SOI marker (the buffer's position is not changed)
+     * @param buffer
+     * @return
+     */
+    static boolean isJpeg(ByteBuffer buffer){
+        int p = buffer.position();
+        return buffer.remaining() >= 3 && (buffer.get(p) & 0xFF) == 0xFF && (buffer.get(p + 1) & 0xFF) == MARKER_SOI && (buffer.get(p + 2) & 0xFF) == 0xFF;
+    }
+
+    /**
+     * Parses the JPEG headers up to the start of the scan
+     * @param buffer the encoded image, from its position to its limit
+     * @throws IOException if the image is not a supported JPEG (e.g. progressive, arithmetic coded, CMYK)
+     */
+    JpegReader(ByteBuffer buffer) throws IOException {
+        this.data = buffer.slice();
+        if(!isJpeg(data))
+            throw new IOException("Not a JPEG image");
+
+        HuffmanTable[] dcTables = new HuffmanTable[4];
+        HuffmanTable[] acTables = new HuffmanTable[4];
+        Component[] frame = null;
+        int frameWidth = 0;
+        int frameHeight = 0;
+        int interval = 0;
+        int adobeTransform = -1;
+        int scan = -1;
+
+        int pos = 2;
+        try {
+            while(scan < 0){
+                int marker = nextMarker(pos);
+                if(marker < 0)
+                    throw new IOException("Missing SOS marker");
+                pos = marker >>> 8;
+                marker &= 0xFF;
+
+                if(marker == MARKER_SOI || (marker >= 0xD0 && marker <= 0xD7) || marker == 0x01)
+                    continue;
+                if(marker == MARKER_EOI)
+                    throw new IOException("Missing SOS marker");
+
+                if(pos + 2 > data.limit())
+                    throw new IOException("Truncated JPEG segment");
+                int length = readU16(pos);
+                int segment = pos + 2;
+                int end = pos + length;
+                if(length < 2 || end > data.limit())
+                    throw new IOException("Truncated JPEG segment");
+
+                switch (marker){
+                    case MARKER_SOF0:
+                    case MARKER_SOF1: {
+                        checkSegment(segment, 6, end);
+                        if((data.get(segment) & 0xFF) != 8)
+                            throw new IOException("Unsupported JPEG precision");
+                        frameHeight = readU16(segment + 1);
+                        frameWidth = readU16(segment + 3);
+                        int count = data.get(segment + 5) & 0xFF;
+                        if(count != 1 && count != 3)
+                            throw new IOException("Unsupported JPEG component count " + count);
+                        checkSegment(segment + 6, count * 3, end);
+                        frame = new Component[count];
+                        for(int i = 0; i < count; i++){
+                            int p = segment + 6 + i * 3;
+                            int sampling = data.get(p + 1) & 0xFF;
+                            frame[i] = new Component(data.get(p) & 0xFF, sampling >> 4, sampling & 0x0F, data.get(p + 2) & 0x03);
+                            if(frame[i].h < 1 || frame[i].h > 4 || frame[i].v < 1 || frame[i].v > 4)
+                                throw new IOException("Invalid JPEG sampling factors");
+                        }
+                        break;
+                    }
+                    case MARKER_DHT: {
+                        int p = segment;
+                        while(p < end){
+                            checkSegment(p, 17, end);
+                            int info = data.get(p) & 0xFF;
+                            int[] counts = new int[17];
+                            int total = 0;
+                            for(int i = 1; i <= 16; i++){
+                                counts[i] = data.get(p + i) & 0xFF;
+                                total += counts[i];
+                            }
+                            if(total > 256)
+                                throw new IOException("Corrupted JPEG");
+                            checkSegment(p + 17, total, end);
+                            byte[] values = new byte[total];
+                            for(int i = 0; i < total; i++){
+                                values[i] = data.get(p + 17 + i);
+                            }
+                            HuffmanTable table = new HuffmanTable(counts, values);
+                            if((info >> 4) == 0)
+                                dcTables[info & 0x03] = table;
+                            else
+                                acTables[info & 0x03] = table;
+                            p += 17 + total;
+                        }
+                        break;
+                    }
+                    case MARKER_DQT: {
+                        int p = segment;
+                        while(p < end){
+                            int info = data.get(p++) & 0xFF;
+                            int[] table = new int[64];
+                            boolean wide = (info >> 4) != 0;
+                            checkSegment(p, wide ? 128 : 64, end);
+                            for(int i = 0; i < 64; i++){
+                                table[ZIGZAG[i]] = wide ? readU16(p + i * 2) : data.get(p + i) & 0xFF;
+                            }
+                            quantTables[info & 0x03] = table;
+                            p += wide ? 128 : 64;
+                        }
+                        break;
+                    }
+                    case MARKER_DRI:
+                        checkSegment(segment, 2, end);
+                        interval = readU16(segment);
+                        break;
+                    case MARKER_APP14:
+                        if(length >= 14 && data.get(segment) == 'A' && data.get(segment + 1) == 'd' && data.get(segment + 2) == 'o'
+                                && data.get(segment + 3) == 'b' && data.get(segment + 4) == 'e'){
+                            adobeTransform = data.get(segment + 11) & 0xFF;
+                        }
+                        break;
+                    case MARKER_SOS: {
+                        if(frame == null)
+                            throw new IOException("Unsupported JPEG encoding (only baseline is supported)");
+                        checkSegment(segment, 1, end);
+                        int count = data.get(segment) & 0xFF;
+                        checkSegment(segment + 1, count * 2, end);
+                        if(count != frame.length)
+                            throw new IOException("Non-interleaved JPEG scans are not supported");
+                        for(int i = 0; i < count; i++){
+                            int id = data.get(segment + 1 + i * 2) & 0xFF;
+                            int tables = data.get(segment + 2 + i * 2) & 0xFF;
+                            Component component = findComponent(frame, id);
+                            if(component == null)
+                                throw new IOException("Invalid JPEG scan component");
+                            component.dcTable = dcTables[tables >> 4 & 0x03];
+                            component.acTable = acTables[tables & 0x03];
+                            if(component.dcTable == null || component.acTable == null)
+                                throw new IOException("Missing JPEG huffman table");
+                        }
+                        scan = end;
+                        break;
+                    }
+                    default:
+                        if(marker >= 0xC2 && marker <= 0xCF && marker != MARKER_DHT && marker != 0xC8 && marker != 0xCC)
+                            throw new IOException("Unsupported JPEG encoding (only baseline is supported)");
+                        break;
+                }
+                pos = end;
+            }
+        } catch (IndexOutOfBoundsException e) {
+            //safety net for reads not covered by the segment checks
+            throw new IOException("Corrupted JPEG");
+        }
+
+        if(frameWidth <= 0 || frameHeight <= 0)
+            throw new IOException("Invalid JPEG size");
+
+        for(Component component : frame){
+            if(quantTables[component.tq] == null)
+                throw new IOException("Missing JPEG quantization table");
+        }
+
+        //a single-component scan is never interleaved: one block per MCU
+        if(frame.length == 1){
+            frame[0].h = 1;
+            frame[0].v = 1;
+        }
+
+        int hMax = 1;
+        int vMax = 1;
+        for(Component component : frame){
+            hMax = Math.max(hMax, component.h);
+            vMax = Math.max(vMax, component.v);
+        }
+
+        this.width = frameWidth;
+        this.height = frameHeight;
+        this.components = frame;
+        this.restartInterval = interval;
+        this.maxH = hMax;
+        this.maxV = vMax;
+        this.mcuWidth = 8 * hMax;
+        this.mcuHeight = 8 * vMax;
+        this.mcusX = (frameWidth + mcuWidth - 1) / mcuWidth;
+        this.mcusY = (frameHeight + mcuHeight - 1) / mcuHeight;
+        this.scanStart = scan;
+        this.rgb = frame.length == 3 && (adobeTransform == 0 || (frame[0].id == 'R' && frame[1].id == 'G' && frame[2].id == 'B'));
+    }
+
+    /**
+     * Throws if size bytes from pos are not inside the segment ending at end
+     */
+    private static void checkSegment(int pos, int size, int end) throws IOException {
+        if(pos + size > end)
+            throw new IOException("Corrupted JPEG");
+    }
+
+    private static Component findComponent(Component[] frame, int id){
+        for(Component component : frame){
+            if(component.id == id)
+                return component;
+        }
+        return null;
+    }
+
+    /**
+     * Finds the next marker starting at pos
+     * @return (position after the marker << 8) | marker, or -1
+     */
+    private int nextMarker(int pos){
+        int limit = data.limit();
+        while(pos + 1 < limit){
+            if((data.get(pos) & 0xFF) == 0xFF){
+                int marker = data.get(pos + 1) & 0xFF;
+                if(marker != 0xFF && marker != 0x00)
+                    return ((pos + 2) << 8) | marker;
+                pos++;
+            }
+            else{
+                pos++;
+            }
+        }
+        return -1;
+    }
+
+    private int readU16(int pos){
+        return ((data.get(pos) & 0xFF) << 8) | (data.get(pos + 1) & 0xFF);
+    }
+
+    /**
+     * Returns the size in bytes of the entropy-coded data, from the start of the scan to the end of the buffer
+     */
+    int getScanLength(){
+        return data.limit() - scanStart;
+    }
+
+    /**
+     * Returns true if the image is grayscale
+     */
+    boolean isGrayscale(){
+        return components.length == 1;
+    }
+
+    /**
+     * Decodes the region [left, right) x [top, bottom) downsampled by sampleSize,
+     * delivering RegionMath.getSampledSize(right - left, sampleSize) pixels per row to the sink.
+     * @throws IOException if the image data is corrupted
+     */
+    void decodeRegion(int left, int top, int right, int bottom, int sampleSize, RowSink sink) throws IOException {
+        sampleSize = Math.max(1, sampleSize);
+        if(sampleSize >= DC_ONLY_SAMPLE_SIZE){
+            decodeRegionDc(left, top, right, bottom, sampleSize, sink);
+            return;
+        }
+        int outWidth = RegionMath.getSampledSize(right - left, sampleSize);
+        int outHeight = RegionMath.getSampledSize(bottom - top, sampleSize);
+
+        int rowStart = top / mcuHeight;
+        int rowEnd = (top + (outHeight - 1) * sampleSize) / mcuHeight;
+        int colStart = left / mcuWidth;
+        int colEnd = (left + (outWidth - 1) * sampleSize) / mcuWidth;
+        int cols = colEnd - colStart + 1;
+
+        //MCU columns holding at least one sampled pixel, and sampled positions in the component planes
+        boolean[] neededCols = new boolean[cols];
+        int[][] planeX = new int[components.length][outWidth];
+        for(int x = 0; x < outWidth; x++){
+            int srcX = left + x * sampleSize;
+            neededCols[srcX / mcuWidth - colStart] = true;
+            for(int c = 0; c < components.length; c++){
+                planeX[c][x] = srcX * components[c].h / maxH - colStart * components[c].h * 8;
+            }
+        }
+
+        byte[][] planes = new byte[components.length][];
+        int[] planeStride = new int[components.length];
+        for(int c = 0; c < components.length; c++){
+            planeStride[c] = cols * components[c].h * 8;
+            planes[c] = new byte[planeStride[c] * components[c].v * 8];
+        }
+
+        int[] coefficients = new int[64];
+        int[] workspace = new int[64];
+        int[] pixels = new int[outWidth];
+
+        ScanState state = seek(rowStart * mcusX);
+        int outY = 0;
+        int nextSrcY = top;
+        for(int row = rowStart; row <= rowEnd && outY < outHeight; row++){
+            int rowY = row * mcuHeight;
+            boolean rowNeeded = nextSrcY < rowY + mcuHeight;
+            int lastMcu = row == rowEnd ? colEnd : mcusX - 1;
+
+            for(int mcuX = 0; mcuX <= lastMcu; mcuX++){
+                state.beginMcu();
+                boolean decode = rowNeeded && mcuX >= colStart && mcuX <= colEnd && neededCols[mcuX - colStart];
+                for(int c = 0; c < components.length; c++){
+                    Component component = components[c];
+                    for(int by = 0; by < component.v; by++){
+                        for(int bx = 0; bx < component.h; bx++){
+                            if(decode){
+                                state.decodeBlock(c, coefficients, quantTables[component.tq]);
+                                int offset = by * 8 * planeStride[c] + ((mcuX - colStart) * component.h + bx) * 8;
+                                idct(coefficients, workspace, planes[c], offset, planeStride[c]);
+                            }
+                            else{
+                                state.skipBlock(c);
+                            }
+                        }
+                    }
+                }
+            }
+            if(row < rowEnd){
+                addRowCheckpoint(row + 1, state);
+            }
+
+            //emit the sampled rows falling in this MCU row
+            while(outY < outHeight && nextSrcY < rowY + mcuHeight){
+                int localY = nextSrcY - rowY;
+                convertRow(planes, planeStride, planeX, localY, pixels, outWidth);
+                sink.onRow(outY, pixels, outWidth);
+                outY++;
+                nextSrcY += sampleSize;
+            }
+        }
+    }
+
+    /**
+     * Decodes the region downsampled by sampleSize (8 or more) from the DC coefficients alone: the DC of a block
+     * is the average of its 64 samples, so no dequantization of the AC coefficients and no IDCT are needed.
+     * Each output pixel averages the blocks covered by its sampleSize x sampleSize area, in every component.
+     * @throws IOException if the image data is corrupted
+     */
+    void decodeRegionDc(int left, int top, int right, int bottom, int sampleSize, RowSink sink) throws IOException {
+        int outWidth = RegionMath.getSampledSize(right - left, sampleSize);
+        int outHeight = RegionMath.getSampledSize(bottom - top, sampleSize);
+
+        int rowStart = top / mcuHeight;
+        int rowEnd = (bottom - 1) / mcuHeight;
+        int colStart = left / mcuWidth;
+        int colEnd = (right - 1) / mcuWidth;
+        int cols = colEnd - colStart + 1;
+        int rows = rowEnd - rowStart + 1;
+
+        //block averages of the MCUs covering the region, one plane per component
+        byte[][] planes = new byte[components.length][];
+        int[] planeStride = new int[components.length];
+        for(int c = 0; c < components.length; c++){
+            planeStride[c] = cols * components[c].h;
+            planes[c] = new byte[planeStride[c] * rows * components[c].v];
+        }
+
+        ScanState state = seek(rowStart * mcusX);
+        for(int row = rowStart; row <= rowEnd; row++){
+            int lastMcu = row == rowEnd ? colEnd : mcusX - 1;
+            for(int mcuX = 0; mcuX <= lastMcu; mcuX++){
+                state.beginMcu();
+                boolean inside = mcuX >= colStart && mcuX <= colEnd;
+                for(int c = 0; c < components.length; c++){
+                    Component component = components[c];
+                    int quant = quantTables[component.tq][0];
+                    for(int by = 0; by < component.v; by++){
+                        for(int bx = 0; bx < component.h; bx++){
+                            state.skipBlock(c);
+                            if(inside){
+                                int offset = ((row - rowStart) * component.v + by) * planeStride[c] + (mcuX - colStart) * component.h + bx;
+                                planes[c][offset] = clampSample(((state.predictors[c] * quant + 4) >> 3) + 128);
+                            }
+                        }
+                    }
+                }
+            }
+            if(row < rowEnd){
+                addRowCheckpoint(row + 1, state);
+            }
+        }
+
+        //range of blocks covered by every output column, in each plane
+        int[][] blockX0 = new int[components.length][outWidth];
+        int[][] blockX1 = new int[components.length][outWidth];
+        for(int c = 0; c < components.length; c++){
+            int h = components[c].h;
+            for(int x = 0; x < outWidth; x++){
+                int srcX = left + x * sampleSize;
+                int srcEnd = Math.min(srcX + sampleSize, right);
+                blockX0[c][x] = srcX * h / maxH / 8 - colStart * h;
+                blockX1[c][x] = (srcEnd - 1) * h / maxH / 8 - colStart * h;
+            }
+        }
+
+        int[] pixels = new int[outWidth];
+        int[] values = new int[components.length];
+        for(int y = 0; y < outHeight; y++){
+            int srcY = top + y * sampleSize;
+            int srcEnd = Math.min(srcY + sampleSize, bottom);
+            for(int x = 0; x < outWidth; x++){
+                for(int c = 0; c < components.length; c++){
+                    int v = components[c].v;
+                    int by0 = srcY * v / maxV / 8 - rowStart * v;
+                    int by1 = (srcEnd - 1) * v / maxV / 8 - rowStart * v;
+                    values[c] = averageBlocks(planes[c], planeStride[c], blockX0[c][x], blockX1[c][x], by0, by1);
+                }
+                if(components.length == 1)
+                    pixels[x] = 0xFF000000 | (values[0] << 16) | (values[0] << 8) | values[0];
+                else
+                    pixels[x] = rgb ? 0xFF000000 | (values[0] << 16) | (values[1] << 8) | values[2] : ycbcrToArgb(values[0], values[1], values[2]);
+            }
+            sink.onRow(y, pixels, outWidth);
+        }
+    }
+
+    private static int averageBlocks(byte[] plane, int stride, int x0, int x1, int y0, int y1){
+        if(x0 == x1 && y0 == y1)
+            return plane[y0 * stride + x0] & 0xFF;
+        int sum = 0;
+        for(int y = y0; y <= y1; y++){
+            int offset = y * stride;
+            for(int x = x0; x <= x1; x++){
+                sum += plane[offset + x] & 0xFF;
+            }
+        }
+        int count = (x1 - x0 + 1) * (y1 - y0 + 1);
+        return (sum + count / 2) / count;
+    }
+
+    private void convertRow(byte[][] planes, int[] planeStride, int[][] planeX, int localY, int[] pixels, int outWidth){
+        if(components.length == 1){
+            byte[] plane = planes[0];
+            int[] xs = planeX[0];
+            int rowOffset = localY * planeStride[0];
+            for(int x = 0; x < outWidth; x++){
+                int grey = plane[rowOffset + xs[x]] & 0xFF;
+                pixels[x] = 0xFF000000 | (grey << 16) | (grey << 8) | grey;
+            }
+            return;
+        }
+
+        int offset0 = (localY * components[0].v / maxV) * planeStride[0];
+        int offset1 = (localY * components[1].v / maxV) * planeStride[1];
+        int offset2 = (localY * components[2].v / maxV) * planeStride[2];
+        for(int x = 0; x < outWidth; x++){
+            int c0 = planes[0][offset0 + planeX[0][x]] & 0xFF;
+            int c1 = planes[1][offset1 + planeX[1][x]] & 0xFF;
+            int c2 = planes[2][offset2 + planeX[2][x]] & 0xFF;
+            pixels[x] = rgb ? 0xFF000000 | (c0 << 16) | (c1 << 8) | c2 : ycbcrToArgb(c0, c1, c2);
+        }
+    }
+
+    private static final int[] CR_R = new int[256];
+    private static final int[] CB_B = new int[256];
+    private static final int[] CR_G = new int[256];
+    private static final int[] CB_G = new int[256];
+
+    static {
+        for(int i = 0; i < 256; i++){
+            int x = i - 128;
+            CR_R[i] = (int) Math.round(1.40200 * x);
+            CB_B[i] = (int) Math.round(1.77200 * x);
+            CR_G[i] = (int) Math.round(-0.71414 * x * 65536);
+            CB_G[i] = (int) Math.round(-0.34414 * x * 65536) + 32768;
+        }
+    }
+
+    static int ycbcrToArgb(int y, int cb, int cr){
+        int r = y + CR_R[cr];
+        int g = y + ((CB_G[cb] + CR_G[cr]) >> 16);
+        int b = y + CB_B[cb];
+        r = r < 0 ? 0 : (r > 255 ? 255 : r);
+        g = g < 0 ? 0 : (g > 255 ? 255 : g);
+        b = b < 0 ? 0 : (b > 255 ? 255 : b);
+        return 0xFF000000 | (r << 16) | (g << 8) | b;
+    }
+
+    /* -- Index -- */
+    /* ----------- */
+
+    /**
+     * Returns a decoder state positioned at the beginning of the given MCU
+     */
+    ScanState seek(int mcu) throws IOException {
+        ScanState state = new ScanState();
+        synchronized (this){
+            if(checkpointMcu == null){
+                buildIndex();
+            }
+
+            //latest checkpoint preceding the MCU
+            int lo = 0;
+            int hi = checkpointCount - 1;
+            while(lo < hi){
+                int mid = (lo + hi + 1) >>> 1;
+                if(checkpointMcu[mid] <= mcu)
+                    lo = mid;
+                else
+                    hi = mid - 1;
+            }
+            state.restore(lo);
+        }
+
+        if(state.mcu < mcu){
+            int row = state.mcu / mcusX;
+            while(state.mcu < mcu){
+                state.beginMcu();
+                for(int c = 0; c < components.length; c++){
+                    int blocks = components[c].h * components[c].v;
+                    for(int b = 0; b < blocks; b++){
+                        state.skipBlock(c);
+                    }
+                }
+                if(state.mcu % mcusX == 0 && state.mcu / mcusX > row){
+                    row = state.mcu / mcusX;
+                    addRowCheckpoint(row, state);
+                }
+            }
+        }
+        return state;
+    }
+
+    /**
+     * Creates the index: restart intervals are located by scanning the markers, MCU rows are indexed lazily
+     */
+    private void buildIndex(){
+        int capacity = restartInterval > 0 ? (mcusX * mcusY + restartInterval - 1) / restartInterval : Math.min(mcusY, 64);
+        allocateCheckpoints(Math.max(1, capacity));
+
+        ScanState start = new ScanState();
+        start.pos = scanStart;
+        start.mcusToRestart = restartInterval;
+        addCheckpoint(start);
+
+        if(restartInterval > 0){
+            int limit = data.limit();
+            int pos = scanStart;
+            int mcu = 0;
+            while(pos + 1 < limit){
+                if((data.get(pos) & 0xFF) != 0xFF){
+                    pos++;
+                    continue;
+                }
+                int marker = data.get(pos + 1) & 0xFF;
+                if(marker == 0x00 || marker == 0xFF){
+                    pos += marker == 0x00 ? 2 : 1;
+                }
+                else if(marker >= 0xD0 && marker <= 0xD7){
+                    pos += 2;
+                    mcu += restartInterval;
+                    if(mcu >= mcusX * mcusY)
+                        break;
+                    ScanState interval = new ScanState();
+                    interval.pos = pos;
+                    interval.mcu = mcu;
+                    interval.mcusToRestart = restartInterval;
+                    addCheckpoint(interval);
+                }
+                else{
+                    break; //end of scan
+                }
+            }
+        }
+    }
+
+    private void allocateCheckpoints(int capacity){
+        checkpointMcu = new int[capacity];
+        checkpointPos = new int[capacity];
+        checkpointBits = new int[capacity];
+        checkpointBitCount = new int[capacity];
+        checkpointDc = new int[capacity * components.length];
+    }
+
+    private void addCheckpoint(ScanState state){
+        if(checkpointCount == checkpointMcu.length){
+            int[] mcu = checkpointMcu;
+            int[] pos = checkpointPos;
+            int[] bits = checkpointBits;
+            int[] bitCount = checkpointBitCount;
+            int[] dc = checkpointDc;
+            allocateCheckpoints(checkpointCount * 2);
+            System.arraycopy(mcu, 0, checkpointMcu, 0, checkpointCount);
+            System.arraycopy(pos, 0, checkpointPos, 0, checkpointCount);
+            System.arraycopy(bits, 0, checkpointBits, 0, checkpointCount);
+            System.arraycopy(bitCount, 0, checkpointBitCount, 0, checkpointCount);
+            System.arraycopy(dc, 0, checkpointDc, 0, checkpointCount * components.length);
+        }
+        int i = checkpointCount++;
+        checkpointMcu[i] = state.mcu;
+        checkpointPos[i] = state.pos;
+        checkpointBits[i] = state.bitBuffer;
+        checkpointBitCount[i] = state.bitCount;
+        System.arraycopy(state.predictors, 0, checkpointDc, i * components.length, components.length);
+    }
+
+    /**
+     * Records the state at the beginning of an MCU row, if it extends the lazily built row index
+     */
+    synchronized void addRowCheckpoint(int row, ScanState state){
+        if(restartInterval > 0)
+            return;
+        if(checkpointMcu[checkpointCount - 1] == (row - 1) * mcusX && state.mcu == row * mcusX){
+            addCheckpoint(state);
+        }
+    }
+
+    /* -- IDCT (integer, from the IJG "islow" implementation) -- */
+    /* ---------------------------------------------------------- */
+
+    private static final int CONST_BITS = 13;
+    private static final int PASS1_BITS = 2;
+    private static final int FIX_0_298631336 = 2446;
+    private static final int FIX_0_390180644 = 3196;
+    private static final int FIX_0_541196100 = 4433;
+    private static final int FIX_0_765366865 = 6270;
+    private static final int FIX_0_899976223 = 7373;
+    private static final int FIX_1_175875602 = 9633;
+    private static final int FIX_1_501321110 = 12299;
+    private static final int FIX_1_847759065 = 15137;
+    private static final int FIX_1_961570560 = 16069;
+    private static final int FIX_2_053119869 = 16819;
+    private static final int FIX_2_562915447 = 20995;
+    private static final int FIX_3_072711026 = 25172;
+
+    /**
+     * Inverse DCT of the dequantized coefficients (natural order) into 8x8 samples of the output plane
+     */
+    static void idct(int[] in, int[] ws, byte[] out, int offset, int stride){
+        //pass 1: columns
+        for(int c = 0; c < 8; c++){
+            if(in[8 + c] == 0 && in[16 + c] == 0 && in[24 + c] == 0 && in[32 + c] == 0
+                    && in[40 + c] == 0 && in[48 + c] == 0 && in[56 + c] == 0){
+                int dc = in[c] << PASS1_BITS;
+                for(int r = 0; r < 64; r += 8){
+                    ws[r + c] = dc;
+                }
+                continue;
+            }
+
+            int z2 = in[16 + c];
+            int z3 = in[48 + c];
+            int z1 = (z2 + z3) * FIX_0_541196100;
+            int tmp2 = z1 - z3 * FIX_1_847759065;
+            int tmp3 = z1 + z2 * FIX_0_765366865;
+            z2 = in[c];
+            z3 = in[32 + c];
+            int tmp0 = (z2 + z3) << CONST_BITS;
+            int tmp1 = (z2 - z3) << CONST_BITS;
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+
+            tmp0 = in[56 + c];
+            tmp1 = in[40 + c];
+            tmp2 = in[24 + c];
+            tmp3 = in[8 + c];
+            z1 = tmp0 + tmp3;
+            z2 = tmp1 + tmp2;
+            z3 = tmp0 + tmp2;
+            int z4 = tmp1 + tmp3;
+            int z5 = (z3 + z4) * FIX_1_175875602;
+            tmp0 *= FIX_0_298631336;
+            tmp1 *= FIX_2_053119869;
+            tmp2 *= FIX_3_072711026;
+            tmp3 *= FIX_1_501321110;
+            z1 *= -FIX_0_899976223;
+            z2 *= -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560 + z5;
+            z4 = z4 * -FIX_0_390180644 + z5;
+            tmp0 += z1 + z3;
+            tmp1 += z2 + z4;
+            tmp2 += z2 + z3;
+            tmp3 += z1 + z4;
+
+            int shift = CONST_BITS - PASS1_BITS;
+            int round = 1 << (shift - 1);
+            ws[c] = (tmp10 + tmp3 + round) >> shift;
+            ws[56 + c] = (tmp10 - tmp3 + round) >> shift;
+            ws[8 + c] = (tmp11 + tmp2 + round) >> shift;
+            ws[48 + c] = (tmp11 - tmp2 + round) >> shift;
+            ws[16 + c] = (tmp12 + tmp1 + round) >> shift;
+            ws[40 + c] = (tmp12 - tmp1 + round) >> shift;
+            ws[24 + c] = (tmp13 + tmp0 + round) >> shift;
+            ws[32 + c] = (tmp13 - tmp0 + round) >> shift;
+        }
+
+        //pass 2: rows
+        int shift = CONST_BITS + PASS1_BITS + 3;
+        int round = 1 << (shift - 1);
+        for(int r = 0; r < 64; r += 8){
+            int o = offset + (r >> 3) * stride;
+            if(ws[r + 1] == 0 && ws[r + 2] == 0 && ws[r + 3] == 0 && ws[r + 4] == 0
+                    && ws[r + 5] == 0 && ws[r + 6] == 0 && ws[r + 7] == 0){
+                byte dc = clampSample(((ws[r] + (1 << (PASS1_BITS + 2))) >> (PASS1_BITS + 3)) + 128);
+                for(int i = 0; i < 8; i++){
+                    out[o + i] = dc;
+                }
+                continue;
+            }
+
+            int z2 = ws[r + 2];
+            int z3 = ws[r + 6];
+            int z1 = (z2 + z3) * FIX_0_541196100;
+            int tmp2 = z1 - z3 * FIX_1_847759065;
+            int tmp3 = z1 + z2 * FIX_0_765366865;
+            int tmp0 = (ws[r] + ws[r + 4]) << CONST_BITS;
+            int tmp1 = (ws[r] - ws[r + 4]) << CONST_BITS;
+            int tmp10 = tmp0 + tmp3;
+            int tmp13 = tmp0 - tmp3;
+            int tmp11 = tmp1 + tmp2;
+            int tmp12 = tmp1 - tmp2;
+
+            tmp0 = ws[r + 7];
+            tmp1 = ws[r + 5];
+            tmp2 = ws[r + 3];
+            tmp3 = ws[r + 1];
+            z1 = tmp0 + tmp3;
+            z2 = tmp1 + tmp2;
+            z3 = tmp0 + tmp2;
+            int z4 = tmp1 + tmp3;
+            int z5 = (z3 + z4) * FIX_1_175875602;
+            tmp0 *= FIX_0_298631336;
+            tmp1 *= FIX_2_053119869;
+            tmp2 *= FIX_3_072711026;
+            tmp3 *= FIX_1_501321110;
+            z1 *= -FIX_0_899976223;
+            z2 *= -FIX_2_562915447;
+            z3 = z3 * -FIX_1_961570560 + z5;
+            z4 = z4 * -FIX_0_390180644 + z5;
+            tmp0 += z1 + z3;
+            tmp1 += z2 + z4;
+            tmp2 += z2 + z3;
+            tmp3 += z1 + z4;
+
+            out[o] = clampSample(((tmp10 + tmp3 + round) >> shift) + 128);
+            out[o + 7] = clampSample(((tmp10 - tmp3 + round) >> shift) + 128);
+            out[o + 1] = clampSample(((tmp11 + tmp2 + round) >> shift) + 128);
+            out[o + 6] = clampSample(((tmp11 - tmp2 + round) >> shift) + 128);
+            out[o + 2] = clampSample(((tmp12 + tmp1 + round) >> shift) + 128);
+            out[o + 5] = clampSample(((tmp12 - tmp1 + round) >> shift) + 128);
+            out[o + 3] = clampSample(((tmp13 + tmp0 + round) >> shift) + 128);
+            out[o + 4] = clampSample(((tmp13 - tmp0 + round) >> shift) + 128);
+        }
+    }
+
+    private static byte clampSample(int value){
+        return (byte) (value < 0 ? 0 : (value > 255 ? 255 : value));
+    }
+
+    /* -- Entropy decoding -- */
+    /* ---------------------- */
+
+    /**
+     * Position in the entropy-coded data: bit reader, DC predictors and restart counter
+     */
+    final class ScanState {
+        int pos;
+        int bitBuffer;
+        int bitCount;
+        int mcu;
+        int mcusToRestart;
+        final int[] predictors = new int[components.length];
+
+        void restore(int checkpoint){
+            mcu = checkpointMcu[checkpoint];
+            pos = checkpointPos[checkpoint];
+            bitBuffer = checkpointBits[checkpoint];
+            bitCount = checkpointBitCount[checkpoint];
+            mcusToRestart = restartInterval > 0 ? restartInterval - (mcu % restartInterval) : 0;
+            System.arraycopy(checkpointDc, checkpoint * components.length, predictors, 0, components.length);
+        }
+
+        /**
+         * Handles the restart marker, if due, before decoding the next MCU
+         */
+        void beginMcu(){
+            if(restartInterval > 0){
+                if(mcusToRestart == 0){
+                    restart();
+                    mcusToRestart = restartInterval;
+                }
+                mcusToRestart--;
+            }
+            mcu++;
+        }
+
+        private void restart(){
+            bitBuffer = 0;
+            bitCount = 0;
+            int limit = data.limit();
+            while(pos + 1 < limit && (data.get(pos) & 0xFF) == 0xFF && (data.get(pos + 1) & 0xFF) == 0xFF){
+                pos++;
+            }
+            if(pos + 1 < limit && (data.get(pos) & 0xFF) == 0xFF){
+                int marker = data.get(pos + 1) & 0xFF;
+                if(marker >= 0xD0 && marker <= 0xD7)
+                    pos += 2;
+            }
+            for(int c = 0; c < predictors.length; c++){
+                predictors[c] = 0;
+            }
+        }
+
+        /**
+         * Fills the bit buffer with at least 25 bits; past the end of the scan zeros are read
+         */
+        private void fill(){
+            while(bitCount <= 24){
+                int b = 0;
+                if(pos < data.limit()){
+                    b = data.get(pos) & 0xFF;
+                    if(b == 0xFF){
+                        int next = pos + 1 < data.limit() ? data.get(pos + 1) & 0xFF : 0;
+                        if(next == 0x00)
+                            pos += 2;
+                        else
+                            b = 0; //marker: do not consume it
+                    }
+                    else{
+                        pos++;
+                    }
+                }
+                bitBuffer = (bitBuffer << 8) | b;
+                bitCount += 8;
+            }
+        }
+
+        int getBits(int n){
+            if(n == 0)
+                return 0;
+            if(bitCount < n)
+                fill();
+            bitCount -= n;
+            return (bitBuffer >>> bitCount) & ((1 << n) - 1);
+        }
+
+        int decodeHuffman(HuffmanTable table) throws IOException {
+            if(bitCount < 16)
+                fill();
+            int entry = table.lookup[(bitBuffer >>> (bitCount - HuffmanTable.LOOKUP_BITS)) & ((1 << HuffmanTable.LOOKUP_BITS) - 1)];
+            if(entry != 0){
+                bitCount -= entry >> 8;
+                return entry & 0xFF;
+            }
+            for(int length = HuffmanTable.LOOKUP_BITS + 1; length <= 16; length++){
+                int code = (bitBuffer >>> (bitCount - length)) & ((1 << length) - 1);
+                if(code <= table.maxCode[length]){
+                    int index = table.valueOffset[length] + code;
+                    if(index < 0 || index >= table.values.length)
+                        throw new IOException("Corrupted JPEG");
+                    bitCount -= length;
+                    return table.values[index] & 0xFF;
+                }
+            }
+            //corrupted data: skip a bit and go on
+            bitCount--;
+            return 0;
+        }
+
+        int receiveExtend(int size){
+            int value = getBits(size);
+            return value < (1 << (size - 1)) ? value - (1 << size) + 1 : value;
+        }
+
+        /**
+         * Decodes a block into dequantized coefficients (natural order)
+         */
+        void decodeBlock(int c, int[] coefficients, int[] quant) throws IOException {
+            Component component = components[c];
+            for(int i = 0; i < 64; i++){
+                coefficients[i] = 0;
+            }
+
+            int size = decodeHuffman(component.dcTable);
+            if(size > 11)
+                throw new IOException("Corrupted JPEG");
+            if(size != 0){
+                predictors[c] += receiveExtend(size);
+            }
+            coefficients[0] = predictors[c] * quant[0];
+
+            HuffmanTable ac = component.acTable;
+            for(int k = 1; k < 64; k++){
+                int rs = decodeHuffman(ac);
+                int run = rs >> 4;
+                size = rs & 0x0F;
+                if(size == 0){
+                    if(run != 15)
+                        break;
+                    k += 15;
+                    continue;
+                }
+                k += run;
+                if(k > 63)
+                    break;
+                int z = ZIGZAG[k];
+                coefficients[z] = receiveExtend(size) * quant[z];
+            }
+        }
+
+        /**
+         * Decodes a block only to advance the bit stream and the DC predictor
+         */
+        void skipBlock(int c) throws IOException {
+            Component component = components[c];
+            int size = decodeHuffman(component.dcTable);
+            if(size > 11)
+                throw new IOException("Corrupted JPEG");
+            if(size != 0){
+                predictors[c] += receiveExtend(size);
+            }
+
+            HuffmanTable ac = component.acTable;
+            for(int k = 1; k < 64; k++){
+                int rs = decodeHuffman(ac);
+                size = rs & 0x0F;
+                if(size == 0){
+                    if((rs >> 4) != 15)
+                        break;
+                    k += 15;
+                    continue;
+                }
+                k += rs >> 4;
+                getBits(size);
+            }
+        }
+    }
+
+    /**
+     * Frame component
+     */
+    static final class Component {
+        final int id;
+        int h;
+        int v;
+        final int tq;
+        HuffmanTable dcTable;
+        HuffmanTable acTable;
+
+        Component(int id, int h, int v, int tq){
+            this.id = id;
+            this.h = h;
+            this.v = v;
+            this.tq = tq;
+        }
+    }
+
+    /**
+     * Canonical huffman table with a lookup table for the short codes
+     */
+    static final class HuffmanTable {
+        static final int LOOKUP_BITS = 9;
+
+        final int[] lookup = new int[1 << LOOKUP_BITS];
+        final int[] maxCode = new int[18];
+        final int[] valueOffset = new int[17];
+        final byte[] values;
+
+        /**
+         * @throws IOException if the code counts do not describe a prefix code
+         */
+        HuffmanTable(int[] counts, byte[] values) throws IOException {
+            this.values = values;
+            int code = 0;
+            int index = 0;
+            for(int length = 1; length <= 16; length++){
+                if(code + counts[length] > (1 << length))
+                    throw new IOException("Corrupted JPEG");
+                valueOffset[length] = index - code;
+                if(counts[length] == 0){
+                    maxCode[length] = -1;
+                }
+                else{
+                    for(int i = 0; i < counts[length]; i++){
+                        if(length <= LOOKUP_BITS){
+                            int shift = LOOKUP_BITS - length;
+                            int entry = (length << 8) | (values[index] & 0xFF);
+                            for(int fill = 0; fill < (1 << shift); fill++){
+                                lookup[(code << shift) | fill] = entry;
+                            }
+                        }
+                        code++;
+                        index++;
+                    }
+                    maxCode[length] = code - 1;
+                }
+                code <<= 1;
+            }
+            maxCode[17] = Integer.MAX_VALUE;
+        }
+    }
+}
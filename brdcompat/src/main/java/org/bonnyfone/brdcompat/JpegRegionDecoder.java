@@ -0,0 +1,113 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+/**
+ * Region decoder for baseline JPEG images, used by the fallback implementation.<br>
+ * The MCU index of the image is built once per instance and reused by every decodeRegion() call, so a tile
+ * costs about the size of the tile instead of the size of the image.
+ * The MCUs covering the region are cropped in the compressed domain into a small JPEG decoded by BitmapFactory;
+ * the pure-Java decoder is used for inSampleSize 8 and above (DC coefficients only) and if BitmapFactory can not decode it.
+ */
+class JpegRegionDecoder extends RowRegionDecoder {
+
+    private final JpegReader reader;
+    private final JpegCropper cropper;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+
+    private JpegRegionDecoder(ImageSource source) throws IOException {
+        super(source);
+        this.reader = new JpegReader(source.getBuffer());
+        this.cropper = new JpegCropper(reader);
+    }
+
+    @Override
+    void decodeRows(Rect area, int sampleSize, RowSink sink) throws IOException {
+        reader.decodeRegion(area.left, area.top, area.right, area.bottom, sampleSize, sink);
+    }
+
+    @Override
+    Bitmap decodeDirect(Rect area, int sampleSize, Bitmap.Config config, int outWidth, int outHeight) {
+        //high sample sizes are cheaper from the DC coefficients alone
+        if(sampleSize >= JpegReader.DC_ONLY_SAMPLE_SIZE)
+            return null;
+
+        int[] bounds = new int[4];
+        byte[] cropped;
+        try {
+            cropped = cropper.crop(area.left, area.top, area.right, area.bottom, bounds);
+        } catch (IOException e) {
+            return null;
+        }
+
+        //BitmapFactory rounds the sample size down to a power of 2: other sample sizes are scaled after the decode
+        int decodeSampleSize = RegionMath.getPowerOfTwoSampleSize(sampleSize);
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = decodeSampleSize;
+        options.inPreferredConfig = config;
+        Bitmap decoded = BitmapFactory.decodeByteArray(cropped, 0, cropped.length, options);
+        if(decoded == null)
+            return null;
+
+        int[] src = new int[4];
+        if(!RegionMath.mapOnDecodedCrop(area.left, area.top, area.right, area.bottom, bounds, decodeSampleSize, decoded.getWidth(), decoded.getHeight(), src)){
+            decoded.recycle();
+            return null;
+        }
+        boolean scale = decodeSampleSize != sampleSize;
+        if(!scale && (src[0] + outWidth > decoded.getWidth() || src[1] + outHeight > decoded.getHeight())){
+            decoded.recycle();
+            return null;
+        }
+        if(!scale && src[0] == 0 && src[1] == 0 && decoded.getWidth() == outWidth && decoded.getHeight() == outHeight)
+            return decoded;
+
+        //trim (and scale) to the exact region; every pixel is overwritten, so a pooled bitmap needs no erase
+        BitmapPool pool = getBitmapPool();
+        Bitmap region = pool != null ? pool.get(outWidth, outHeight, decoded.getConfig()) : null;
+        if(region == null)
+            region = Bitmap.createBitmap(outWidth, outHeight, decoded.getConfig());
+        if(scale){
+            new Canvas(region).drawBitmap(decoded, new Rect(src[0], src[1], src[2], src[3]), new Rect(0, 0, outWidth, outHeight), paint);
+        }
+        else{
+            int[] row = new int[outWidth];
+            for(int y = 0; y < outHeight; y++){
+                decoded.getPixels(row, 0, outWidth, src[0], src[1] + y, outWidth, 1);
+                region.setPixels(row, 0, outWidth, 0, y, outWidth, 1);
+            }
+        }
+        decoded.recycle();
+        return region;
+    }
+
+    @Override
+    boolean hasAlpha() {
+        return false;
+    }
+
+    @Override
+    public int getHeight() {
+        return reader.height;
+    }
+
+    @Override
+    public int getWidth() {
+        return reader.width;
+    }
+
+    /**
+     * @param source
+     * @return
+     * @throws IOException if the source is not a supported (baseline) JPEG image
+     */
+    static JpegRegionDecoder newInstance(ImageSource source) throws IOException {
+        return new JpegRegionDecoder(source);
+    }
+}
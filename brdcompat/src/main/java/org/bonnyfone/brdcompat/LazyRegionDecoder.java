@@ -0,0 +1,303 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Region decoder which opens the real decoder on the first decodeRegion() call.<br>
+ * The size is read from the image header, on the calling thread or on an executor; the real decoder is opened only
+ * if the header can not be parsed. trim() closes the real decoder when it is idle: it is opened again when needed.
+ */
+class LazyRegionDecoder implements IBitmapRegionDecoder, PooledOutput, PixelOutput {
+
+    /**
+     * Live instances, closed together by {@link #trimAll()}
+     */
+    private static final WeakHashMap<LazyRegionDecoder, Boolean> INSTANCES = new WeakHashMap<LazyRegionDecoder, Boolean>();
+
+    private final ImageSource source;
+    private final PooledRegionDecoder.Factory factory;
+
+    private final Object lock = new Object();
+    private IBitmapRegionDecoder delegate;
+    private boolean opening;
+    private int activeDecodes;
+    private boolean trimPending;
+    private boolean isRecycled;
+    private volatile BitmapPool bitmapPool;
+
+    private boolean sizeKnown;
+    private int width;
+    private int height;
+
+    /**
+     * @param source the encoded image, used to read the size
+     * @param factory opens the real decoder
+     * @param executor null-ok; reads the size in background, getWidth()/getHeight() wait for it
+     * @throws IOException if the size is read synchronously and the image can not be read
+     */
+    LazyRegionDecoder(ImageSource source, PooledRegionDecoder.Factory factory, Executor executor) throws IOException {
+        this.source = source;
+        this.factory = factory;
+
+        if(executor == null){
+            readSize();
+        }
+        else{
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        readSize();
+                    } catch (IOException e) {
+                        setSize(0, 0);
+                    } catch (RuntimeException e) {
+                        setSize(0, 0);
+                    }
+                }
+            });
+        }
+
+        synchronized (INSTANCES){
+            INSTANCES.put(this, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Closes the idle real decoders of all the live instances, e.g. when the memory is low
+     */
+    static void trimAll(){
+        List<LazyRegionDecoder> instances;
+        synchronized (INSTANCES){
+            instances = new ArrayList<LazyRegionDecoder>(INSTANCES.keySet());
+        }
+        for(LazyRegionDecoder instance : instances){
+            instance.trim();
+        }
+    }
+
+    /**
+     * Reads the size from the header, falling back to the real decoder for unrecognized headers
+     */
+    private void readSize() throws IOException {
+        ImageInfo info = source.getImageInfo();
+        if(info != null && info.getWidth() > 0 && info.getHeight() > 0){
+            setSize(info.getWidth(), info.getHeight());
+            return;
+        }
+
+        IBitmapRegionDecoder decoder = acquire();
+        if(decoder == null)
+            throw new IOException("Cannot open the decoder");
+        try {
+            setSize(decoder.getWidth(), decoder.getHeight());
+        } finally {
+            release();
+        }
+    }
+
+    private void setSize(int width, int height){
+        synchronized (lock){
+            if(sizeKnown)
+                return;
+            this.width = width;
+            this.height = height;
+            sizeKnown = true;
+            lock.notifyAll();
+        }
+    }
+
+    private void awaitSize(){
+        synchronized (lock){
+            boolean interrupted = false;
+            while(!sizeKnown){
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        IBitmapRegionDecoder decoder = acquire();
+        if(decoder == null)
+            return null;
+        try {
+            if(decoder instanceof PooledOutput){
+                ((PooledOutput) decoder).setBitmapPool(bitmapPool);
+            }
+            return decoder.decodeRegion(rect, options);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public boolean decodeRegion(Rect rect, int sampleSize, PixelBuffer output) {
+        IBitmapRegionDecoder decoder = acquire();
+        if(decoder == null)
+            return false;
+        try {
+            BitmapPool pool = bitmapPool;
+            if(decoder instanceof PooledOutput){
+                ((PooledOutput) decoder).setBitmapPool(pool);
+            }
+            return PixelBuffer.decode(decoder, rect, sampleSize, output, pool);
+        } finally {
+            release();
+        }
+    }
+
+    @Override
+    public void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
+    }
+
+    /**
+     * Returns the real decoder, opening it if needed, or null if it can not be opened
+     */
+    private IBitmapRegionDecoder acquire(){
+        synchronized (lock){
+            boolean interrupted = false;
+            while(opening){
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if(interrupted)
+                Thread.currentThread().interrupt();
+
+            if(isRecycled)
+                throw new IllegalStateException("Cannot decode region: decoder is recycled");
+
+            activeDecodes++;
+            trimPending = false;
+            if(delegate != null)
+                return delegate;
+            opening = true;
+        }
+
+        //open outside of the lock: the others wait for it
+        IBitmapRegionDecoder decoder = null;
+        try {
+            decoder = factory.create();
+        } catch (IOException e) {
+            //reported as a failed decode
+        } finally {
+            synchronized (lock){
+                opening = false;
+                delegate = decoder;
+                if(decoder == null)
+                    activeDecodes--;
+                lock.notifyAll();
+            }
+        }
+        return decoder;
+    }
+
+    private void release(){
+        IBitmapRegionDecoder closed = null;
+        synchronized (lock){
+            activeDecodes--;
+            if(activeDecodes == 0 && (trimPending || isRecycled)){
+                closed = delegate;
+                delegate = null;
+                trimPending = false;
+            }
+        }
+        if(closed != null)
+            closed.recycle();
+    }
+
+    /**
+     * Closes the real decoder, now if it is idle or after the running decodes
+     * @return true if the decoder was open
+     */
+    boolean trim(){
+        IBitmapRegionDecoder closed = null;
+        synchronized (lock){
+            if(delegate == null)
+                return false;
+            if(activeDecodes == 0){
+                closed = delegate;
+                delegate = null;
+            }
+            else{
+                trimPending = true;
+            }
+        }
+        if(closed != null)
+            closed.recycle();
+        return true;
+    }
+
+    /**
+     * Returns true if the real decoder is open
+     */
+    boolean isOpen(){
+        synchronized (lock){
+            return delegate != null;
+        }
+    }
+
+    /**
+     * Returns the class name of the real decoder if open, of this class otherwise
+     */
+    String getImplementationName(){
+        synchronized (lock){
+            return (delegate != null ? delegate : this).getClass().getSimpleName();
+        }
+    }
+
+    @Override
+    public int getHeight() {
+        awaitSize();
+        return height;
+    }
+
+    @Override
+    public int getWidth() {
+        awaitSize();
+        return width;
+    }
+
+    @Override
+    public boolean isRecycled() {
+        synchronized (lock){
+            return isRecycled;
+        }
+    }
+
+    @Override
+    public void recycle() {
+        IBitmapRegionDecoder closed = null;
+        synchronized (lock){
+            if(isRecycled)
+                return;
+            isRecycled = true;
+            if(activeDecodes == 0){
+                closed = delegate;
+                delegate = null;
+            }
+        }
+        synchronized (INSTANCES){
+            INSTANCES.remove(this);
+        }
+        if(closed != null)
+            closed.recycle();
+    }
+}
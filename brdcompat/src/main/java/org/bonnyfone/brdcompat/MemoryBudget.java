@@ -0,0 +1,180 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Process-wide budget for the decoded bitmaps (see {@link BitmapRegionDecoderCompat#setMemoryBudget(MemoryBudget)}).<br>
+ * The budget tracks the bytes of the bitmaps returned by all the decoders which are still alive (not recycled, not
+ * released, not garbage collected) and, before each decode, degrades the request to fit the remaining bytes:
+ * first by decoding opaque images as RGB_565, then by doubling inSampleSize. A decode which fails with an
+ * OutOfMemoryError is retried once at a coarser sample size. Degradations are reported to the {@link Listener}.
+ */
+public class MemoryBudget {
+
+    /**
+     * Notified when a request is degraded to fit the budget
+     */
+    public interface Listener {
+
+        /**
+         * Called (on the decoding thread) when a decode is degraded
+         * @param requestedSampleSize the inSampleSize of the request
+         * @param requestedConfig the inPreferredConfig of the request (null for default)
+         * @param sampleSize the inSampleSize used
+         * @param config the inPreferredConfig used
+         * @param remainingBytes the bytes left in the budget before the decode
+         */
+        void onQualityDegraded(int requestedSampleSize, Bitmap.Config requestedConfig, int sampleSize, Bitmap.Config config, long remainingBytes);
+    }
+
+    /**
+     * Requests are never degraded beyond this sample size: the output is small enough anyway
+     */
+    private static final int MAX_SAMPLE_SIZE = 256;
+
+    private final long maxBytes;
+    private final Map<Bitmap, Long> liveBitmaps = new WeakHashMap<Bitmap, Long>();
+    private volatile Listener listener;
+    private int degradedCount;
+
+    /**
+     * @param maxBytes the maximum total size of the live decoded bitmaps
+     */
+    public MemoryBudget(long maxBytes){
+        if(maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes <= 0");
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Creates a budget of a fraction of the maximum heap size of the process
+     * (decoded pixels live in the Java heap up to API 25)
+     * @param fraction e.g. 0.25f
+     * @return
+     */
+    public static MemoryBudget forRuntime(float fraction){
+        return new MemoryBudget(Math.max(1, (long) (Runtime.getRuntime().maxMemory() * fraction)));
+    }
+
+    public void setListener(Listener listener){
+        this.listener = listener;
+    }
+
+    /**
+     * Returns the maximum total size of the live decoded bitmaps
+     */
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    /**
+     * Returns the total size of the decoded bitmaps still alive
+     */
+    public synchronized long getLiveBytes(){
+        long live = 0;
+        for(Map.Entry<Bitmap, Long> entry : liveBitmaps.entrySet()){
+            if(!entry.getKey().isRecycled())
+                live += entry.getValue();
+        }
+        return live;
+    }
+
+    /**
+     * Returns the bytes left in the budget
+     */
+    public long getRemainingBytes(){
+        return Math.max(0, maxBytes - getLiveBytes());
+    }
+
+    /**
+     * Returns the number of degraded requests so far
+     */
+    public synchronized int getDegradedCount(){
+        return degradedCount;
+    }
+
+    /**
+     * Starts tracking a decoded bitmap
+     */
+    synchronized void track(Bitmap bitmap){
+        if(bitmap != null && !liveBitmaps.containsKey(bitmap))
+            liveBitmaps.put(bitmap, (long) BitmapUtils.getBitmapBytes(bitmap));
+    }
+
+    /**
+     * Stops tracking a bitmap released by the caller
+     */
+    synchronized void untrack(Bitmap bitmap){
+        liveBitmaps.remove(bitmap);
+    }
+
+    /**
+     * Returns the largest request, not better than the requested one, which fits the remaining bytes
+     * @param width the width of the region, in pixels of the image
+     * @param height the height of the region, in pixels of the image
+     * @param sampleSize the requested sample size
+     * @param config the requested config (null for default)
+     * @param opaque true if the image has no alpha channel
+     * @return the plan, degraded or not
+     */
+    Plan plan(int width, int height, int sampleSize, Bitmap.Config config, boolean opaque){
+        long remaining = getRemainingBytes();
+        Plan plan = new Plan(sampleSize, config);
+
+        if(getBytes(width, height, plan) > remaining && opaque && BitmapUtils.getBytesPerPixel(config) > 2){
+            plan.config = Bitmap.Config.RGB_565;
+        }
+        while(getBytes(width, height, plan) > remaining && plan.sampleSize < MAX_SAMPLE_SIZE
+                && (width / plan.sampleSize > 1 || height / plan.sampleSize > 1)){
+            plan.sampleSize *= 2;
+        }
+
+        if(plan.sampleSize != sampleSize || plan.config != config)
+            onDegraded(sampleSize, config, plan, remaining);
+        return plan;
+    }
+
+    /**
+     * Degrades a request which failed for lack of memory
+     */
+    Plan planRetry(int sampleSize, Bitmap.Config config){
+        Plan plan = new Plan(Math.min(MAX_SAMPLE_SIZE, sampleSize * 2), config);
+        onDegraded(sampleSize, config, plan, getRemainingBytes());
+        return plan;
+    }
+
+    private void onDegraded(int sampleSize, Bitmap.Config config, Plan plan, long remaining){
+        synchronized (this){
+            degradedCount++;
+        }
+        Listener l = listener;
+        if(l != null)
+            l.onQualityDegraded(sampleSize, config, plan.sampleSize, plan.config, remaining);
+    }
+
+    private static long getBytes(int width, int height, Plan plan){
+        return (long) RegionMath.getSampledSize(width, plan.sampleSize) * RegionMath.getSampledSize(height, plan.sampleSize)
+                * BitmapUtils.getBytesPerPixel(plan.config);
+    }
+
+    @Override
+    public String toString() {
+        return "MemoryBudget[live=" + getLiveBytes() + ",max=" + maxBytes + ",degraded=" + getDegradedCount() + "]";
+    }
+
+    /**
+     * Sample size and config chosen for a request
+     */
+    static final class Plan {
+        int sampleSize;
+        Bitmap.Config config;
+
+        Plan(int sampleSize, Bitmap.Config config){
+            this.sampleSize = sampleSize;
+            this.config = config;
+        }
+    }
+}
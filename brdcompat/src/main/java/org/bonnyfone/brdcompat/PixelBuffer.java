@@ -0,0 +1,190 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Caller-supplied destination of decoded pixels, e.g. a tile of a texture atlas.<br>
+ * Wraps an int[] of ARGB colors (as Bitmap.getPixels()) or a ByteBuffer in one of the FORMAT_* layouts,
+ * with an offset and a row stride. Pass it to
+ * {@link BitmapRegionDecoderCompat#decodeRegion(Rect, int, PixelBuffer)}: the pure-Java decoders write the rows
+ * straight into it, the others through a single copy. Colors are not premultiplied.
+ */
+public class PixelBuffer {
+
+    /**
+     * 32-bit ints, 0xAARRGGBB (int[] only)
+     */
+    public static final int FORMAT_ARGB_8888 = 0;
+
+    /**
+     * 4 bytes per pixel in R, G, B, A order (GL_RGBA, GL_UNSIGNED_BYTE)
+     */
+    public static final int FORMAT_RGBA_8888 = 1;
+
+    /**
+     * 16-bit 5-6-5 values in the byte order of the buffer (GL_RGB, GL_UNSIGNED_SHORT_5_6_5 with native order)
+     */
+    public static final int FORMAT_RGB_565 = 2;
+
+    private final int[] pixels;
+    private final ByteBuffer buffer;
+    private final int offset;
+    private final int stride;
+    private final int format;
+
+    private int outWidth;
+    private int outHeight;
+
+    private PixelBuffer(int[] pixels, ByteBuffer buffer, int offset, int stride, int format){
+        if(offset < 0 || stride <= 0)
+            throw new IllegalArgumentException("Invalid offset or stride");
+        this.pixels = pixels;
+        this.buffer = buffer;
+        this.offset = offset;
+        this.stride = stride;
+        this.format = format;
+    }
+
+    /**
+     * @param pixels the destination of the ARGB colors
+     * @param offset index of the first pixel of the region
+     * @param stride distance between rows, in pixels
+     * @return
+     */
+    public static PixelBuffer wrap(int[] pixels, int offset, int stride){
+        return new PixelBuffer(pixels, null, offset, stride, FORMAT_ARGB_8888);
+    }
+
+    /**
+     * @param buffer the destination, usually a direct buffer (its position and limit are not used)
+     * @param offset byte index of the first pixel of the region
+     * @param stride distance between rows, in bytes
+     * @param format FORMAT_RGBA_8888 or FORMAT_RGB_565
+     * @return
+     */
+    public static PixelBuffer wrap(ByteBuffer buffer, int offset, int stride, int format){
+        if(format != FORMAT_RGBA_8888 && format != FORMAT_RGB_565)
+            throw new IllegalArgumentException("Unsupported format for a ByteBuffer: " + format);
+        return new PixelBuffer(null, buffer, offset, stride, format);
+    }
+
+    public int getFormat() {
+        return format;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    public int getStride() {
+        return stride;
+    }
+
+    /**
+     * Returns the width of the last decoded region
+     * @return
+     */
+    public int getOutWidth() {
+        return outWidth;
+    }
+
+    /**
+     * Returns the height of the last decoded region
+     * @return
+     */
+    public int getOutHeight() {
+        return outHeight;
+    }
+
+    /**
+     * Returns the size in bytes of a pixel
+     * @return
+     */
+    public int getBytesPerPixel(){
+        return format == FORMAT_RGB_565 ? 2 : 4;
+    }
+
+    /**
+     * Sets the size of the region about to be written
+     * @throws IllegalArgumentException if the region does not fit
+     */
+    void prepare(int width, int height){
+        int rowLength = buffer != null ? width * getBytesPerPixel() : width;
+        int capacity = buffer != null ? buffer.capacity() : pixels.length;
+        if(rowLength > stride || offset + (long) (height - 1) * stride + rowLength > capacity)
+            throw new IllegalArgumentException("The region (" + width + "x" + height + ") does not fit in the buffer");
+        outWidth = width;
+        outHeight = height;
+    }
+
+    /**
+     * Writes a row of ARGB colors
+     */
+    void writeRow(int y, int[] argb, int width){
+        if(pixels != null){
+            System.arraycopy(argb, 0, pixels, offset + y * stride, width);
+            return;
+        }
+
+        int index = offset + y * stride;
+        if(format == FORMAT_RGBA_8888){
+            for(int x = 0; x < width; x++){
+                int color = argb[x];
+                buffer.put(index, (byte) (color >> 16));
+                buffer.put(index + 1, (byte) (color >> 8));
+                buffer.put(index + 2, (byte) color);
+                buffer.put(index + 3, (byte) (color >>> 24));
+                index += 4;
+            }
+        }
+        else{
+            for(int x = 0; x < width; x++){
+                int color = argb[x];
+                buffer.putShort(index, (short) (((color >> 8) & 0xF800) | ((color >> 5) & 0x07E0) | ((color >> 3) & 0x001F)));
+                index += 2;
+            }
+        }
+    }
+
+    /**
+     * Copies a region of a bitmap, row by row
+     */
+    void copyFrom(Bitmap bitmap, int left, int top, int width, int height){
+        prepare(width, height);
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++){
+            bitmap.getPixels(row, 0, width, left, top + y, width, 1);
+            writeRow(y, row, width);
+        }
+    }
+
+    /**
+     * Decodes the region into the buffer: directly if the decoder supports it, otherwise through a bitmap
+     * which is given back to the pool (or recycled) afterwards
+     * @return true if the region was decoded
+     */
+    static boolean decode(IBitmapRegionDecoder decoder, Rect rect, int sampleSize, PixelBuffer output, BitmapPool pool){
+        if(decoder instanceof PixelOutput)
+            return ((PixelOutput) decoder).decodeRegion(rect, sampleSize, output);
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = sampleSize;
+        options.inPreferredConfig = output.format == FORMAT_RGB_565 ? Bitmap.Config.RGB_565 : Bitmap.Config.ARGB_8888;
+        Bitmap bitmap = decoder.decodeRegion(rect, options);
+        if(bitmap == null)
+            return false;
+        try {
+            output.copyFrom(bitmap, 0, 0, bitmap.getWidth(), bitmap.getHeight());
+        } finally {
+            if(pool != null)
+                pool.put(bitmap);
+            else
+                bitmap.recycle();
+        }
+        return true;
+    }
+}
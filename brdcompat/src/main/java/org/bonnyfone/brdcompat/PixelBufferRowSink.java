@@ -0,0 +1,18 @@
+package org.bonnyfone.brdcompat;
+
+/**
+ * RowSink which writes the rows into a caller-supplied PixelBuffer
+ */
+class PixelBufferRowSink implements RowSink {
+
+    private final PixelBuffer output;
+
+    PixelBufferRowSink(PixelBuffer output){
+        this.output = output;
+    }
+
+    @Override
+    public void onRow(int y, int[] pixels, int width) {
+        output.writeRow(y, pixels, width);
+    }
+}
@@ -0,0 +1,16 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Rect;
+
+/**
+ * Implemented by the decoders which can write a region into a {@link PixelBuffer} without an intermediate bitmap
+ */
+interface PixelOutput {
+
+    /**
+     * Decodes the region downsampled by sampleSize into the buffer, from its offset
+     * @return true if the region was decoded, false if the image data could not be decoded
+     * @throws IllegalArgumentException if the region is outside the image or does not fit in the buffer
+     */
+    boolean decodeRegion(Rect rect, int sampleSize, PixelBuffer output);
+}
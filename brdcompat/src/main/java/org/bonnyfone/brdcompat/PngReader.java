@@ -0,0 +1,443 @@
+package org.bonnyfone.brdcompat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Streaming PNG reader: parses IHDR/PLTE/tRNS, then inflates and un-filters the IDAT scanlines one by one,
+ * stopping after the last row of the requested region. Only the sampled columns of the region are converted.<br>
+ * Peak memory is two scanlines plus the output. Interlaced images are not supported.
+ */
+final class PngReader {
+
+    static final int COLOR_GREY = 0;
+    static final int COLOR_RGB = 2;
+    static final int COLOR_PALETTE = 3;
+    static final int COLOR_GREY_ALPHA = 4;
+    static final int COLOR_RGBA = 6;
+
+    private static final long SIGNATURE = 0x89504E470D0A1A0AL;
+
+    private static final int CHUNK_IHDR = 0x49484452;
+    private static final int CHUNK_PLTE = 0x504C5445;
+    private static final int CHUNK_TRNS = 0x74524E53;
+    private static final int CHUNK_IDAT = 0x49444154;
+    private static final int CHUNK_IEND = 0x49454E44;
+
+    private static final int INPUT_CHUNK_SIZE = 32 * 1024;
+
+    private final ByteBuffer data;
+
+    final int width;
+    final int height;
+    final int bitDepth;
+    final int colorType;
+    final boolean interlaced;
+
+    private int[] palette;
+    private boolean hasTransparentColor;
+    private int transparentR;
+    private int transparentG;
+    private int transparentB;
+
+    private int[] idatOffsets = new int[8];
+    private int[] idatLengths = new int[8];
+    private int idatCount;
+
+    /**
+     * Returns true if the buffer starts with the PNG signature (the buffer's position is not changed)
+     * @param buffer
+     * @return
+     */
+    static boolean isPng(ByteBuffer buffer){
+        return buffer.remaining() >= 8 && buffer.getLong(buffer.position()) == SIGNATURE;
+    }
+
+    /**
+     * Parses the PNG structure
+     * @param buffer the encoded image, from its position to its limit
+     * @throws IOException if the data is not a supported PNG
+     */
+    PngReader(ByteBuffer buffer) throws IOException {
+        this.data = buffer.slice();
+        if(!isPng(data))
+            throw new IOException("Not a PNG image");
+
+        int pos = 8;
+        if(data.limit() < pos + 8 + 13 || data.getInt(pos + 4) != CHUNK_IHDR)
+            throw new IOException("Missing IHDR chunk");
+
+        width = data.getInt(pos + 8);
+        height = data.getInt(pos + 12);
+        bitDepth = data.get(pos + 16) & 0xFF;
+        colorType = data.get(pos + 17) & 0xFF;
+        interlaced = data.get(pos + 20) != 0;
+
+        if(width <= 0 || height <= 0)
+            throw new IOException("Invalid PNG size " + width + "x" + height);
+        if(getChannels(colorType) == 0 || !isValidBitDepth(colorType, bitDepth))
+            throw new IOException("Unsupported PNG color type " + colorType + " / bit depth " + bitDepth);
+
+        byte[] transparency = null;
+        while(pos + 8 <= data.limit()){
+            int length = data.getInt(pos);
+            int type = data.getInt(pos + 4);
+            int content = pos + 8;
+            if(length < 0 || content + length > data.limit())
+                break; //truncated: keep what we have
+
+            if(type == CHUNK_PLTE){
+                palette = new int[length / 3];
+                for(int i = 0; i < palette.length; i++){
+                    int r = data.get(content + i * 3) & 0xFF;
+                    int g = data.get(content + i * 3 + 1) & 0xFF;
+                    int b = data.get(content + i * 3 + 2) & 0xFF;
+                    palette[i] = 0xFF000000 | (r << 16) | (g << 8) | b;
+                }
+            }
+            else if(type == CHUNK_TRNS){
+                transparency = new byte[length];
+                for(int i = 0; i < length; i++){
+                    transparency[i] = data.get(content + i);
+                }
+            }
+            else if(type == CHUNK_IDAT){
+                addIdat(content, length);
+            }
+            else if(type == CHUNK_IEND){
+                break;
+            }
+            pos = content + length + 4; //skip CRC
+        }
+
+        if(idatCount == 0)
+            throw new IOException("Missing IDAT chunk");
+        if(colorType == COLOR_PALETTE && palette == null)
+            throw new IOException("Missing PLTE chunk");
+
+        if(transparency != null){
+            applyTransparency(transparency);
+        }
+    }
+
+    private void addIdat(int offset, int length){
+        if(idatCount == idatOffsets.length){
+            int[] offsets = new int[idatCount * 2];
+            int[] lengths = new int[idatCount * 2];
+            System.arraycopy(idatOffsets, 0, offsets, 0, idatCount);
+            System.arraycopy(idatLengths, 0, lengths, 0, idatCount);
+            idatOffsets = offsets;
+            idatLengths = lengths;
+        }
+        idatOffsets[idatCount] = offset;
+        idatLengths[idatCount] = length;
+        idatCount++;
+    }
+
+    private void applyTransparency(byte[] trns){
+        if(colorType == COLOR_PALETTE){
+            for(int i = 0; i < trns.length && i < palette.length; i++){
+                palette[i] = (palette[i] & 0x00FFFFFF) | ((trns[i] & 0xFF) << 24);
+            }
+        }
+        else if(colorType == COLOR_GREY && trns.length >= 2){
+            hasTransparentColor = true;
+            transparentR = transparentG = transparentB = ((trns[0] & 0xFF) << 8) | (trns[1] & 0xFF);
+        }
+        else if(colorType == COLOR_RGB && trns.length >= 6){
+            hasTransparentColor = true;
+            transparentR = ((trns[0] & 0xFF) << 8) | (trns[1] & 0xFF);
+            transparentG = ((trns[2] & 0xFF) << 8) | (trns[3] & 0xFF);
+            transparentB = ((trns[4] & 0xFF) << 8) | (trns[5] & 0xFF);
+        }
+    }
+
+    /**
+     * Returns true if the decoded pixels may be non-opaque
+     * @return
+     */
+    boolean hasAlpha(){
+        return colorType == COLOR_GREY_ALPHA || colorType == COLOR_RGBA || hasTransparentColor
+                || (colorType == COLOR_PALETTE && hasTransparentPaletteEntry());
+    }
+
+    private boolean hasTransparentPaletteEntry(){
+        for(int color : palette){
+            if((color >>> 24) != 0xFF)
+                return true;
+        }
+        return false;
+    }
+
+    private static int getChannels(int colorType){
+        switch (colorType){
+            case COLOR_GREY:
+            case COLOR_PALETTE:
+                return 1;
+            case COLOR_GREY_ALPHA:
+                return 2;
+            case COLOR_RGB:
+                return 3;
+            case COLOR_RGBA:
+                return 4;
+            default:
+                return 0;
+        }
+    }
+
+    private static boolean isValidBitDepth(int colorType, int bitDepth){
+        switch (colorType){
+            case COLOR_GREY:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8 || bitDepth == 16;
+            case COLOR_PALETTE:
+                return bitDepth == 1 || bitDepth == 2 || bitDepth == 4 || bitDepth == 8;
+            default:
+                return bitDepth == 8 || bitDepth == 16;
+        }
+    }
+
+    /**
+     * Decodes the region [left, right) x [top, bottom) downsampled by sampleSize,
+     * delivering RegionMath.getSampledSize(right - left, sampleSize) pixels per row to the sink.
+     * @throws IOException if the image data is corrupted or truncated
+     */
+    void decodeRegion(int left, int top, int right, int bottom, int sampleSize, RowSink sink) throws IOException {
+        if(interlaced)
+            throw new IOException("Interlaced PNG images are not supported");
+
+        sampleSize = Math.max(1, sampleSize);
+        int outWidth = RegionMath.getSampledSize(right - left, sampleSize);
+        int outHeight = RegionMath.getSampledSize(bottom - top, sampleSize);
+
+        int bitsPerPixel = getChannels(colorType) * bitDepth;
+        int rowBytes = (width * bitsPerPixel + 7) / 8;
+        int filterStride = Math.max(1, bitsPerPixel / 8);
+
+        //index 0 holds the filter type, the scanline follows
+        byte[] current = new byte[rowBytes + 1];
+        byte[] previous = new byte[rowBytes + 1];
+        int[] pixels = new int[outWidth];
+
+        IdatInflater inflater = new IdatInflater();
+        try {
+            int outY = 0;
+            int nextY = top;
+            for(int y = 0; y < height && outY < outHeight; y++){
+                inflater.readFully(current, rowBytes + 1);
+                unfilter(current, previous, rowBytes, filterStride);
+
+                if(y == nextY){
+                    convertRow(current, left, sampleSize, pixels, outWidth);
+                    sink.onRow(outY, pixels, outWidth);
+                    outY++;
+                    nextY += sampleSize;
+                }
+
+                byte[] swap = previous;
+                previous = current;
+                current = swap;
+            }
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static void unfilter(byte[] row, byte[] previous, int rowBytes, int bpp) throws IOException {
+        int filter = row[0];
+        switch (filter){
+            case 0: //None
+                break;
+            case 1: //Sub
+                for(int i = 1 + bpp; i <= rowBytes; i++){
+                    row[i] += row[i - bpp];
+                }
+                break;
+            case 2: //Up
+                for(int i = 1; i <= rowBytes; i++){
+                    row[i] += previous[i];
+                }
+                break;
+            case 3: //Average
+                for(int i = 1; i <= rowBytes; i++){
+                    int left = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    row[i] += (left + (previous[i] & 0xFF)) >> 1;
+                }
+                break;
+            case 4: //Paeth
+                for(int i = 1; i <= rowBytes; i++){
+                    int a = i > bpp ? row[i - bpp] & 0xFF : 0;
+                    int b = previous[i] & 0xFF;
+                    int c = i > bpp ? previous[i - bpp] & 0xFF : 0;
+                    int p = a + b - c;
+                    int pa = Math.abs(p - a);
+                    int pb = Math.abs(p - b);
+                    int pc = Math.abs(p - c);
+                    row[i] += (pa <= pb && pa <= pc) ? a : (pb <= pc ? b : c);
+                }
+                break;
+            default:
+                throw new IOException("Invalid PNG filter type " + filter);
+        }
+    }
+
+    private void convertRow(byte[] row, int left, int sampleSize, int[] pixels, int outWidth){
+        for(int x = 0; x < outWidth; x++){
+            pixels[x] = getPixel(row, left + x * sampleSize);
+        }
+    }
+
+    /**
+     * Returns the non-premultiplied ARGB color of the pixel at column x of the un-filtered scanline
+     */
+    private int getPixel(byte[] row, int x){
+        int r, g, b, a = 0xFF;
+        switch (colorType){
+            case COLOR_PALETTE: {
+                int index = getPackedSample(row, x);
+                return index < palette.length ? palette[index] : 0xFF000000;
+            }
+            case COLOR_GREY: {
+                int grey;
+                if(bitDepth == 16){
+                    int value = getSample16(row, x, 0, 1);
+                    if(hasTransparentColor && value == transparentR)
+                        a = 0;
+                    grey = value >> 8;
+                }
+                else{
+                    int value = bitDepth == 8 ? row[1 + x] & 0xFF : getPackedSample(row, x);
+                    if(hasTransparentColor && value == transparentR)
+                        a = 0;
+                    grey = value * 255 / ((1 << bitDepth) - 1);
+                }
+                return (a << 24) | (grey << 16) | (grey << 8) | grey;
+            }
+            case COLOR_GREY_ALPHA: {
+                int grey;
+                if(bitDepth == 16){
+                    grey = row[1 + x * 4] & 0xFF;
+                    a = row[1 + x * 4 + 2] & 0xFF;
+                }
+                else{
+                    grey = row[1 + x * 2] & 0xFF;
+                    a = row[1 + x * 2 + 1] & 0xFF;
+                }
+                return (a << 24) | (grey << 16) | (grey << 8) | grey;
+            }
+            case COLOR_RGB: {
+                if(bitDepth == 16){
+                    int r16 = getSample16(row, x, 0, 3);
+                    int g16 = getSample16(row, x, 1, 3);
+                    int b16 = getSample16(row, x, 2, 3);
+                    if(hasTransparentColor && r16 == transparentR && g16 == transparentG && b16 == transparentB)
+                        a = 0;
+                    r = r16 >> 8;
+                    g = g16 >> 8;
+                    b = b16 >> 8;
+                }
+                else{
+                    int i = 1 + x * 3;
+                    r = row[i] & 0xFF;
+                    g = row[i + 1] & 0xFF;
+                    b = row[i + 2] & 0xFF;
+                    if(hasTransparentColor && r == transparentR && g == transparentG && b == transparentB)
+                        a = 0;
+                }
+                return (a << 24) | (r << 16) | (g << 8) | b;
+            }
+            default: { //COLOR_RGBA
+                int i = bitDepth == 16 ? 1 + x * 8 : 1 + x * 4;
+                int step = bitDepth == 16 ? 2 : 1;
+                r = row[i] & 0xFF;
+                g = row[i + step] & 0xFF;
+                b = row[i + step * 2] & 0xFF;
+                a = row[i + step * 3] & 0xFF;
+                return (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    /**
+     * Returns the sample of a single-channel pixel with bit depth lower or equal to 8
+     */
+    private int getPackedSample(byte[] row, int x){
+        if(bitDepth == 8)
+            return row[1 + x] & 0xFF;
+
+        int bit = x * bitDepth;
+        int shift = 8 - bitDepth - (bit & 7);
+        return ((row[1 + (bit >> 3)] & 0xFF) >> shift) & ((1 << bitDepth) - 1);
+    }
+
+    private static int getSample16(byte[] row, int x, int channel, int channels){
+        int i = 1 + (x * channels + channel) * 2;
+        return ((row[i] & 0xFF) << 8) | (row[i + 1] & 0xFF);
+    }
+
+    /**
+     * Inflates the concatenated IDAT chunks on demand
+     */
+    private final class IdatInflater {
+        private final Inflater inflater = new Inflater();
+        private byte[] input;
+        private int chunk;
+        private int chunkPosition;
+
+        void readFully(byte[] out, int length) throws IOException {
+            int done = 0;
+            try {
+                while(done < length){
+                    int n = inflater.inflate(out, done, length - done);
+                    if(n == 0){
+                        if(inflater.finished() || inflater.needsDictionary())
+                            throw new EOFException("Truncated PNG image data");
+                        if(inflater.needsInput() && !feed())
+                            throw new EOFException("Truncated PNG image data");
+                    }
+                    done += n;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupted PNG image data: " + e.getMessage());
+            }
+        }
+
+        /**
+         * Hands the next piece of IDAT data to the inflater
+         * @return false if there is no more data
+         */
+        private boolean feed(){
+            while(chunk < idatCount && chunkPosition >= idatLengths[chunk]){
+                chunk++;
+                chunkPosition = 0;
+            }
+            if(chunk >= idatCount)
+                return false;
+
+            int offset = idatOffsets[chunk] + chunkPosition;
+            int remaining = idatLengths[chunk] - chunkPosition;
+            if(data.hasArray()){
+                //no copy for heap buffers
+                inflater.setInput(data.array(), data.arrayOffset() + offset, remaining);
+                chunkPosition += remaining;
+            }
+            else{
+                if(input == null)
+                    input = new byte[INPUT_CHUNK_SIZE];
+                int length = Math.min(remaining, input.length);
+                ByteBuffer view = data.duplicate();
+                view.position(offset);
+                view.get(input, 0, length);
+                inflater.setInput(input, 0, length);
+                chunkPosition += length;
+            }
+            return true;
+        }
+
+        void end(){
+            inflater.end();
+        }
+    }
+}
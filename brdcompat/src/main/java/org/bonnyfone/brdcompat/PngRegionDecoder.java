@@ -0,0 +1,52 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+/**
+ * Pure-Java region decoder for (non-interlaced) PNG images, used by the fallback implementation.<br>
+ * Scanlines are inflated one by one up to the bottom of the region, and only the sampled columns of the region
+ * are kept: decoding a strip costs one scanline of memory plus the output, instead of the whole image.
+ */
+class PngRegionDecoder extends RowRegionDecoder {
+
+    private final PngReader reader;
+
+    private PngRegionDecoder(ImageSource source) throws IOException {
+        super(source);
+        this.reader = new PngReader(source.getBuffer());
+        if(reader.interlaced){
+            throw new IOException("Interlaced PNG images are not supported");
+        }
+    }
+
+    @Override
+    void decodeRows(Rect area, int sampleSize, RowSink sink) throws IOException {
+        reader.decodeRegion(area.left, area.top, area.right, area.bottom, sampleSize, sink);
+    }
+
+    @Override
+    boolean hasAlpha() {
+        return reader.hasAlpha();
+    }
+
+    @Override
+    public int getHeight() {
+        return reader.height;
+    }
+
+    @Override
+    public int getWidth() {
+        return reader.width;
+    }
+
+    /**
+     * @param source
+     * @return
+     * @throws IOException if the source is not a supported PNG image
+     */
+    static PngRegionDecoder newInstance(ImageSource source) throws IOException {
+        return new PngRegionDecoder(source);
+    }
+}
@@ -0,0 +1,13 @@
+package org.bonnyfone.brdcompat;
+
+/**
+ * Implemented by the decoders which can take their output bitmaps from a {@link BitmapPool} by themselves,
+ * without BitmapFactory.Options.inBitmap
+ */
+interface PooledOutput {
+
+    /**
+     * @param pool the pool of the output bitmaps, or null
+     */
+    void setBitmapPool(BitmapPool pool);
+}
@@ -0,0 +1,317 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ * Region decoder backed by a pool of decoders for the same image, so that concurrent decodeRegion() calls
+ * run in parallel instead of queueing on the lock of a single platform decoder.<br>
+ * Decoders are opened lazily, up to maxDecoders, and lent to one call at a time; decoders left idle longer than
+ * the idle timeout are recycled by a background timer (the pool never shrinks below one decoder).<br>
+ * If a decoder can not be opened, no new decoder is opened for a short delay and the calls wait for the open ones.
+ */
+class PooledRegionDecoder implements IBitmapRegionDecoder, PooledOutput, PixelOutput {
+
+    /**
+     * Creates the pooled decoders
+     */
+    interface Factory {
+        IBitmapRegionDecoder create() throws IOException;
+    }
+
+    /**
+     * Delay before trying again to open a decoder after a failure
+     */
+    static final long OPEN_RETRY_DELAY_MILLIS = 1000;
+
+    private static Timer expiryTimer;
+
+    private final Factory factory;
+    private final long idleTimeoutNanos;
+    private final int width;
+    private final int height;
+    private final int maxDecoders;
+
+    private final Object lock = new Object();
+    private final LinkedList<IBitmapRegionDecoder> idle = new LinkedList<IBitmapRegionDecoder>();
+    private final LinkedList<Long> idleSince = new LinkedList<Long>();
+    private int poolSize;
+    private int peakPoolSize;
+    private boolean isRecycled;
+    private long openRetryTime;
+    private boolean expiryScheduled;
+    private volatile BitmapPool bitmapPool;
+
+    private long acquireCount;
+    private long waitCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    /**
+     * @param factory
+     * @param maxDecoders maximum number of decoders to open
+     * @param idleTimeoutMillis time after which an idle decoder is recycled
+     * @throws IOException if the first decoder can not be created
+     */
+    PooledRegionDecoder(Factory factory, int maxDecoders, long idleTimeoutMillis) throws IOException {
+        if(maxDecoders < 1)
+            throw new IllegalArgumentException("maxDecoders < 1");
+
+        this.factory = factory;
+        this.maxDecoders = maxDecoders;
+        this.idleTimeoutNanos = idleTimeoutMillis * 1000000L;
+        this.openRetryTime = System.nanoTime();
+
+        IBitmapRegionDecoder first = factory.create();
+        this.width = first.getWidth();
+        this.height = first.getHeight();
+        poolSize = peakPoolSize = 1;
+        idle.addLast(first);
+        idleSince.addLast(System.nanoTime());
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        IBitmapRegionDecoder decoder = acquire();
+        if(decoder instanceof PooledOutput){
+            ((PooledOutput) decoder).setBitmapPool(bitmapPool);
+        }
+        try {
+            return decoder.decodeRegion(rect, options);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    @Override
+    public boolean decodeRegion(Rect rect, int sampleSize, PixelBuffer output) {
+        IBitmapRegionDecoder decoder = acquire();
+        BitmapPool pool = bitmapPool;
+        if(decoder instanceof PooledOutput){
+            ((PooledOutput) decoder).setBitmapPool(pool);
+        }
+        try {
+            return PixelBuffer.decode(decoder, rect, sampleSize, output, pool);
+        } finally {
+            release(decoder);
+        }
+    }
+
+    @Override
+    public void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
+    }
+
+    /**
+     * Lends an idle decoder, opens a new one if the pool is not full, or waits for a decoder to be released
+     */
+    private IBitmapRegionDecoder acquire(){
+        long start = System.nanoTime();
+        boolean waited = false;
+        while(true){
+            IBitmapRegionDecoder decoder = null;
+            List<IBitmapRegionDecoder> expired = null;
+            try {
+                synchronized (lock){
+                    expired = removeExpired(System.nanoTime());
+                    while(true){
+                        if(isRecycled)
+                            throw new IllegalStateException("Cannot decode region: decoder is recycled");
+
+                        if(!idle.isEmpty()){
+                            //most recently used first, so that the others can time out
+                            idleSince.removeLast();
+                            decoder = idle.removeLast();
+                            onAcquired(start, waited);
+                            break;
+                        }
+
+                        long retryDelay = openRetryTime - System.nanoTime();
+                        if(poolSize < maxDecoders && retryDelay <= 0){
+                            poolSize++;
+                            peakPoolSize = Math.max(peakPoolSize, poolSize);
+                            break;
+                        }
+
+                        waited = true;
+                        try {
+                            if(poolSize < maxDecoders){
+                                //wake up when a new decoder can be opened again
+                                lock.wait(Math.max(1, retryDelay / 1000000L));
+                            }
+                            else{
+                                lock.wait();
+                            }
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new IllegalStateException("Interrupted while waiting for a decoder");
+                        }
+                    }
+                }
+            } finally {
+                recycleAll(expired);
+            }
+            if(decoder != null)
+                return decoder;
+
+            //open a new decoder outside of the lock; any failure gives the slot back
+            try {
+                decoder = factory.create();
+            } catch (IOException e) {
+                //the source does not allow more decoders right now: stick to the open ones for a while
+            } finally {
+                if(decoder == null){
+                    synchronized (lock){
+                        poolSize--;
+                        openRetryTime = System.nanoTime() + OPEN_RETRY_DELAY_MILLIS * 1000000L;
+                        lock.notifyAll();
+                    }
+                }
+            }
+            if(decoder != null){
+                synchronized (lock){
+                    onAcquired(start, waited);
+                }
+                return decoder;
+            }
+            waited = true;
+        }
+    }
+
+    private void onAcquired(long start, boolean waited){
+        acquireCount++;
+        if(waited){
+            long wait = System.nanoTime() - start;
+            waitCount++;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+        }
+    }
+
+    private void release(IBitmapRegionDecoder decoder){
+        List<IBitmapRegionDecoder> expired;
+        synchronized (lock){
+            if(isRecycled){
+                decoder.recycle();
+                return;
+            }
+            long now = System.nanoTime();
+            idle.addLast(decoder);
+            idleSince.addLast(now);
+            expired = removeExpired(now);
+            scheduleExpiry();
+            lock.notify();
+        }
+        recycleAll(expired);
+    }
+
+    /**
+     * Schedules the recycling of the oldest idle decoder when it times out, so that the pool shrinks
+     * even if no other call comes (called holding the lock)
+     */
+    private void scheduleExpiry(){
+        if(expiryScheduled || isRecycled || poolSize <= 1 || idle.isEmpty())
+            return;
+
+        long delay = (idleSince.getFirst() + idleTimeoutNanos - System.nanoTime()) / 1000000L + 1;
+        expiryScheduled = true;
+        getExpiryTimer().schedule(new TimerTask() {
+            @Override
+            public void run() {
+                List<IBitmapRegionDecoder> expired;
+                synchronized (lock){
+                    expiryScheduled = false;
+                    expired = removeExpired(System.nanoTime());
+                    scheduleExpiry();
+                }
+                recycleAll(expired);
+            }
+        }, Math.max(0, delay));
+    }
+
+    private static synchronized Timer getExpiryTimer(){
+        if(expiryTimer == null){
+            expiryTimer = new Timer("PooledRegionDecoder", true);
+        }
+        return expiryTimer;
+    }
+
+    /**
+     * Removes the decoders idle for longer than the timeout (keeping at least one)
+     */
+    private List<IBitmapRegionDecoder> removeExpired(long now){
+        List<IBitmapRegionDecoder> expired = null;
+        while(poolSize > 1 && !idle.isEmpty() && now - idleSince.getFirst() > idleTimeoutNanos){
+            if(expired == null)
+                expired = new ArrayList<IBitmapRegionDecoder>();
+            idleSince.removeFirst();
+            expired.add(idle.removeFirst());
+            poolSize--;
+        }
+        return expired;
+    }
+
+    private static void recycleAll(List<IBitmapRegionDecoder> decoders){
+        if(decoders != null){
+            for(IBitmapRegionDecoder decoder : decoders){
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Returns a snapshot of the pool statistics
+     */
+    DecoderPoolStats getStats(){
+        List<IBitmapRegionDecoder> expired;
+        DecoderPoolStats stats;
+        synchronized (lock){
+            expired = removeExpired(System.nanoTime());
+            stats = new DecoderPoolStats(poolSize, poolSize - idle.size(), maxDecoders, peakPoolSize, acquireCount, waitCount, totalWaitNanos, maxWaitNanos);
+        }
+        recycleAll(expired);
+        return stats;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public boolean isRecycled() {
+        synchronized (lock){
+            return isRecycled;
+        }
+    }
+
+    /**
+     * Recycles the idle decoders; busy decoders are recycled as soon as they are released
+     */
+    @Override
+    public void recycle() {
+        List<IBitmapRegionDecoder> decoders;
+        synchronized (lock){
+            isRecycled = true;
+            decoders = new ArrayList<IBitmapRegionDecoder>(idle);
+            idle.clear();
+            idleSince.clear();
+            poolSize = 0;
+            lock.notifyAll();
+        }
+        recycleAll(decoders);
+    }
+}
@@ -0,0 +1,307 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+import android.os.SystemClock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes ahead of the pan the tiles which are about to become visible, so that they are already in the
+ * {@link RegionCache} when the viewer asks for them.<br>
+ * The viewer reports every viewport change with {@link #onViewportChanged(Rect, int)}; the scheduler estimates the pan
+ * velocity and submits the tiles of the predicted viewport to the {@link AsyncRegionDecoder} with
+ * {@link RegionRequest#PRIORITY_PREFETCH}, so that visible tiles are always decoded first.
+ * Prefetches which fall out of the predicted viewport (e.g. when the pan changes direction) or belong to another
+ * zoom level are cancelled. The number of prefetches in flight is capped by a memory and a thread budget.<br>
+ * The viewer must decode its tiles through the same decoder, on the same grid (see {@link #getTileRect(int, int, int, Rect)})
+ * and with the same inPreferredConfig, for the prefetched tiles to be found in the cache.
+ */
+public class PrefetchScheduler {
+
+    private static final long DEFAULT_LOOK_AHEAD_MS = 300;
+
+    /**
+     * Viewport updates further apart than this start a new pan
+     */
+    private static final long MAX_UPDATE_GAP_MS = 250;
+
+    private final AsyncRegionDecoder async;
+    private final BitmapRegionDecoderCompat decoder;
+    private final RegionCache cache;
+    private final int tileSize;
+
+    private long lookAheadMillis = DEFAULT_LOOK_AHEAD_MS;
+    private long maxPrefetchBytes;
+    private int maxPendingPrefetches;
+    private Bitmap.Config preferredConfig;
+
+    private int sampleSize = -1;
+    private int lastCenterX;
+    private int lastCenterY;
+    private long lastTime = -1;
+    private float velocityX;
+    private float velocityY;
+
+    private final Map<Long, Future<Bitmap>> pending = new HashMap<Long, Future<Bitmap>>();
+    private long prefetchCount;
+    private long cancelCount;
+
+    /**
+     * @param async the decoder of the viewer; its BitmapRegionDecoderCompat must have a {@link RegionCache}
+     * @param tileSize the size of the tiles of the viewer, in output pixels
+     */
+    public PrefetchScheduler(AsyncRegionDecoder async, int tileSize){
+        if(tileSize <= 0)
+            throw new IllegalArgumentException("tileSize <= 0");
+        this.async = async;
+        this.decoder = async.getDecoder();
+        this.cache = decoder.getRegionCache();
+        if(cache == null)
+            throw new IllegalArgumentException("The decoder has no RegionCache: prefetched tiles would be lost");
+        this.tileSize = tileSize;
+        this.maxPrefetchBytes = cache.maxSize() / 4;
+        this.maxPendingPrefetches = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+    }
+
+    /**
+     * Sets how far ahead, in time, the viewport is predicted (default 300 ms)
+     * @param millis
+     */
+    public synchronized void setLookAheadMillis(long millis){
+        lookAheadMillis = Math.max(0, millis);
+    }
+
+    /**
+     * Sets the maximum size of the tiles being prefetched at the same time (default a quarter of the cache size)
+     * @param maxBytes
+     */
+    public synchronized void setMaxPrefetchBytes(long maxBytes){
+        maxPrefetchBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Sets the maximum number of prefetches queued or running at the same time (default: cores - 1)
+     * @param maxPending
+     */
+    public synchronized void setMaxPendingPrefetches(int maxPending){
+        maxPendingPrefetches = Math.max(0, maxPending);
+    }
+
+    /**
+     * Sets the inPreferredConfig used by the viewer, so that prefetched tiles match its cache keys (default null)
+     * @param config
+     */
+    public synchronized void setPreferredConfig(Bitmap.Config config){
+        preferredConfig = config;
+    }
+
+    /**
+     * Returns the region of the image covered by a tile of the grid used for the prefetches
+     * @param tileX the column of the tile
+     * @param tileY the row of the tile
+     * @param sampleSize the sample size of the zoom level
+     * @param out set to the region, clipped to the image bounds
+     * @return out
+     */
+    public Rect getTileRect(int tileX, int tileY, int sampleSize, Rect out){
+        int extent = tileSize * BitmapUtils.getSampleSize(sampleSize);
+        out.set(tileX * extent, tileY * extent, Math.min(decoder.getWidth(), (tileX + 1) * extent), Math.min(decoder.getHeight(), (tileY + 1) * extent));
+        return out;
+    }
+
+    /**
+     * Reports the current viewport; call it on every scroll/zoom update
+     * @param viewport the visible region, in image coordinates
+     * @param inSampleSize the sample size of the current zoom level
+     */
+    public void onViewportChanged(Rect viewport, int inSampleSize){
+        onViewportChanged(viewport, inSampleSize, SystemClock.uptimeMillis());
+    }
+
+    /**
+     * Reports the viewport at the given time
+     * @param viewport the visible region, in image coordinates
+     * @param inSampleSize the sample size of the current zoom level
+     * @param timeMillis the time of the update, in milliseconds (monotonic)
+     */
+    public synchronized void onViewportChanged(Rect viewport, int inSampleSize, long timeMillis){
+        int sample = BitmapUtils.getSampleSize(inSampleSize);
+        int centerX = viewport.centerX();
+        int centerY = viewport.centerY();
+        long elapsed = timeMillis - lastTime;
+
+        if(sample != sampleSize || lastTime < 0 || elapsed > MAX_UPDATE_GAP_MS){
+            //new zoom level or new pan: the previous predictions are useless
+            if(sample != sampleSize)
+                cancelPending(null);
+            velocityX = 0;
+            velocityY = 0;
+        }
+        else if(elapsed > 0){
+            float vx = (float) (centerX - lastCenterX) / elapsed;
+            float vy = (float) (centerY - lastCenterY) / elapsed;
+            if(vx * velocityX + vy * velocityY < 0){
+                //the pan changed direction
+                velocityX = vx;
+                velocityY = vy;
+            }
+            else{
+                velocityX = (velocityX + vx) / 2;
+                velocityY = (velocityY + vy) / 2;
+            }
+        }
+
+        sampleSize = sample;
+        lastCenterX = centerX;
+        lastCenterY = centerY;
+        if(elapsed != 0 || lastTime < 0)
+            lastTime = timeMillis;
+
+        schedule(viewport);
+    }
+
+    private void schedule(Rect viewport){
+        int extent = tileSize * sampleSize;
+        int dx = Math.round(velocityX * lookAheadMillis);
+        int dy = Math.round(velocityY * lookAheadMillis);
+        if(Math.abs(dx) < extent / 4 && Math.abs(dy) < extent / 4){
+            //not moving, or too slowly to outrun the visible decodes
+            cancelPending(null);
+            return;
+        }
+
+        //the area swept by the viewport until the predicted position
+        Rect predicted = new Rect(viewport);
+        predicted.offset(dx, dy);
+        predicted.union(viewport);
+        if(!predicted.intersect(0, 0, decoder.getWidth(), decoder.getHeight())){
+            cancelPending(null);
+            return;
+        }
+        cancelPending(predicted);
+
+        long tileBytes = (long) tileSize * tileSize * BitmapUtils.getBytesPerPixel(preferredConfig != null ? preferredConfig : Bitmap.Config.ARGB_8888);
+        int budget = (int) Math.min(maxPendingPrefetches, maxPrefetchBytes / Math.max(1, tileBytes)) - pending.size();
+        if(budget <= 0)
+            return;
+
+        //the tiles entering the view, nearest first
+        List<long[]> candidates = new ArrayList<long[]>();
+        Rect tile = new Rect();
+        final int centerX = viewport.centerX();
+        final int centerY = viewport.centerY();
+        for(int ty = predicted.top / extent; ty <= (predicted.bottom - 1) / extent; ty++){
+            for(int tx = predicted.left / extent; tx <= (predicted.right - 1) / extent; tx++){
+                long key = ((long) ty << 32) | tx;
+                getTileRect(tx, ty, sampleSize, tile);
+                if(Rect.intersects(tile, viewport) || pending.containsKey(key) || isCached(tile))
+                    continue;
+                long distance = (long) (tile.centerX() - centerX) * (tile.centerX() - centerX) + (long) (tile.centerY() - centerY) * (tile.centerY() - centerY);
+                candidates.add(new long[]{key, distance});
+            }
+        }
+        Collections.sort(candidates, new Comparator<long[]>() {
+            @Override
+            public int compare(long[] a, long[] b) {
+                return a[1] < b[1] ? -1 : (a[1] == b[1] ? 0 : 1);
+            }
+        });
+
+        for(int i = 0; i < candidates.size() && i < budget; i++){
+            long key = candidates.get(i)[0];
+            getTileRect((int) key, (int) (key >> 32), sampleSize, tile);
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inSampleSize = sampleSize;
+            options.inPreferredConfig = preferredConfig;
+            RegionRequest request = new RegionRequest(tile, options, RegionRequest.PRIORITY_PREFETCH, callback);
+            request.setTag(key);
+            pending.put(key, async.decodeRegion(request));
+            prefetchCount++;
+        }
+    }
+
+    private boolean isCached(Rect tile){
+        return cache.containsKey(new RegionCache.Key(decoder.getSourceKey(), tile, sampleSize, preferredConfig));
+    }
+
+    /**
+     * Cancels the prefetches outside of the area (all of them if area is null)
+     */
+    private void cancelPending(Rect area){
+        Rect tile = new Rect();
+        Iterator<Map.Entry<Long, Future<Bitmap>>> it = pending.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<Long, Future<Bitmap>> entry = it.next();
+            if(entry.getValue().isDone()){
+                it.remove();
+                continue;
+            }
+            long key = entry.getKey();
+            if(area != null && Rect.intersects(getTileRect((int) key, (int) (key >> 32), sampleSize, tile), area))
+                continue;
+            if(entry.getValue().cancel(false))
+                cancelCount++;
+            it.remove();
+        }
+    }
+
+    /**
+     * Cancels all the pending prefetches, e.g. when the viewer is closed
+     */
+    public synchronized void cancel(){
+        cancelPending(null);
+        lastTime = -1;
+    }
+
+    /**
+     * Returns the number of prefetches queued or running
+     */
+    public synchronized int getPendingCount(){
+        return pending.size();
+    }
+
+    /**
+     * Returns the number of prefetches submitted so far
+     */
+    public synchronized long getPrefetchCount(){
+        return prefetchCount;
+    }
+
+    /**
+     * Returns the number of prefetches cancelled before being decoded
+     */
+    public synchronized long getCancelCount(){
+        return cancelCount;
+    }
+
+    private void onPrefetchDone(RegionRequest request){
+        synchronized (this){
+            Object key = request.getTag();
+            Future<Bitmap> future = pending.get(key);
+            if(future != null && future.isDone())
+                pending.remove(key);
+        }
+    }
+
+    private final RegionCallback callback = new RegionCallback() {
+        @Override
+        public void onRegionDecoded(RegionRequest request, Bitmap bitmap) {
+            //the tile is in the cache now
+            onPrefetchDone(request);
+        }
+
+        @Override
+        public void onRegionFailed(RegionRequest request, Throwable error) {
+            onPrefetchDone(request);
+        }
+    };
+}
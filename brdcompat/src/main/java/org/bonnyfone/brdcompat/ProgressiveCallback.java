@@ -0,0 +1,27 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+
+/**
+ * Receives the passes of a progressive decode (see {@link AsyncRegionDecoder#decodeRegionProgressive(android.graphics.Rect, android.graphics.BitmapFactory.Options, ProgressiveCallback)}).
+ * Methods are invoked on the decoding thread (or on the calling thread for passes served from the cache);
+ * nothing is notified after the decode is cancelled.
+ */
+public interface ProgressiveCallback {
+
+    /**
+     * Called for each pass, from the coarsest to the requested quality
+     * @param decode the progressive decode
+     * @param bitmap the region decoded at sampleSize
+     * @param sampleSize the sample size of this pass
+     * @param isFinal true for the pass at the requested sample size (the last one)
+     */
+    void onPass(ProgressiveDecode decode, Bitmap bitmap, int sampleSize, boolean isFinal);
+
+    /**
+     * Called when a pass failed; no further pass is delivered
+     * @param decode the progressive decode
+     * @param error the exception, or null if the image data could not be decoded
+     */
+    void onFailed(ProgressiveDecode decode, Throwable error);
+}
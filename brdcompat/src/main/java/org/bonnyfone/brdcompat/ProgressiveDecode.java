@@ -0,0 +1,188 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.util.concurrent.Future;
+
+/**
+ * Handle of a progressive decode: the region is delivered first at a coarse sample size, then refined
+ * down to the requested one (see {@link AsyncRegionDecoder#decodeRegionProgressive(Rect, BitmapFactory.Options, ProgressiveCallback)}).
+ */
+public class ProgressiveDecode {
+
+    /**
+     * The first pass is decoded at this multiple of the requested sample size
+     */
+    static final int COARSE_FACTOR = 8;
+
+    /**
+     * Each refinement pass divides the sample size by this factor (about 1/16 of the pixels of the next one)
+     */
+    static final int REFINE_FACTOR = 4;
+
+    private final AsyncRegionDecoder async;
+    private final Rect rect;
+    private final int sampleSize;
+    private final Bitmap.Config config;
+    private final ProgressiveCallback callback;
+
+    private volatile boolean cancelled;
+    private volatile boolean done;
+    private Future<Bitmap> current;
+    private int currentSample = Integer.MAX_VALUE;
+
+    ProgressiveDecode(AsyncRegionDecoder async, Rect rect, BitmapFactory.Options options, ProgressiveCallback callback){
+        this.async = async;
+        this.rect = new Rect(rect);
+        this.sampleSize = options != null ? BitmapUtils.getSampleSize(options.inSampleSize) : 1;
+        this.config = options != null ? options.inPreferredConfig : null;
+        this.callback = callback;
+    }
+
+    /**
+     * Delivers the best region already decoded for the image, if any, then submits the first pass to decode
+     */
+    void start(){
+        int coarsest = sampleSize * COARSE_FACTOR;
+        BitmapRegionDecoderCompat decoder = async.getDecoder();
+        RegionCache cache = decoder.getRegionCache();
+        RegionCache.Key key = cache != null ? cache.findCovering(decoder.getSourceKey(), rect, config) : null;
+        Bitmap cached = key != null ? cache.get(key) : null;
+        if(cached != null && key.sampleSize <= coarsest){
+            //the cached region may be finer than the requested one: never deliver more than requested
+            int passSample = Math.max(key.sampleSize, sampleSize);
+            Bitmap pass = cropCached(cached, key, passSample);
+            if(pass != null){
+                boolean isFinal = passSample == sampleSize;
+                deliver(pass, passSample, isFinal);
+                if(isFinal)
+                    return;
+                coarsest = passSample / REFINE_FACTOR;
+            }
+        }
+        submit(Math.max(sampleSize, coarsest));
+    }
+
+    /**
+     * Crops the rect out of a cached region, scaled to the sample size of the pass
+     */
+    private Bitmap cropCached(Bitmap cached, RegionCache.Key key, int passSample){
+        float scaleX = (float) cached.getWidth() / (key.right - key.left);
+        float scaleY = (float) cached.getHeight() / (key.bottom - key.top);
+        int left = RegionMath.clamp(Math.round((rect.left - key.left) * scaleX), 0, cached.getWidth() - 1);
+        int top = RegionMath.clamp(Math.round((rect.top - key.top) * scaleY), 0, cached.getHeight() - 1);
+        int right = RegionMath.clamp(Math.round((rect.right - key.left) * scaleX), left + 1, cached.getWidth());
+        int bottom = RegionMath.clamp(Math.round((rect.bottom - key.top) * scaleY), top + 1, cached.getHeight());
+
+        int outWidth = RegionMath.getSampledSize(rect.width(), passSample);
+        int outHeight = RegionMath.getSampledSize(rect.height(), passSample);
+        Bitmap region = Bitmap.createBitmap(cached, left, top, right - left, bottom - top);
+        if(region.getWidth() != outWidth || region.getHeight() != outHeight){
+            Bitmap scaled = Bitmap.createScaledBitmap(region, outWidth, outHeight, true);
+            if(region != cached && scaled != region)
+                region.recycle();
+            region = scaled;
+        }
+        return region;
+    }
+
+    private void submit(final int passSample){
+        if(cancelled)
+            return;
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = passSample;
+        options.inPreferredConfig = config;
+        int priority;
+        synchronized (this){
+            //refinements wait for the first passes of the other regions
+            priority = current == null ? RegionRequest.PRIORITY_VISIBLE : RegionRequest.PRIORITY_NEAR_VISIBLE;
+        }
+        Future<Bitmap> pass = async.decodeRegion(new RegionRequest(rect, options, priority, new RegionCallback() {
+            @Override
+            public void onRegionDecoded(RegionRequest request, Bitmap bitmap) {
+                if(bitmap == null){
+                    fail(null);
+                    return;
+                }
+                boolean isFinal = passSample <= sampleSize;
+                deliver(bitmap, passSample, isFinal);
+                if(!isFinal)
+                    submit(Math.max(sampleSize, passSample / REFINE_FACTOR));
+            }
+
+            @Override
+            public void onRegionFailed(RegionRequest request, Throwable error) {
+                fail(error);
+            }
+        }));
+
+        synchronized (this){
+            //with a direct executor the next pass may already be submitted
+            if(passSample < currentSample){
+                current = pass;
+                currentSample = passSample;
+            }
+        }
+        if(cancelled)
+            pass.cancel(false);
+    }
+
+    private void deliver(Bitmap bitmap, int passSample, boolean isFinal){
+        if(cancelled)
+            return;
+        if(isFinal)
+            done = true;
+        callback.onPass(this, bitmap, passSample, isFinal);
+    }
+
+    private void fail(Throwable error){
+        if(cancelled)
+            return;
+        done = true;
+        callback.onFailed(this, error);
+    }
+
+    /**
+     * Cancels the remaining passes: the pending pass is dropped if not started yet, no further pass is delivered
+     */
+    public void cancel(){
+        cancelled = true;
+        Future<Bitmap> pass;
+        synchronized (this){
+            pass = current;
+        }
+        if(pass != null)
+            pass.cancel(false);
+    }
+
+    /**
+     * Returns true if the decode has been cancelled
+     */
+    public boolean isCancelled(){
+        return cancelled;
+    }
+
+    /**
+     * Returns true if the final pass has been delivered or the decode failed
+     */
+    public boolean isDone(){
+        return done;
+    }
+
+    /**
+     * Returns the region being decoded
+     */
+    public Rect getRect(){
+        return new Rect(rect);
+    }
+
+    /**
+     * Returns the requested (final) sample size
+     */
+    public int getSampleSize(){
+        return sampleSize;
+    }
+}
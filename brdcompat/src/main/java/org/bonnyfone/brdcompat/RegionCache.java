@@ -0,0 +1,264 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory LRU cache of decoded regions, bounded by the total number of bytes of the cached bitmaps.<br>
+ * Entries are keyed by image identity, region, sample size and config; a single cache can be shared by
+ * several BitmapRegionDecoderCompat instances (see {@link BitmapRegionDecoderCompat#setRegionCache(RegionCache)}).<br>
+ * <b>Bitmaps returned by the cache are shared</b>: callers must not recycle them while they are cached.
+ */
+public class RegionCache {
+
+    private final LinkedHashMap<Key, Entry> map;
+    private final long maxBytes;
+    private long size;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    /**
+     * @param maxBytes the maximum total size, in bytes, of the cached bitmaps
+     */
+    public RegionCache(long maxBytes){
+        if(maxBytes <= 0){
+            throw new IllegalArgumentException("maxBytes <= 0");
+        }
+        this.maxBytes = maxBytes;
+        this.map = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the cached region, or null if not present
+     */
+    synchronized Bitmap get(Key key){
+        Entry entry = map.get(key);
+        Bitmap bitmap = entry != null ? entry.bitmap : null;
+        if(bitmap != null && bitmap.isRecycled()){
+            //recycled by the caller: the entry is useless
+            map.remove(key);
+            size -= entry.bytes;
+            bitmap = null;
+        }
+
+        if(bitmap != null)
+            hitCount++;
+        else
+            missCount++;
+
+        return bitmap;
+    }
+
+    /**
+     * Returns true if the region is cached, without counting a hit or a miss nor refreshing the entry
+     */
+    synchronized boolean containsKey(Key key){
+        return map.containsKey(key);
+    }
+
+    /**
+     * Caches the region, evicting the least recently used entries when needed
+     */
+    synchronized void put(Key key, Bitmap bitmap){
+        int bytes = BitmapUtils.getBitmapBytes(bitmap);
+        if(bytes > maxBytes)
+            return;
+
+        putCount++;
+        size += bytes;
+        Entry previous = map.put(key, new Entry(bitmap, bytes));
+        if(previous != null){
+            size -= previous.bytes;
+        }
+        trimToSize(maxBytes);
+    }
+
+    private void trimToSize(long maxSize){
+        Iterator<Entry> it = map.values().iterator();
+        while(size > maxSize && it.hasNext()){
+            Entry eldest = it.next();
+            it.remove();
+            size -= eldest.bytes;
+            evictionCount++;
+        }
+    }
+
+    /**
+     * Returns true if the given bitmap is currently held by this cache
+     */
+    synchronized boolean contains(Bitmap bitmap){
+        for(Entry entry : map.values()){
+            if(entry.bitmap == bitmap)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the key of the finest cached region of the image which contains the rect, or null
+     * @param imageKey the image identity used by the decoder
+     * @param rect the region to cover
+     * @param config the config the region was requested with
+     */
+    synchronized Key findCovering(Object imageKey, Rect rect, Bitmap.Config config){
+        Key best = null;
+        for(Map.Entry<Key, Entry> entry : map.entrySet()){
+            Key key = entry.getKey();
+            if(key.imageKey.equals(imageKey) && key.config == config && !entry.getValue().bitmap.isRecycled()
+                    && key.left <= rect.left && key.top <= rect.top && key.right >= rect.right && key.bottom >= rect.bottom
+                    && (best == null || key.sampleSize < best.sampleSize)){
+                best = key;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Removes all the entries of the cache
+     */
+    public synchronized void evictAll(){
+        trimToSize(-1);
+    }
+
+    /**
+     * Removes all the entries belonging to the given image
+     * @param imageKey the image identity used by the decoder
+     */
+    synchronized void evictImage(Object imageKey){
+        Iterator<Map.Entry<Key, Entry>> it = map.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<Key, Entry> entry = it.next();
+            if(entry.getKey().imageKey.equals(imageKey)){
+                it.remove();
+                size -= entry.getValue().bytes;
+            }
+        }
+    }
+
+    /**
+     * Returns the total size, in bytes, of the cached bitmaps
+     */
+    public synchronized long size(){
+        return size;
+    }
+
+    /**
+     * Returns the maximum total size, in bytes, of the cached bitmaps
+     */
+    public long maxSize(){
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of cached entries
+     */
+    public synchronized int getEntryCount(){
+        return map.size();
+    }
+
+    /**
+     * Returns the number of times a lookup returned a cached region
+     */
+    public synchronized int hitCount(){
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of times a lookup required a decode
+     */
+    public synchronized int missCount(){
+        return missCount;
+    }
+
+    /**
+     * Returns the number of regions added to the cache
+     */
+    public synchronized int putCount(){
+        return putCount;
+    }
+
+    /**
+     * Returns the number of regions evicted to respect the size limit
+     */
+    public synchronized int evictionCount(){
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        int accesses = hitCount + missCount;
+        int hitPercent = accesses != 0 ? (100 * hitCount / accesses) : 0;
+        return "RegionCache[size=" + size + ",maxSize=" + maxBytes + ",hits=" + hitCount + ",misses=" + missCount
+                + ",evictions=" + evictionCount + ",hitRate=" + hitPercent + "%]";
+    }
+
+    /**
+     * Cache key: image identity, region bounds, sample size and config
+     */
+    static final class Key {
+        final Object imageKey;
+        final int left;
+        final int top;
+        final int right;
+        final int bottom;
+        final int sampleSize;
+        final Bitmap.Config config;
+        private final int hash;
+
+        Key(Object imageKey, Rect rect, int sampleSize, Bitmap.Config config){
+            this.imageKey = imageKey;
+            this.left = rect.left;
+            this.top = rect.top;
+            this.right = rect.right;
+            this.bottom = rect.bottom;
+            this.sampleSize = sampleSize;
+            this.config = config;
+
+            int h = imageKey.hashCode();
+            h = 31 * h + left;
+            h = 31 * h + top;
+            h = 31 * h + right;
+            h = 31 * h + bottom;
+            h = 31 * h + sampleSize;
+            h = 31 * h + (config != null ? config.hashCode() : 0);
+            this.hash = h;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(this == o)
+                return true;
+            if(!(o instanceof Key))
+                return false;
+
+            Key other = (Key) o;
+            return left == other.left && top == other.top && right == other.right && bottom == other.bottom
+                    && sampleSize == other.sampleSize && config == other.config && imageKey.equals(other.imageKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Cached bitmap along with its size at insertion time
+     */
+    private static final class Entry {
+        final Bitmap bitmap;
+        final int bytes;
+
+        Entry(Bitmap bitmap, int bytes){
+            this.bitmap = bitmap;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+
+/**
+ * Receives the results of the asynchronous decodes (see {@link AsyncRegionDecoder}).
+ * Methods are invoked on the decoding thread; cancelled requests are not notified.
+ */
+public interface RegionCallback {
+
+    /**
+     * Called when the region has been decoded
+     * @param request
+     * @param bitmap the decoded region, or null if the image data could not be decoded
+     */
+    void onRegionDecoded(RegionRequest request, Bitmap bitmap);
+
+    /**
+     * Called when the decode failed with an exception
+     * @param request
+     * @param error
+     */
+    void onRegionFailed(RegionRequest request, Throwable error);
+}
@@ -0,0 +1,504 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.Rect;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Persistent cache of decoded regions, bounded by the total number of bytes on disk (least recently used entries
+ * are evicted first).<br>
+ * Each region is stored as a raw pixel file, loaded back into a Bitmap with a single copyPixelsFromBuffer();
+ * entries are keyed by the fingerprint of the image (path, size and modification time for files, a hash of
+ * the content for the other sources), the rect, inSampleSize and inPreferredConfig.
+ * The index is a journal of the operations, compacted when it grows; pixel files are written to a temp file and renamed,
+ * so a crash never leaves a partial entry. New regions are copied in memory and written by a background thread,
+ * so a miss costs the decoder no disk I/O. A directory must be used by one instance at a time.
+ */
+public class RegionDiskCache implements Closeable {
+
+    static final String JOURNAL_FILE = "journal";
+    static final String JOURNAL_FILE_TMP = "journal.tmp";
+    static final String JOURNAL_MAGIC = "brdcompat.RegionDiskCache";
+    static final String JOURNAL_VERSION = "1";
+    private static final String CLEAN = "CLEAN";
+    private static final String READ = "READ";
+    private static final String REMOVE = "REMOVE";
+    private static final String ENTRY_SUFFIX = ".px";
+    private static final String TMP_SUFFIX = ".tmp";
+
+    private static final int PIXELS_MAGIC = 0x42524451; //BRDQ
+    private static final int PIXELS_HEADER_SIZE = 20;
+
+    /**
+     * Number of redundant journal lines which triggers a compaction
+     */
+    private static final int COMPACT_THRESHOLD = 2000;
+
+    /**
+     * Max size of the regions waiting to be written: further regions are not cached until the writer catches up
+     */
+    static final long MAX_PENDING_BYTES = 8 * 1024 * 1024;
+
+    private static Executor writer;
+
+    private final File directory;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Long> entries = new LinkedHashMap<String, Long>(0, 0.75f, true);
+    private long size;
+    private Writer journal;
+    private int redundantOpCount;
+    private int tmpCounter;
+    private long pendingBytes;
+
+    private int hitCount;
+    private int missCount;
+    private int putCount;
+    private int evictionCount;
+
+    /**
+     * Opens (or creates) the cache in the directory
+     * @param directory a directory reserved to the cache
+     * @param maxBytes the maximum total size of the cached regions
+     * @throws IOException if the directory can not be created or written
+     */
+    public RegionDiskCache(File directory, long maxBytes) throws IOException {
+        if(maxBytes <= 0)
+            throw new IllegalArgumentException("maxBytes <= 0");
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+
+        if(!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+
+        synchronized (this){
+            readJournal();
+            deleteOrphans();
+            rebuildJournal();
+            trimToSize(maxBytes);
+        }
+    }
+
+    private void readJournal() throws IOException {
+        File file = new File(directory, JOURNAL_FILE);
+        if(!file.exists())
+            return;
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            if(!JOURNAL_MAGIC.equals(reader.readLine()) || !JOURNAL_VERSION.equals(reader.readLine()))
+                return; //unknown journal: start from scratch, the orphans are deleted
+
+            String line;
+            while((line = reader.readLine()) != null){
+                String[] parts = line.split(" ");
+                if(parts.length == 3 && CLEAN.equals(parts[0])){
+                    try {
+                        entries.remove(parts[1]);
+                        entries.put(parts[1], Long.parseLong(parts[2]));
+                    } catch (NumberFormatException e) {
+                        //truncated line
+                    }
+                }
+                else if(parts.length == 2 && READ.equals(parts[0])){
+                    entries.get(parts[1]);
+                }
+                else if(parts.length == 2 && REMOVE.equals(parts[0])){
+                    entries.remove(parts[1]);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        //drop the entries whose file is missing or incomplete
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        while(it.hasNext()){
+            Map.Entry<String, Long> entry = it.next();
+            if(getEntryFile(entry.getKey()).length() != entry.getValue()){
+                it.remove();
+            }
+            else{
+                size += entry.getValue();
+            }
+        }
+    }
+
+    /**
+     * Deletes the temp files and the pixel files which are not in the index
+     */
+    private void deleteOrphans(){
+        File[] files = directory.listFiles();
+        if(files == null)
+            return;
+        for(File file : files){
+            String name = file.getName();
+            if(name.endsWith(TMP_SUFFIX)){
+                file.delete();
+            }
+            else if(name.endsWith(ENTRY_SUFFIX) && !entries.containsKey(name.substring(0, name.length() - ENTRY_SUFFIX.length()))){
+                file.delete();
+            }
+        }
+    }
+
+    /**
+     * Writes a compact journal with the current entries, least recently used first
+     */
+    private void rebuildJournal() throws IOException {
+        if(journal != null){
+            journal.close();
+        }
+
+        File tmp = new File(directory, JOURNAL_FILE_TMP);
+        Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8"));
+        try {
+            writer.write(JOURNAL_MAGIC + "\n" + JOURNAL_VERSION + "\n");
+            for(Map.Entry<String, Long> entry : entries.entrySet()){
+                writer.write(CLEAN + " " + entry.getKey() + " " + entry.getValue() + "\n");
+            }
+        } finally {
+            writer.close();
+        }
+        File file = new File(directory, JOURNAL_FILE);
+        if(!tmp.renameTo(file))
+            throw new IOException("Cannot write " + file);
+
+        journal = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8"));
+        redundantOpCount = 0;
+    }
+
+    private void appendJournal(String line){
+        if(journal == null)
+            return;
+        try {
+            journal.write(line);
+            journal.write('\n');
+            journal.flush();
+            if(redundantOpCount >= COMPACT_THRESHOLD && redundantOpCount >= entries.size()){
+                rebuildJournal();
+            }
+        } catch (IOException e) {
+            //the index can not be persisted: the next open will rebuild it from what was written
+        }
+    }
+
+    /**
+     * Returns the cached region, or null
+     * @param pool null-ok; pool of the output bitmaps
+     */
+    Bitmap get(String fingerprint, Rect rect, int sampleSize, Bitmap.Config config, BitmapPool pool){
+        String key = getKey(fingerprint, rect, sampleSize, config);
+        synchronized (this){
+            if(journal == null || entries.get(key) == null){
+                missCount++;
+                return null;
+            }
+            redundantOpCount++;
+            appendJournal(READ + " " + key);
+        }
+
+        Bitmap bitmap = null;
+        try {
+            RandomAccessFile file = new RandomAccessFile(getEntryFile(key), "r");
+            try {
+                MappedByteBuffer data = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+                if(data.remaining() < PIXELS_HEADER_SIZE || data.getInt() != PIXELS_MAGIC)
+                    throw new IOException("Corrupted entry");
+                int width = data.getInt();
+                int height = data.getInt();
+                int configIndex = data.getInt();
+                int pixelBytes = data.getInt();
+                Bitmap.Config[] configs = Bitmap.Config.values();
+                if(width <= 0 || height <= 0 || configIndex < 0 || configIndex >= configs.length || pixelBytes != data.remaining())
+                    throw new IOException("Corrupted entry");
+
+                bitmap = pool != null ? pool.get(width, height, configs[configIndex]) : null;
+                if(bitmap == null)
+                    bitmap = Bitmap.createBitmap(width, height, configs[configIndex]);
+                if(BitmapUtils.getBitmapBytes(bitmap) != pixelBytes)
+                    throw new IOException("Incompatible entry");
+                bitmap.copyPixelsFromBuffer(data);
+            } finally {
+                file.close();
+            }
+        } catch (IOException e) {
+            if(bitmap != null)
+                bitmap.recycle();
+            remove(key);
+            synchronized (this){
+                missCount++;
+            }
+            return null;
+        }
+
+        synchronized (this){
+            hitCount++;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Stores a decoded region, replacing the previous one with the same key.
+     * The pixels are copied, the file is written in background: the bitmap can be reused as soon as this returns
+     */
+    void put(String fingerprint, Rect rect, int sampleSize, Bitmap.Config config, Bitmap bitmap){
+        Bitmap.Config bitmapConfig = bitmap.getConfig();
+        int pixelBytes = BitmapUtils.getBitmapBytes(bitmap);
+        final long bytes = PIXELS_HEADER_SIZE + (long) pixelBytes;
+        if(bitmapConfig == null || bytes > maxBytes || bytes > Integer.MAX_VALUE)
+            return;
+
+        final String key = getKey(fingerprint, rect, sampleSize, config);
+        final File tmp;
+        synchronized (this){
+            if(journal == null || pendingBytes + bytes > MAX_PENDING_BYTES)
+                return;
+            tmp = new File(directory, key + "." + (tmpCounter++) + TMP_SUFFIX);
+            pendingBytes += bytes;
+        }
+
+        final ByteBuffer data;
+        try {
+            data = ByteBuffer.allocate((int) bytes);
+            data.putInt(PIXELS_MAGIC);
+            data.putInt(bitmap.getWidth());
+            data.putInt(bitmap.getHeight());
+            data.putInt(bitmapConfig.ordinal());
+            data.putInt(pixelBytes);
+            bitmap.copyPixelsToBuffer(data);
+        } catch (RuntimeException e) {
+            onWritten(bytes);
+            throw e;
+        } catch (OutOfMemoryError e) {
+            //no room for the copy: just skip the cache
+            onWritten(bytes);
+            return;
+        }
+
+        getWriter().execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    write(key, tmp, data.array(), bytes);
+                } finally {
+                    onWritten(bytes);
+                }
+            }
+        });
+    }
+
+    /**
+     * Writes the entry file and adds it to the index (on the writer thread)
+     */
+    private void write(String key, File tmp, byte[] data, long bytes){
+        try {
+            FileOutputStream out = new FileOutputStream(tmp);
+            try {
+                out.write(data);
+                out.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            tmp.delete();
+            return;
+        }
+
+        synchronized (this){
+            if(journal == null || !tmp.renameTo(getEntryFile(key))){
+                tmp.delete();
+                return;
+            }
+            Long previous = entries.put(key, bytes);
+            if(previous != null){
+                size -= previous;
+                redundantOpCount++;
+            }
+            size += bytes;
+            putCount++;
+            appendJournal(CLEAN + " " + key + " " + bytes);
+            trimToSize(maxBytes);
+        }
+    }
+
+    private synchronized void onWritten(long bytes){
+        pendingBytes -= bytes;
+    }
+
+    private static synchronized Executor getWriter(){
+        if(writer == null){
+            writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "brdcompat-disk-cache");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.NORM_PRIORITY - 1);
+                    return thread;
+                }
+            });
+        }
+        return writer;
+    }
+
+    private synchronized void remove(String key){
+        Long bytes = entries.remove(key);
+        if(bytes != null){
+            getEntryFile(key).delete();
+            size -= bytes;
+            redundantOpCount++;
+            appendJournal(REMOVE + " " + key);
+        }
+    }
+
+    private void trimToSize(long maxSize){
+        Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+        List<String> evicted = new ArrayList<String>();
+        while(size > maxSize && it.hasNext()){
+            Map.Entry<String, Long> eldest = it.next();
+            it.remove();
+            getEntryFile(eldest.getKey()).delete();
+            size -= eldest.getValue();
+            evictionCount++;
+            evicted.add(eldest.getKey());
+        }
+        for(String key : evicted){
+            redundantOpCount++;
+            appendJournal(REMOVE + " " + key);
+        }
+    }
+
+    private File getEntryFile(String key){
+        return new File(directory, key + ENTRY_SUFFIX);
+    }
+
+    private static String getKey(String fingerprint, Rect rect, int sampleSize, Bitmap.Config config){
+        String key = fingerprint + "|" + rect.left + "," + rect.top + "," + rect.right + "," + rect.bottom + "|" + sampleSize + "|" + config;
+        MessageDigest digest = newDigest();
+        try {
+            return toHex(digest.digest(key.getBytes("UTF-8")));
+        } catch (java.io.UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static MessageDigest newDigest(){
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes){
+        char[] hex = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++){
+            hex[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xF, 16);
+            hex[i * 2 + 1] = Character.forDigit(bytes[i] & 0xF, 16);
+        }
+        return new String(hex);
+    }
+
+    /**
+     * Deletes all the cached regions
+     */
+    public synchronized void evictAll(){
+        trimToSize(-1);
+        if(journal != null){
+            try {
+                rebuildJournal();
+            } catch (IOException e) {
+                //kept as is
+            }
+        }
+    }
+
+    /**
+     * Closes the journal: the cache is disabled (every lookup misses) until opened again
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(journal != null){
+            journal.close();
+            journal = null;
+        }
+    }
+
+    /**
+     * Returns the total size, in bytes, of the cached regions
+     */
+    public synchronized long size(){
+        return size;
+    }
+
+    /**
+     * Returns the maximum total size, in bytes, of the cached regions
+     */
+    public long maxSize(){
+        return maxBytes;
+    }
+
+    /**
+     * Returns the number of cached regions
+     */
+    public synchronized int getEntryCount(){
+        return entries.size();
+    }
+
+    /**
+     * Returns the number of lookups served from disk
+     */
+    public synchronized int hitCount(){
+        return hitCount;
+    }
+
+    /**
+     * Returns the number of lookups which were not cached
+     */
+    public synchronized int missCount(){
+        return missCount;
+    }
+
+    /**
+     * Returns the number of stored regions
+     */
+    public synchronized int putCount(){
+        return putCount;
+    }
+
+    /**
+     * Returns the number of regions evicted to respect the size limit
+     */
+    public synchronized int evictionCount(){
+        return evictionCount;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "RegionDiskCache[" + directory + ",size=" + size + ",maxSize=" + maxBytes + ",entries=" + entries.size()
+                + ",hits=" + hitCount + ",misses=" + missCount + ",evictions=" + evictionCount + "]";
+    }
+}
@@ -0,0 +1,106 @@
+package org.bonnyfone.brdcompat;
+
+/**
+ * Region arithmetic shared by the decoders (free of Android dependencies)
+ */
+final class RegionMath {
+
+    /**
+     * Alignments of the best region (see {@link #planBestRegion(int, int, int, int, int, int, int[])})
+     */
+    static final int ALIGN_START = 0;
+    static final int ALIGN_CENTER = 1;
+    static final int ALIGN_END = 2;
+
+    private RegionMath(){}
+
+    /**
+     * Returns the size of an extent once downsampled by sampleSize, as BitmapRegionDecoder does (never less than 1)
+     * @param extent
+     * @param sampleSize
+     * @return
+     */
+    static int getSampledSize(int extent, int sampleSize){
+        if(sampleSize <= 1)
+            return extent;
+        return Math.max(1, extent / sampleSize);
+    }
+
+    /**
+     * Returns the sample size BitmapFactory actually applies to a JPEG: the largest power of 2 not above the requested one
+     */
+    static int getPowerOfTwoSampleSize(int sampleSize){
+        return sampleSize <= 1 ? 1 : Integer.highestOneBit(sampleSize);
+    }
+
+    /**
+     * Maps the region [left, right) x [top, bottom) on the image decoded, at a power-of-2 sample size, from a crop
+     * of the source image
+     * @param bounds the left, top, right and bottom of the crop in the source image
+     * @param area receives the left, top, right and bottom of the region in the decoded image
+     * @return false if the decoded image is not ceil(crop / sampleSize) large, i.e. the decoder used another sample size
+     */
+    static boolean mapOnDecodedCrop(int left, int top, int right, int bottom, int[] bounds, int sampleSize, int decodedWidth, int decodedHeight, int[] area){
+        if(decodedWidth != (bounds[2] - bounds[0] + sampleSize - 1) / sampleSize || decodedHeight != (bounds[3] - bounds[1] + sampleSize - 1) / sampleSize)
+            return false;
+
+        area[0] = (left - bounds[0]) / sampleSize;
+        area[1] = (top - bounds[1]) / sampleSize;
+        area[2] = clamp((right - bounds[0] + sampleSize - 1) / sampleSize, area[0] + 1, decodedWidth);
+        area[3] = clamp((bottom - bounds[1] + sampleSize - 1) / sampleSize, area[1] + 1, decodedHeight);
+        return true;
+    }
+
+    static int clamp(int value, int min, int max){
+        return Math.max(min, Math.min(value, max));
+    }
+
+    /**
+     * Computes the "best" region for the required size: the biggest region of the image with the required ratio,
+     * aligned as requested, and the biggest power-of-2 sample size which keeps it at least as big as the required size.
+     * @param area receives the left, top, right and bottom of the region to decode
+     * @return the sample size
+     */
+    static int planBestRegion(int realWidth, int realHeight, int requiredWidth, int requiredHeight, int horizontalAlign, int verticalAlign, int[] area){
+
+		/* -- Check for upscale -- */
+		/* ----------------------- */
+
+        if( ! (requiredWidth <= realWidth && requiredHeight <= realHeight ) ){ //image is smaller than box
+            float widthRatio = (float)requiredWidth / realWidth;
+            float heightRatio = (float)requiredHeight / realHeight;
+            float destinationRatio = Math.max(widthRatio, heightRatio);
+
+            requiredWidth = Math.round(((float)requiredWidth/destinationRatio));
+            requiredHeight = Math.round(((float)requiredHeight/destinationRatio));
+        }
+
+
+		/* -- Downsampling -- */
+		/* ------------------ */
+
+        int sampleSize = 1;
+        while(requiredWidth <= realWidth / (sampleSize * 2) && requiredHeight <= realHeight / (sampleSize * 2)){
+            sampleSize *= 2;
+        }
+
+        int areaWidth = requiredWidth * sampleSize;
+        int areaHeight = requiredHeight * sampleSize;
+        int fromLeft = align(realWidth - areaWidth, horizontalAlign);
+        int fromTop = align(realHeight - areaHeight, verticalAlign);
+
+        area[0] = fromLeft;
+        area[1] = fromTop;
+        area[2] = fromLeft + areaWidth;
+        area[3] = fromTop + areaHeight;
+        return sampleSize;
+    }
+
+    private static int align(int space, int align){
+        if(align == ALIGN_CENTER)
+            return space / 2;
+        if(align == ALIGN_END)
+            return space;
+        return 0;
+    }
+}
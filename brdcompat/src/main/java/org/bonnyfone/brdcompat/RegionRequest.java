@@ -0,0 +1,87 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+/**
+ * A region to be decoded asynchronously by {@link AsyncRegionDecoder}
+ */
+public class RegionRequest {
+
+    /**
+     * The region is visible: decoded first
+     */
+    public static final int PRIORITY_VISIBLE = 0;
+
+    /**
+     * The region is about to become visible
+     */
+    public static final int PRIORITY_NEAR_VISIBLE = 1;
+
+    /**
+     * Speculative decode, run only when there is nothing more urgent
+     */
+    public static final int PRIORITY_PREFETCH = 2;
+
+    private final Rect rect;
+    private final BitmapFactory.Options options;
+    private final int priority;
+    private final RegionCallback callback;
+    private Object tag;
+
+    /**
+     * @param rect the region to decode
+     * @param options null-ok; options passed to decodeRegion()
+     * @param priority one of the PRIORITY_* constants (lower values are decoded first)
+     * @param callback null-ok; notified when the decode completes
+     */
+    public RegionRequest(Rect rect, BitmapFactory.Options options, int priority, RegionCallback callback){
+        this.rect = new Rect(rect);
+        this.options = options;
+        this.priority = priority;
+        this.callback = callback;
+    }
+
+    /**
+     * @param rect the region to decode
+     * @param inSampleSize the sample size
+     * @param priority one of the PRIORITY_* constants (lower values are decoded first)
+     * @param callback null-ok; notified when the decode completes
+     */
+    public RegionRequest(Rect rect, int inSampleSize, int priority, RegionCallback callback){
+        this(rect, newOptions(inSampleSize), priority, callback);
+    }
+
+    private static BitmapFactory.Options newOptions(int inSampleSize){
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inSampleSize = inSampleSize;
+        return options;
+    }
+
+    public Rect getRect() {
+        return rect;
+    }
+
+    public BitmapFactory.Options getOptions() {
+        return options;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public RegionCallback getCallback() {
+        return callback;
+    }
+
+    /**
+     * Returns the object attached to the request, e.g. the tile it belongs to
+     */
+    public Object getTag() {
+        return tag;
+    }
+
+    public void setTag(Object tag) {
+        this.tag = tag;
+    }
+}
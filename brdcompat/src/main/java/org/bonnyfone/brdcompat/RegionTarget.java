@@ -0,0 +1,48 @@
+package org.bonnyfone.brdcompat;
+
+import android.view.Gravity;
+
+/**
+ * An output size requested to {@link BitmapRegionDecoderCompat#decodeBestRegions(java.util.List)}
+ */
+public class RegionTarget {
+
+    private final int width;
+    private final int height;
+    private final int gravity;
+
+    /**
+     * @param width the required width
+     * @param height the required height
+     * @param gravity combination of Gravity.LEFT, Gravity.RIGHT, Gravity.TOP,
+     *                Gravity.BOTTOM, Gravity.CENTER, Gravity.CENTER_HORIZONTAL, Gravity.CENTER_VERTICAL
+     */
+    public RegionTarget(int width, int height, int gravity){
+        if(width <= 0 || height <= 0)
+            throw new IllegalArgumentException("width and height must be > 0");
+        this.width = width;
+        this.height = height;
+        this.gravity = gravity;
+    }
+
+    /**
+     * Creates a target with Gravity.CENTER
+     * @param width the required width
+     * @param height the required height
+     */
+    public RegionTarget(int width, int height){
+        this(width, height, Gravity.CENTER);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public int getGravity() {
+        return gravity;
+    }
+}
@@ -0,0 +1,139 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Rect;
+
+import java.io.IOException;
+
+/**
+ * Base class of the pure-Java region decoders, which deliver the decoded region row by row
+ */
+abstract class RowRegionDecoder implements IBitmapRegionDecoder, PooledOutput, PixelOutput {
+
+    private ImageSource source;
+    private volatile BitmapPool bitmapPool;
+    private boolean isRecycled;
+
+    RowRegionDecoder(ImageSource source){
+        this.source = source;
+    }
+
+    /**
+     * Decodes the region (already clipped to the image bounds) downsampled by sampleSize
+     * @throws IOException if the image data is corrupted
+     */
+    abstract void decodeRows(Rect area, int sampleSize, RowSink sink) throws IOException;
+
+    /**
+     * Returns true if the decoded pixels may be non-opaque
+     */
+    abstract boolean hasAlpha();
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        if(isRecycled)
+            throw new IllegalStateException("Cannot decode region: decoder is recycled");
+
+        Rect area = new Rect(rect);
+        if(!area.intersect(0, 0, getWidth(), getHeight()))
+            throw new IllegalArgumentException("The region is outside the image");
+
+        int sampleSize = options != null ? BitmapUtils.getSampleSize(options.inSampleSize) : 1;
+        int outWidth = RegionMath.getSampledSize(area.width(), sampleSize);
+        int outHeight = RegionMath.getSampledSize(area.height(), sampleSize);
+        if(options != null){
+            options.outWidth = outWidth;
+            options.outHeight = outHeight;
+            if(options.inJustDecodeBounds)
+                return null;
+        }
+
+        Bitmap.Config config = getConfig(options);
+        Bitmap direct = decodeDirect(area, sampleSize, config, outWidth, outHeight);
+        if(direct != null)
+            return direct;
+
+        //every row is overwritten, so a pooled bitmap needs no erase
+        BitmapPool pool = bitmapPool;
+        Bitmap bitmap = pool != null ? pool.get(outWidth, outHeight, config) : null;
+        if(bitmap == null)
+            bitmap = Bitmap.createBitmap(outWidth, outHeight, config);
+        try {
+            decodeRows(area, sampleSize, new BitmapRowSink(bitmap));
+        } catch (IOException e) {
+            if(pool != null)
+                pool.put(bitmap);
+            else
+                bitmap.recycle();
+            return null;
+        }
+        return bitmap;
+    }
+
+    @Override
+    public boolean decodeRegion(Rect rect, int sampleSize, PixelBuffer output) {
+        if(isRecycled)
+            throw new IllegalStateException("Cannot decode region: decoder is recycled");
+
+        Rect area = new Rect(rect);
+        if(!area.intersect(0, 0, getWidth(), getHeight()))
+            throw new IllegalArgumentException("The region is outside the image");
+
+        sampleSize = BitmapUtils.getSampleSize(sampleSize);
+        output.prepare(RegionMath.getSampledSize(area.width(), sampleSize), RegionMath.getSampledSize(area.height(), sampleSize));
+        try {
+            decodeRows(area, sampleSize, new PixelBufferRowSink(output));
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Decodes the region without delivering the rows, e.g. through BitmapFactory
+     * @return the region, of exactly outWidth x outHeight pixels, or null to decode the rows
+     */
+    Bitmap decodeDirect(Rect area, int sampleSize, Bitmap.Config config, int outWidth, int outHeight){
+        return null;
+    }
+
+    /**
+     * Honors inPreferredConfig, unless it would drop the alpha channel of a translucent image
+     */
+    private Bitmap.Config getConfig(BitmapFactory.Options options){
+        Bitmap.Config config = options != null ? options.inPreferredConfig : null;
+        if(config == Bitmap.Config.RGB_565 && !hasAlpha())
+            return config;
+        if(config == Bitmap.Config.ARGB_4444)
+            return config;
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    @Override
+    public void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
+    }
+
+    BitmapPool getBitmapPool(){
+        return bitmapPool;
+    }
+
+    ImageSource getSource(){
+        return source;
+    }
+
+    @Override
+    public boolean isRecycled() {
+        return isRecycled;
+    }
+
+    @Override
+    public void recycle() {
+        isRecycled = true;
+        if(source != null){
+            source.release();
+            source = null;
+        }
+    }
+}
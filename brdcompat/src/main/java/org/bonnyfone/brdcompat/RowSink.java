@@ -0,0 +1,15 @@
+package org.bonnyfone.brdcompat;
+
+/**
+ * Receives the decoded rows of a region from the pure-Java decoders
+ */
+interface RowSink {
+
+    /**
+     * Called once per output row, in top to bottom order.
+     * @param y the output row
+     * @param pixels the row's pixels as non-premultiplied ARGB colors; the array is reused for the next row
+     * @param width the number of valid pixels
+     */
+    void onRow(int y, int[] pixels, int width);
+}
@@ -0,0 +1,262 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Region decoder over a tile pyramid file written by {@link TilePyramidWriter}.<br>
+ * The file holds the image at sample sizes 1, 2, 4... cut in compressed tiles of tileSize pixels:
+ * <pre>
+ * header: magic, version, width, height, tileSize, levels (int), format, hasAlpha (byte), padding (short)
+ * index:  for each level, for each tile (row by row): offset (long), length (int)
+ * data:   the compressed tiles
+ * </pre>
+ * The index is memory-mapped; decodeRegion() reads and decodes only the tiles covering the region,
+ * at the coarsest level which is not coarser than inSampleSize.
+ */
+class TilePyramidDecoder implements IBitmapRegionDecoder, PooledOutput {
+
+    static final String SOURCE_TYPE = "pyramid";
+    static final int MAGIC = 0x42524450; //BRDP
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 28;
+    static final int INDEX_ENTRY_SIZE = 12;
+
+    private RandomAccessFile file;
+    private FileChannel channel;
+    private final MappedByteBuffer index;
+    private final int width;
+    private final int height;
+    private final int tileSize;
+    private final int levelCount;
+    private final int[] levelFirstTile;
+    private final boolean hasAlpha;
+    private boolean isRecycled;
+    private volatile BitmapPool bitmapPool;
+
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect srcRect = new Rect();
+    private final Rect dstRect = new Rect();
+    private ByteBuffer tileBuffer = ByteBuffer.allocate(64 * 1024);
+
+    private TilePyramidDecoder(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        readFully(header, 0);
+        header.flip();
+        if(header.getInt() != MAGIC || header.getInt() != VERSION)
+            throw new IOException("Not a tile pyramid file");
+        width = header.getInt();
+        height = header.getInt();
+        tileSize = header.getInt();
+        levelCount = header.getInt();
+        header.get(); //format, detected by BitmapFactory
+        hasAlpha = header.get() != 0;
+        if(width <= 0 || height <= 0 || tileSize <= 0 || levelCount <= 0 || levelCount > 31)
+            throw new IOException("Corrupted tile pyramid header");
+
+        levelFirstTile = new int[levelCount + 1];
+        for(int level = 0; level < levelCount; level++){
+            levelFirstTile[level + 1] = levelFirstTile[level] + getTilesX(level) * getTilesY(level);
+        }
+        long indexSize = (long) levelFirstTile[levelCount] * INDEX_ENTRY_SIZE;
+        if(HEADER_SIZE + indexSize > channel.size())
+            throw new IOException("Truncated tile pyramid file");
+        index = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE, indexSize);
+    }
+
+    /**
+     * Opens a tile pyramid file
+     * @param pyramidFile
+     * @return
+     * @throws IOException if the file can not be read or is not a tile pyramid
+     */
+    static TilePyramidDecoder newInstance(File pyramidFile) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(pyramidFile, "r");
+        try {
+            return new TilePyramidDecoder(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Returns the size of an extent at a pyramid level (downsampled by 2^level, rounded up)
+     */
+    static int getLevelSize(int extent, int level){
+        return (int) (((long) extent + (1L << level) - 1) >> level);
+    }
+
+    @Override
+    public Bitmap decodeRegion(Rect rect, BitmapFactory.Options options) {
+        if(isRecycled)
+            throw new IllegalStateException("Cannot decode region: decoder is recycled");
+
+        Rect area = new Rect(rect);
+        if(!area.intersect(0, 0, width, height))
+            throw new IllegalArgumentException("The region is outside the image");
+
+        int sampleSize = options != null ? BitmapUtils.getSampleSize(options.inSampleSize) : 1;
+        int outWidth = RegionMath.getSampledSize(area.width(), sampleSize);
+        int outHeight = RegionMath.getSampledSize(area.height(), sampleSize);
+        if(options != null){
+            options.outWidth = outWidth;
+            options.outHeight = outHeight;
+            if(options.inJustDecodeBounds)
+                return null;
+        }
+
+        int level = 0;
+        while(level + 1 < levelCount && (1 << (level + 1)) <= sampleSize){
+            level++;
+        }
+        Bitmap.Config config = getConfig(options);
+
+        synchronized (this){
+            BitmapPool pool = bitmapPool;
+            Bitmap bitmap = pool != null ? pool.get(outWidth, outHeight, config) : null;
+            if(bitmap == null)
+                bitmap = Bitmap.createBitmap(outWidth, outHeight, config);
+            else if(hasAlpha)
+                bitmap.eraseColor(0);
+
+            try {
+                drawTiles(area, level, bitmap);
+            } catch (IOException e) {
+                if(pool != null)
+                    pool.put(bitmap);
+                else
+                    bitmap.recycle();
+                return null;
+            }
+            return bitmap;
+        }
+    }
+
+    /**
+     * Draws the tiles of the level covering the area, scaled to the output bitmap
+     */
+    private void drawTiles(Rect area, int level, Bitmap out) throws IOException {
+        float scaleX = (float) out.getWidth() / area.width();
+        float scaleY = (float) out.getHeight() / area.height();
+        int levelTile = tileSize << level; //size of a tile in image pixels
+        int firstX = area.left / levelTile;
+        int firstY = area.top / levelTile;
+        int lastX = (area.right - 1) / levelTile;
+        int lastY = (area.bottom - 1) / levelTile;
+        int tilesX = getTilesX(level);
+
+        Canvas canvas = new Canvas(out);
+        for(int ty = firstY; ty <= lastY; ty++){
+            for(int tx = firstX; tx <= lastX; tx++){
+                Bitmap tile = readTile(levelFirstTile[level] + ty * tilesX + tx);
+                if(tile == null)
+                    throw new IOException("Corrupted tile " + tx + "," + ty + " at level " + level);
+
+                //the part of the tile inside the area, in image pixels
+                int left = Math.max(area.left, tx * levelTile);
+                int top = Math.max(area.top, ty * levelTile);
+                int right = Math.min(area.right, (tx + 1) * levelTile);
+                int bottom = Math.min(area.bottom, (ty + 1) * levelTile);
+
+                srcRect.set((left - tx * levelTile) >> level, (top - ty * levelTile) >> level,
+                        Math.min(tile.getWidth(), getLevelSize(right - tx * levelTile, level)),
+                        Math.min(tile.getHeight(), getLevelSize(bottom - ty * levelTile, level)));
+                dstRect.set(Math.round((left - area.left) * scaleX), Math.round((top - area.top) * scaleY),
+                        Math.round((right - area.left) * scaleX), Math.round((bottom - area.top) * scaleY));
+                canvas.drawBitmap(tile, srcRect, dstRect, paint);
+                tile.recycle();
+            }
+        }
+    }
+
+    private Bitmap readTile(int tile) throws IOException {
+        int entry = tile * INDEX_ENTRY_SIZE;
+        long offset = index.getLong(entry);
+        int length = index.getInt(entry + 8);
+        if(offset <= 0 || length <= 0)
+            return null;
+
+        if(tileBuffer.capacity() < length){
+            tileBuffer = ByteBuffer.allocate(length);
+        }
+        tileBuffer.clear();
+        tileBuffer.limit(length);
+        readFully(tileBuffer, offset);
+        return BitmapFactory.decodeByteArray(tileBuffer.array(), 0, length);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if(read < 0)
+                throw new IOException("Truncated tile pyramid file");
+            position += read;
+        }
+    }
+
+    /**
+     * Honors inPreferredConfig, unless it would drop the alpha channel of a translucent image
+     */
+    private Bitmap.Config getConfig(BitmapFactory.Options options){
+        Bitmap.Config config = options != null ? options.inPreferredConfig : null;
+        if(config == Bitmap.Config.RGB_565 && !hasAlpha)
+            return config;
+        return Bitmap.Config.ARGB_8888;
+    }
+
+    private int getTilesX(int level){
+        return (getLevelSize(width, level) + tileSize - 1) / tileSize;
+    }
+
+    private int getTilesY(int level){
+        return (getLevelSize(height, level) + tileSize - 1) / tileSize;
+    }
+
+    @Override
+    public void setBitmapPool(BitmapPool pool) {
+        bitmapPool = pool;
+    }
+
+    @Override
+    public int getHeight() {
+        return height;
+    }
+
+    @Override
+    public int getWidth() {
+        return width;
+    }
+
+    @Override
+    public boolean isRecycled() {
+        return isRecycled;
+    }
+
+    @Override
+    public synchronized void recycle() {
+        if(isRecycled)
+            return;
+        isRecycled = true;
+        try {
+            file.close();
+        } catch (IOException e) {
+            //nothing to do
+        }
+        file = null;
+        channel = null;
+    }
+}
@@ -0,0 +1,230 @@
+package org.bonnyfone.brdcompat;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+/**
+ * Builds a tile pyramid file (see {@link TilePyramidDecoder}) decoding each pixel of the source image only once.<br>
+ * The full resolution level is decoded one band at a time: a single decodeRegion() call covers a row of tiles
+ * (up to MAX_BAND_BYTES of pixels, wider images take a few calls per row), and the tiles are sliced out of it.
+ * Each tile is written and downscaled by 2 into the band of the next level, which is written as soon as the two
+ * rows of tiles covering it are complete, and so on up to the level which fits in a single tile.
+ * Besides the decoded band, the memory used is about two bands of tileSize rows at half the image width.<br>
+ * Note that decoders without random access to the rows (the pure-Java PNG decoder, the fallback without
+ * the decoded image cache) still read the image from its start on every band.
+ */
+final class TilePyramidWriter {
+
+    /**
+     * Maximum size of a decoded band of the full resolution level
+     */
+    static final int MAX_BAND_BYTES = 16 * 1024 * 1024;
+
+    private final IBitmapRegionDecoder source;
+    private final int tileSize;
+    private final Bitmap.CompressFormat format;
+    private final int quality;
+
+    private final int width;
+    private final int height;
+    private final int levelCount;
+    private final int[] levelFirstTile;
+
+    private final Bitmap[] bands;
+    private final Paint paint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    private final Rect dstRect = new Rect();
+    private final ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    private final boolean hasAlpha;
+
+    private RandomAccessFile file;
+    private ByteBuffer index;
+
+    private TilePyramidWriter(IBitmapRegionDecoder source, int tileSize, Bitmap.CompressFormat format, int quality){
+        this.source = source;
+        this.tileSize = tileSize;
+        this.format = format;
+        this.quality = quality;
+        this.width = source.getWidth();
+        this.height = source.getHeight();
+        this.hasAlpha = format != Bitmap.CompressFormat.JPEG;
+
+        int levels = 1;
+        while(TilePyramidDecoder.getLevelSize(width, levels - 1) > tileSize || TilePyramidDecoder.getLevelSize(height, levels - 1) > tileSize){
+            levels++;
+        }
+        this.levelCount = levels;
+
+        this.levelFirstTile = new int[levels + 1];
+        for(int level = 0; level < levels; level++){
+            levelFirstTile[level + 1] = levelFirstTile[level] + getTilesX(level) * getTilesY(level);
+        }
+        this.bands = new Bitmap[levels];
+    }
+
+    /**
+     * Writes the pyramid of the source image to the file (replaced atomically)
+     * @param source
+     * @param out
+     * @param tileSize the size of the tiles, in pixels
+     * @param format the compression of the tiles
+     * @param quality the compression quality (0-100), ignored by PNG
+     * @throws IOException
+     */
+    static void write(IBitmapRegionDecoder source, File out, int tileSize, Bitmap.CompressFormat format, int quality) throws IOException {
+        if(tileSize < 16 || tileSize % 2 != 0)
+            throw new IllegalArgumentException("tileSize must be even and >= 16");
+
+        File tmp = new File(out.getPath() + ".tmp");
+        TilePyramidWriter writer = new TilePyramidWriter(source, tileSize, format, quality);
+        try {
+            writer.write(tmp);
+        } catch (IOException e) {
+            tmp.delete();
+            throw e;
+        } finally {
+            writer.recycleBands();
+        }
+        if(!tmp.renameTo(out)){
+            tmp.delete();
+            throw new IOException("Cannot rename " + tmp + " to " + out);
+        }
+    }
+
+    private void write(File out) throws IOException {
+        int tileCount = levelFirstTile[levelCount];
+        int dataStart = TilePyramidDecoder.HEADER_SIZE + tileCount * TilePyramidDecoder.INDEX_ENTRY_SIZE;
+        index = ByteBuffer.allocate(dataStart);
+        index.putInt(TilePyramidDecoder.MAGIC);
+        index.putInt(TilePyramidDecoder.VERSION);
+        index.putInt(width);
+        index.putInt(height);
+        index.putInt(tileSize);
+        index.putInt(levelCount);
+        index.put((byte) format.ordinal());
+        index.put((byte) (hasAlpha ? 1 : 0));
+        index.putShort((short) 0);
+
+        file = new RandomAccessFile(out, "rw");
+        try {
+            file.setLength(0);
+            file.seek(dataStart);
+
+            BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+            Rect rect = new Rect();
+            int tilesX = getTilesX(0);
+            int tilesY = getTilesY(0);
+            int tilesPerBand = Math.max(1, MAX_BAND_BYTES / (tileSize * tileSize * 4));
+            for(int ty = 0; ty < tilesY; ty++){
+                for(int firstTile = 0; firstTile < tilesX; firstTile += tilesPerBand){
+                    int lastTile = Math.min(tilesX, firstTile + tilesPerBand);
+                    rect.set(firstTile * tileSize, ty * tileSize, Math.min(width, lastTile * tileSize), Math.min(height, (ty + 1) * tileSize));
+                    Bitmap band = source.decodeRegion(rect, options);
+                    if(band == null)
+                        throw new IOException("Cannot decode the region " + rect);
+                    try {
+                        for(int tx = firstTile; tx < lastTile; tx++){
+                            int left = (tx - firstTile) * tileSize;
+                            Bitmap tile = Bitmap.createBitmap(band, left, 0, Math.min(tileSize, band.getWidth() - left), band.getHeight());
+                            emitTile(0, tx, ty, tile);
+                            if(tile != band)
+                                tile.recycle();
+                        }
+                    } finally {
+                        band.recycle();
+                    }
+                }
+                onRowComplete(0, ty);
+            }
+
+            file.seek(0);
+            file.write(index.array(), 0, dataStart);
+        } finally {
+            file.close();
+            file = null;
+        }
+    }
+
+    /**
+     * Writes a tile and downscales it into the band of the next level
+     */
+    private void emitTile(int level, int tx, int ty, Bitmap tile) throws IOException {
+        compressed.reset();
+        if(!tile.compress(format, quality, compressed))
+            throw new IOException("Cannot compress the tile");
+
+        long offset = file.getFilePointer();
+        file.write(compressed.toByteArray());
+        int entry = TilePyramidDecoder.HEADER_SIZE + (levelFirstTile[level] + ty * getTilesX(level) + tx) * TilePyramidDecoder.INDEX_ENTRY_SIZE;
+        index.putLong(entry, offset);
+        index.putInt(entry + 8, compressed.size());
+
+        int next = level + 1;
+        if(next < levelCount){
+            Bitmap band = getBand(next);
+            int half = tileSize / 2;
+            dstRect.left = tx * half;
+            dstRect.top = (ty % 2) * half;
+            dstRect.right = dstRect.left + (tile.getWidth() + 1) / 2;
+            dstRect.bottom = dstRect.top + (tile.getHeight() + 1) / 2;
+            new Canvas(band).drawBitmap(tile, null, dstRect, paint);
+        }
+    }
+
+    /**
+     * Writes the band of the next level when both the rows of tiles covering it are complete
+     */
+    private void onRowComplete(int level, int ty) throws IOException {
+        int next = level + 1;
+        if(next >= levelCount || (ty % 2 == 0 && ty < getTilesY(level) - 1))
+            return;
+
+        Bitmap band = bands[next];
+        int nextY = ty / 2;
+        int levelWidth = TilePyramidDecoder.getLevelSize(width, next);
+        int bandHeight = Math.min(tileSize, TilePyramidDecoder.getLevelSize(height, next) - nextY * tileSize);
+        int tilesX = getTilesX(next);
+        for(int tx = 0; tx < tilesX; tx++){
+            int left = tx * tileSize;
+            Bitmap tile = Bitmap.createBitmap(band, left, 0, Math.min(tileSize, levelWidth - left), bandHeight);
+            emitTile(next, tx, nextY, tile);
+            if(tile != band)
+                tile.recycle();
+        }
+        band.eraseColor(0);
+        onRowComplete(next, nextY);
+    }
+
+    private Bitmap getBand(int level){
+        if(bands[level] == null){
+            bands[level] = Bitmap.createBitmap(TilePyramidDecoder.getLevelSize(width, level), tileSize, Bitmap.Config.ARGB_8888);
+        }
+        return bands[level];
+    }
+
+    private void recycleBands(){
+        for(int i = 0; i < bands.length; i++){
+            if(bands[i] != null){
+                bands[i].recycle();
+                bands[i] = null;
+            }
+        }
+    }
+
+    private int getTilesX(int level){
+        return (TilePyramidDecoder.getLevelSize(width, level) + tileSize - 1) / tileSize;
+    }
+
+    private int getTilesY(int level){
+        return (TilePyramidDecoder.getLevelSize(height, level) + tileSize - 1) / tileSize;
+    }
+}
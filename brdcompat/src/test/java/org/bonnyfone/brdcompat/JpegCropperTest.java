@@ -0,0 +1,145 @@
+package org.bonnyfone.brdcompat;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Decodes the cropped images with ImageIO and compares them with the whole image: the crop is lossless
+ */
+public class JpegCropperTest {
+
+    private static final int WIDTH = 517;
+    private static final int HEIGHT = 333;
+
+    @Test
+    public void cropsSampling444() throws IOException {
+        assertLosslessCrops(BufferedImage.TYPE_INT_RGB, 1, 1, 0);
+    }
+
+    @Test
+    public void cropsSampling422() throws IOException {
+        assertLosslessCrops(BufferedImage.TYPE_INT_RGB, 2, 1, 0);
+    }
+
+    @Test
+    public void cropsSampling420() throws IOException {
+        assertLosslessCrops(BufferedImage.TYPE_INT_RGB, 2, 2, 0);
+    }
+
+    @Test
+    public void cropsGrayscale() throws IOException {
+        assertLosslessCrops(BufferedImage.TYPE_BYTE_GRAY, 1, 1, 0);
+    }
+
+    @Test
+    public void cropsRestartIntervals() throws IOException {
+        assertLosslessCrops(BufferedImage.TYPE_INT_RGB, 2, 2, 7);
+    }
+
+    @Test
+    public void rejectsCorruptedData() throws IOException {
+        byte[] data = TestImages.encodeJpeg(TestImages.createImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), 2, 2, 0);
+        Random random = new Random(11);
+        for(int i = 0; i < 300; i++){
+            byte[] corrupted = i % 2 == 0
+                    ? TestImages.truncate(data, random.nextInt(data.length))
+                    : TestImages.corrupt(data, random, 2, data.length, 1 + random.nextInt(8));
+            try {
+                JpegReader reader = new JpegReader(ByteBuffer.wrap(corrupted));
+                new JpegCropper(reader).crop(reader.width / 3, reader.height / 3, reader.width, reader.height, new int[4]);
+            } catch (IOException e) {
+                //expected
+            } catch (RuntimeException e) {
+                throw new AssertionError("Unexpected " + e);
+            }
+        }
+    }
+
+    @Test
+    public void mapsNonPowerOfTwoSampleSizes() throws IOException {
+        //BitmapFactory decodes the crop at the power of 2 below the sample size; the mapped area is then scaled
+        byte[] data = TestImages.encodeJpeg(TestImages.createImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), 2, 2, 0);
+        BufferedImage reference = TestImages.decode(data);
+        JpegCropper cropper = new JpegCropper(new JpegReader(ByteBuffer.wrap(data)));
+
+        int left = 37, top = 21, right = 290, bottom = 233;
+        int[] bounds = new int[4];
+        byte[] crop = cropper.crop(left, top, right, bottom, bounds);
+        for(int sampleSize = 1; sampleSize < JpegReader.DC_ONLY_SAMPLE_SIZE; sampleSize++){
+            int decodeSampleSize = RegionMath.getPowerOfTwoSampleSize(sampleSize);
+            BufferedImage decoded = TestImages.decodeSubsampled(crop, decodeSampleSize);
+            assertEquals((bounds[2] - bounds[0] + decodeSampleSize - 1) / decodeSampleSize, decoded.getWidth());
+
+            int[] src = new int[4];
+            assertTrue(RegionMath.mapOnDecodedCrop(left, top, right, bottom, bounds, decodeSampleSize, decoded.getWidth(), decoded.getHeight(), src));
+            //the mapped area covers the whole region, whatever the sample size
+            assertEquals((left - bounds[0]) / decodeSampleSize, src[0]);
+            assertEquals((right - bounds[0] + decodeSampleSize - 1) / decodeSampleSize, src[2]);
+            assertEquals((bottom - bounds[1] + decodeSampleSize - 1) / decodeSampleSize, src[3]);
+
+            int outWidth = RegionMath.getSampledSize(right - left, sampleSize);
+            int outHeight = RegionMath.getSampledSize(bottom - top, sampleSize);
+            BufferedImage region = TestImages.scale(decoded, src, outWidth, outHeight);
+            long error = 0;
+            for(int y = 0; y < outHeight; y++){
+                for(int x = 0; x < outWidth; x++){
+                    int expected = reference.getRGB(left + x * sampleSize, top + y * sampleSize);
+                    int actual = region.getRGB(x, y);
+                    for(int shift = 0; shift < 24; shift += 8){
+                        error += Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+                    }
+                }
+            }
+            double meanError = (double) error / (outWidth * outHeight * 3);
+            assertTrue("sample size " + sampleSize + ": mean error " + meanError, meanError < 8);
+        }
+
+        //a decode at another sample size than the expected one is rejected
+        BufferedImage decoded = TestImages.decodeSubsampled(crop, 3);
+        assertFalse(RegionMath.mapOnDecodedCrop(left, top, right, bottom, bounds, 2, decoded.getWidth(), decoded.getHeight(), new int[4]));
+    }
+
+    private static void assertLosslessCrops(int type, int hSampling, int vSampling, int restartInterval) throws IOException {
+        byte[] data = TestImages.encodeJpeg(TestImages.createImage(WIDTH, HEIGHT, type), hSampling, vSampling, restartInterval);
+        BufferedImage reference = TestImages.decode(data);
+        JpegReader reader = new JpegReader(ByteBuffer.wrap(data));
+        JpegCropper cropper = new JpegCropper(reader);
+
+        Random random = new Random(3);
+        int[] bounds = new int[4];
+        for(int i = 0; i < 20; i++){
+            int left = random.nextInt(WIDTH - 1);
+            int top = random.nextInt(HEIGHT - 1);
+            int right = left + 1 + random.nextInt(Math.min(200, WIDTH - left));
+            int bottom = top + 1 + random.nextInt(Math.min(200, HEIGHT - top));
+            byte[] crop = cropper.crop(left, top, right, bottom, bounds);
+            assertTrue(crop.length < data.length);
+
+            //the bounds are aligned to the MCUs and hold the region
+            assertTrue(bounds[0] <= left && bounds[1] <= top && bounds[2] >= right && bounds[3] >= bottom);
+            assertEquals(0, bounds[0] % reader.mcuWidth);
+            assertEquals(0, bounds[1] % reader.mcuHeight);
+
+            BufferedImage image = TestImages.decode(crop);
+            assertNotNull("undecodable crop", image);
+            assertEquals(bounds[2] - bounds[0], image.getWidth());
+            assertEquals(bounds[3] - bounds[1], image.getHeight());
+            for(int y = top; y < bottom; y++){
+                for(int x = left; x < right; x++){
+                    int expected = JpegReaderTest.getReferencePixel(reference, x, y);
+                    int actual = JpegReaderTest.getReferencePixel(image, x - bounds[0], y - bounds[1]);
+                    JpegReaderTest.assertColorEquals("pixel " + x + "," + y, expected, actual, 0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.bonnyfone.brdcompat;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the regions decoded by JpegReader with the whole image decoded by ImageIO
+ */
+public class JpegReaderTest {
+
+    private static final int WIDTH = 203;
+    private static final int HEIGHT = 141;
+
+    @Test
+    public void decodesSampling444() throws IOException {
+        assertMatchesReference(BufferedImage.TYPE_INT_RGB, 1, 1, 0, 2);
+    }
+
+    @Test
+    public void decodesSampling422() throws IOException {
+        //ImageIO upsamples the chroma with a triangle filter, JpegReader replicates the samples
+        assertMatchesReference(BufferedImage.TYPE_INT_RGB, 2, 1, 0, 8);
+    }
+
+    @Test
+    public void decodesSampling420() throws IOException {
+        assertMatchesReference(BufferedImage.TYPE_INT_RGB, 2, 2, 0, 10);
+    }
+
+    @Test
+    public void decodesGrayscale() throws IOException {
+        assertMatchesReference(BufferedImage.TYPE_BYTE_GRAY, 1, 1, 0, 1);
+    }
+
+    @Test
+    public void decodesRestartIntervals() throws IOException {
+        assertMatchesReference(BufferedImage.TYPE_INT_RGB, 2, 2, 3, 10);
+        assertMatchesReference(BufferedImage.TYPE_INT_RGB, 1, 1, 1, 2);
+    }
+
+    @Test
+    public void restartIntervalsDoNotChangeThePixels() throws IOException {
+        BufferedImage image = TestImages.createImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB);
+        JpegReader plain = new JpegReader(ByteBuffer.wrap(TestImages.encodeJpeg(image, 2, 2, 0)));
+        JpegReader restarts = new JpegReader(ByteBuffer.wrap(TestImages.encodeJpeg(image, 2, 2, 5)));
+        assertEquals(0, plain.restartInterval);
+        assertEquals(5, restarts.restartInterval);
+
+        //the second and third regions start after the checkpoints of the first one
+        int[][] regions = {{0, 100, WIDTH, HEIGHT}, {40, 17, 121, 60}, {150, 120, WIDTH, HEIGHT}};
+        for(int[] region : regions){
+            for(int sampleSize = 1; sampleSize <= 8; sampleSize++){
+                int[][] expected = decode(plain, region, sampleSize);
+                int[][] actual = decode(restarts, region, sampleSize);
+                for(int y = 0; y < expected.length; y++){
+                    assertArrayEquals("row " + y + " at sample size " + sampleSize, expected[y], actual[y]);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void decodesDcOnly() throws IOException {
+        //the DC of a block is the average of its pixels: regions aligned to the blocks (the MCUs when the chroma
+        //is subsampled) match the averaged reference
+        assertDcMatchesReference(BufferedImage.TYPE_INT_RGB, 1, 1, 8);
+        assertDcMatchesReference(BufferedImage.TYPE_BYTE_GRAY, 1, 1, 8);
+        assertDcMatchesReference(BufferedImage.TYPE_INT_RGB, 2, 1, 16);
+        assertDcMatchesReference(BufferedImage.TYPE_INT_RGB, 2, 2, 16);
+    }
+
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        byte[] data = TestImages.encodeJpeg(TestImages.createImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), 2, 2, 4);
+        Random random = new Random(7);
+        for(int i = 0; i < 300; i++){
+            assertOnlyIOException(TestImages.truncate(data, random.nextInt(data.length)));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptedData() throws IOException {
+        byte[] data = TestImages.encodeJpeg(TestImages.createImage(WIDTH, HEIGHT, BufferedImage.TYPE_INT_RGB), 2, 2, 0);
+        Random random = new Random(11);
+        for(int i = 0; i < 500; i++){
+            //headers first, then anywhere
+            int to = i % 2 == 0 ? Math.min(700, data.length) : data.length;
+            assertOnlyIOException(TestImages.corrupt(data, random, 2, to, 1 + random.nextInt(8)));
+        }
+    }
+
+    private static void assertMatchesReference(int type, int hSampling, int vSampling, int restartInterval, int tolerance) throws IOException {
+        byte[] data = TestImages.encodeJpeg(TestImages.createImage(WIDTH, HEIGHT, type), hSampling, vSampling, restartInterval);
+        BufferedImage reference = TestImages.decode(data);
+        JpegReader reader = new JpegReader(ByteBuffer.wrap(data));
+        assertEquals(WIDTH, reader.width);
+        assertEquals(HEIGHT, reader.height);
+        assertEquals(restartInterval, reader.restartInterval);
+
+        int[][] regions = {{0, 0, WIDTH, HEIGHT}, {13, 7, 190, 133}, {101, 64, 102, 65}, {150, 100, WIDTH, HEIGHT}};
+        for(int[] region : regions){
+            for(int sampleSize = 1; sampleSize < JpegReader.DC_ONLY_SAMPLE_SIZE; sampleSize++){
+                int[][] rows = decode(reader, region, sampleSize);
+                for(int y = 0; y < rows.length; y++){
+                    for(int x = 0; x < rows[y].length; x++){
+                        int expected = getReferencePixel(reference, region[0] + x * sampleSize, region[1] + y * sampleSize);
+                        assertColorEquals("pixel " + x + "," + y + " at sample size " + sampleSize, expected, rows[y][x], tolerance);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertDcMatchesReference(int type, int hSampling, int vSampling, int sampleSize) throws IOException {
+        byte[] data = TestImages.encodeJpeg(TestImages.createImage(WIDTH, HEIGHT, type), hSampling, vSampling, 0);
+        BufferedImage reference = TestImages.decode(data);
+        JpegReader reader = new JpegReader(ByteBuffer.wrap(data));
+
+        int[] region = {16, 16, 176, 128};
+        int[][] rows = decode(reader, region, sampleSize);
+        for(int y = 0; y < rows.length; y++){
+            for(int x = 0; x < rows[y].length; x++){
+                int expected = getAveragePixel(reference, region[0] + x * sampleSize, region[1] + y * sampleSize, sampleSize);
+                assertColorEquals("pixel " + x + "," + y + " at sample size " + sampleSize, expected, rows[y][x], 3);
+            }
+        }
+    }
+
+    private static int[][] decode(JpegReader reader, int[] region, int sampleSize) throws IOException {
+        int width = RegionMath.getSampledSize(region[2] - region[0], sampleSize);
+        int height = RegionMath.getSampledSize(region[3] - region[1], sampleSize);
+        TestImages.RegionSink sink = new TestImages.RegionSink(width, height);
+        reader.decodeRegion(region[0], region[1], region[2], region[3], sampleSize, sink);
+        assertEquals(height, sink.rowCount);
+        return sink.rows;
+    }
+
+    private static void assertOnlyIOException(byte[] data){
+        try {
+            //the corrupted header may declare a huge image: do not keep the rows
+            JpegReader reader = new JpegReader(ByteBuffer.wrap(data));
+            for(int sampleSize : new int[]{1, 2, 8}){
+                reader.decodeRegion(reader.width / 4, reader.height / 4, reader.width, reader.height, sampleSize, TestImages.NO_SINK);
+            }
+        } catch (IOException e) {
+            //expected
+        } catch (RuntimeException e) {
+            throw new AssertionError("Unexpected " + e);
+        }
+    }
+
+    /**
+     * Returns the reference color; gray images are read from the raster, getRGB() would apply a gamma conversion
+     */
+    static int getReferencePixel(BufferedImage reference, int x, int y){
+        if(reference.getType() == BufferedImage.TYPE_BYTE_GRAY){
+            int grey = reference.getRaster().getSample(x, y, 0);
+            return 0xFF000000 | grey << 16 | grey << 8 | grey;
+        }
+        return reference.getRGB(x, y);
+    }
+
+    private static int getAveragePixel(BufferedImage reference, int left, int top, int size){
+        int r = 0, g = 0, b = 0;
+        for(int y = top; y < top + size; y++){
+            for(int x = left; x < left + size; x++){
+                int color = getReferencePixel(reference, x, y);
+                r += (color >> 16) & 0xFF;
+                g += (color >> 8) & 0xFF;
+                b += color & 0xFF;
+            }
+        }
+        int count = size * size;
+        return 0xFF000000 | (r / count) << 16 | (g / count) << 8 | (b / count);
+    }
+
+    static void assertColorEquals(String message, int expected, int actual, int tolerance){
+        for(int shift = 0; shift < 32; shift += 8){
+            int difference = Math.abs(((expected >> shift) & 0xFF) - ((actual >> shift) & 0xFF));
+            assertTrue(message + ": expected " + Integer.toHexString(expected) + " but was " + Integer.toHexString(actual), difference <= tolerance);
+        }
+    }
+}
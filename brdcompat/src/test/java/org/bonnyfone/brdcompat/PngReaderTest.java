@@ -0,0 +1,235 @@
+package org.bonnyfone.brdcompat;
+
+import org.junit.Test;
+
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.IndexColorModel;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares the regions decoded by PngReader with the pixels written by ImageIO, for every color type and bit depth
+ */
+public class PngReaderTest {
+
+    private static final int WIDTH = 61;
+    private static final int HEIGHT = 43;
+
+    @Test
+    public void decodesGrey() throws IOException {
+        for(int bitDepth : new int[]{1, 2, 4}){
+            assertMatchesImage(createIndexed(createGreyRamp(bitDepth), bitDepth), PngReader.COLOR_GREY, bitDepth);
+        }
+        assertMatchesImage(createComponent(ColorSpace.CS_GRAY, false, DataBuffer.TYPE_BYTE), PngReader.COLOR_GREY, 8);
+        assertMatchesImage(createComponent(ColorSpace.CS_GRAY, false, DataBuffer.TYPE_USHORT), PngReader.COLOR_GREY, 16);
+    }
+
+    @Test
+    public void decodesGreyAlpha() throws IOException {
+        assertMatchesImage(createComponent(ColorSpace.CS_GRAY, true, DataBuffer.TYPE_BYTE), PngReader.COLOR_GREY_ALPHA, 8);
+        assertMatchesImage(createComponent(ColorSpace.CS_GRAY, true, DataBuffer.TYPE_USHORT), PngReader.COLOR_GREY_ALPHA, 16);
+    }
+
+    @Test
+    public void decodesRgb() throws IOException {
+        assertMatchesImage(createComponent(ColorSpace.CS_sRGB, false, DataBuffer.TYPE_BYTE), PngReader.COLOR_RGB, 8);
+        assertMatchesImage(createComponent(ColorSpace.CS_sRGB, false, DataBuffer.TYPE_USHORT), PngReader.COLOR_RGB, 16);
+    }
+
+    @Test
+    public void decodesRgba() throws IOException {
+        assertMatchesImage(createComponent(ColorSpace.CS_sRGB, true, DataBuffer.TYPE_BYTE), PngReader.COLOR_RGBA, 8);
+        assertMatchesImage(createComponent(ColorSpace.CS_sRGB, true, DataBuffer.TYPE_USHORT), PngReader.COLOR_RGBA, 16);
+    }
+
+    @Test
+    public void decodesPalette() throws IOException {
+        for(int bitDepth : new int[]{1, 2, 4, 8}){
+            assertMatchesImage(createIndexed(createPalette(bitDepth), bitDepth), PngReader.COLOR_PALETTE, bitDepth);
+        }
+    }
+
+    @Test
+    public void rejectsInterlacedImages() throws IOException {
+        BufferedImage image = createComponent(ColorSpace.CS_sRGB, false, DataBuffer.TYPE_BYTE);
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("png").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, null), param);
+        stream.close();
+        writer.dispose();
+
+        PngReader reader = new PngReader(ByteBuffer.wrap(out.toByteArray()));
+        assertTrue(reader.interlaced);
+        try {
+            reader.decodeRegion(0, 0, WIDTH, HEIGHT, 1, new TestImages.RegionSink(WIDTH, HEIGHT));
+            fail("Interlaced images are not supported");
+        } catch (IOException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedData() throws IOException {
+        byte[] data = TestImages.encodePng(createComponent(ColorSpace.CS_sRGB, true, DataBuffer.TYPE_BYTE));
+        Random random = new Random(7);
+        for(int i = 0; i < 300; i++){
+            assertOnlyIOException(TestImages.truncate(data, random.nextInt(data.length)));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptedData() throws IOException {
+        byte[] data = TestImages.encodePng(createIndexed(createPalette(4), 4));
+        Random random = new Random(11);
+        for(int i = 0; i < 500; i++){
+            assertOnlyIOException(TestImages.corrupt(data, random, 8, data.length, 1 + random.nextInt(8)));
+        }
+    }
+
+    private static void assertMatchesImage(BufferedImage image, int colorType, int bitDepth) throws IOException {
+        PngReader reader = new PngReader(ByteBuffer.wrap(TestImages.encodePng(image)));
+        assertEquals(WIDTH, reader.width);
+        assertEquals(HEIGHT, reader.height);
+        assertEquals(colorType, reader.colorType);
+        assertEquals(bitDepth, reader.bitDepth);
+
+        int[][] regions = {{0, 0, WIDTH, HEIGHT}, {5, 3, 58, 40}, {30, 20, 31, 21}, {47, 33, WIDTH, HEIGHT}};
+        for(int[] region : regions){
+            for(int sampleSize = 1; sampleSize <= 8; sampleSize++){
+                int width = RegionMath.getSampledSize(region[2] - region[0], sampleSize);
+                int height = RegionMath.getSampledSize(region[3] - region[1], sampleSize);
+                TestImages.RegionSink sink = new TestImages.RegionSink(width, height);
+                reader.decodeRegion(region[0], region[1], region[2], region[3], sampleSize, sink);
+                assertEquals(height, sink.rowCount);
+                for(int y = 0; y < height; y++){
+                    for(int x = 0; x < width; x++){
+                        int expected = getExpectedPixel(image, region[0] + x * sampleSize, region[1] + y * sampleSize);
+                        if(expected != sink.rows[y][x])
+                            fail("Color type " + colorType + ", depth " + bitDepth + ", sample size " + sampleSize + ", pixel " + x + "," + y
+                                    + ": expected " + Integer.toHexString(expected) + " but was " + Integer.toHexString(sink.rows[y][x]));
+                    }
+                }
+            }
+        }
+    }
+
+    private static void assertOnlyIOException(byte[] data){
+        try {
+            //the corrupted header may declare a huge image: do not keep the rows
+            PngReader reader = new PngReader(ByteBuffer.wrap(data));
+            reader.decodeRegion(0, 0, reader.width, reader.height, 1, TestImages.NO_SINK);
+            reader.decodeRegion(reader.width / 3, reader.height / 3, reader.width, reader.height, 2, TestImages.NO_SINK);
+        } catch (IOException e) {
+            //expected
+        } catch (RuntimeException e) {
+            throw new AssertionError("Unexpected " + e);
+        }
+    }
+
+    /**
+     * Returns the non-premultiplied ARGB color from the samples (16-bit samples are truncated to 8 bits)
+     */
+    private static int getExpectedPixel(BufferedImage image, int x, int y){
+        ColorModel model = image.getColorModel();
+        Raster raster = image.getRaster();
+        if(model instanceof IndexColorModel)
+            return model.getRGB(raster.getSample(x, y, 0));
+
+        int shift = model.getComponentSize(0) - 8;
+        int bands = raster.getNumBands();
+        int[] samples = new int[bands];
+        for(int b = 0; b < bands; b++){
+            samples[b] = raster.getSample(x, y, b) >> shift;
+        }
+        switch (bands){
+            case 1: return 0xFF000000 | samples[0] << 16 | samples[0] << 8 | samples[0];
+            case 2: return samples[1] << 24 | samples[0] << 16 | samples[0] << 8 | samples[0];
+            case 3: return 0xFF000000 | samples[0] << 16 | samples[1] << 8 | samples[2];
+            default: return samples[3] << 24 | samples[0] << 16 | samples[1] << 8 | samples[2];
+        }
+    }
+
+    /**
+     * Random samples in every band
+     */
+    private static BufferedImage createComponent(int colorSpace, boolean alpha, int dataType){
+        ComponentColorModel model = new ComponentColorModel(ColorSpace.getInstance(colorSpace), alpha, false,
+                alpha ? Transparency.TRANSLUCENT : Transparency.OPAQUE, dataType);
+        WritableRaster raster = model.createCompatibleWritableRaster(WIDTH, HEIGHT);
+        fill(raster, dataType == DataBuffer.TYPE_USHORT ? 0xFFFF : 0xFF);
+        return new BufferedImage(model, raster, false, null);
+    }
+
+    /**
+     * Random indices in a packed (bit depth below 8) or byte raster
+     */
+    private static BufferedImage createIndexed(IndexColorModel model, int bitDepth){
+        BufferedImage image = bitDepth < 8
+                ? new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY, model)
+                : new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_INDEXED, model);
+        fill(image.getRaster(), (1 << bitDepth) - 1);
+        return image;
+    }
+
+    private static void fill(WritableRaster raster, int maxSample){
+        Random random = new Random(raster.getNumBands() * 31L + maxSample);
+        for(int y = 0; y < raster.getHeight(); y++){
+            for(int x = 0; x < raster.getWidth(); x++){
+                for(int b = 0; b < raster.getNumBands(); b++){
+                    raster.setSample(x, y, b, random.nextInt(maxSample + 1));
+                }
+            }
+        }
+    }
+
+    /**
+     * Grey levels evenly spread on 0-255: written as a grey PNG
+     */
+    private static IndexColorModel createGreyRamp(int bitDepth){
+        int size = 1 << bitDepth;
+        byte[] levels = new byte[size];
+        for(int i = 0; i < size; i++){
+            levels[i] = (byte) (i * 255 / (size - 1));
+        }
+        return new IndexColorModel(bitDepth, size, levels, levels, levels);
+    }
+
+    /**
+     * Random colors, some of them translucent: written as PLTE and tRNS chunks
+     */
+    private static IndexColorModel createPalette(int bitDepth){
+        int size = 1 << bitDepth;
+        Random random = new Random(size);
+        byte[] r = new byte[size], g = new byte[size], b = new byte[size], a = new byte[size];
+        for(int i = 0; i < size; i++){
+            r[i] = (byte) random.nextInt(256);
+            g[i] = (byte) random.nextInt(256);
+            b[i] = (byte) random.nextInt(256);
+            a[i] = (byte) (i % 3 == 0 ? random.nextInt(256) : 255);
+        }
+        return new IndexColorModel(bitDepth, size, r, g, b, a);
+    }
+}
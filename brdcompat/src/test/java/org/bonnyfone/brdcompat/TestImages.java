@@ -0,0 +1,182 @@
+package org.bonnyfone.brdcompat;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Synthetic images used by the tests of the pure-Java decoders, encoded and decoded by ImageIO (deterministic content)
+ */
+final class TestImages {
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    /**
+     * Sink which drops the rows
+     */
+    static final RowSink NO_SINK = new RowSink() {
+        @Override
+        public void onRow(int y, int[] pixels, int width) {
+        }
+    };
+
+    private TestImages(){}
+
+    /**
+     * Smooth gradients with some noise, so that the image compresses like a photo
+     * @param type the BufferedImage type
+     */
+    static BufferedImage createImage(int width, int height, int type){
+        BufferedImage image = new BufferedImage(width, height, type);
+        Random random = new Random(width * 31L + height);
+        int[] row = new int[width];
+        for(int y = 0; y < height; y++){
+            for(int x = 0; x < width; x++){
+                int r = RegionMath.clamp((int) (128 + 100 * Math.sin(x / 17.0) * Math.cos(y / 11.0)) + random.nextInt(16), 0, 255);
+                int g = (x * 255 / width) & 0xFF;
+                int b = (y * 255 / height) & 0xFF;
+                int a = 64 + (x + y) * 191 / (width + height);
+                row[x] = a << 24 | r << 16 | g << 8 | b;
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+
+    /**
+     * Encodes a baseline JPEG
+     * @param hSampling horizontal sampling factor of the luma (2 for 4:2:0 and 4:2:2, 1 for 4:4:4)
+     * @param vSampling vertical sampling factor of the luma (2 for 4:2:0, 1 for 4:2:2 and 4:4:4)
+     * @param restartInterval MCUs between restart markers, 0 for none
+     */
+    static byte[] encodeJpeg(BufferedImage image, int hSampling, int vSampling, int restartInterval) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(0.9f);
+
+        IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+        IIOMetadataNode root = (IIOMetadataNode) metadata.getAsTree(JPEG_METADATA_FORMAT);
+        IIOMetadataNode markers = (IIOMetadataNode) root.getElementsByTagName("markerSequence").item(0);
+        NodeList components = markers.getElementsByTagName("componentSpec");
+        if(components.getLength() > 1){
+            IIOMetadataNode luma = (IIOMetadataNode) components.item(0);
+            luma.setAttribute("HsamplingFactor", String.valueOf(hSampling));
+            luma.setAttribute("VsamplingFactor", String.valueOf(vSampling));
+        }
+        if(restartInterval > 0){
+            IIOMetadataNode dri = new IIOMetadataNode("dri");
+            dri.setAttribute("interval", String.valueOf(restartInterval));
+            Node sos = markers.getElementsByTagName("sos").item(0);
+            markers.insertBefore(dri, sos);
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        MemoryCacheImageOutputStream stream = new MemoryCacheImageOutputStream(out);
+        writer.setOutput(stream);
+        writer.write(null, new IIOImage(image, null, metadata), param);
+        stream.close();
+        writer.dispose();
+        return out.toByteArray();
+    }
+
+    static byte[] encodePng(BufferedImage image) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if(!ImageIO.write(image, "png", out))
+            throw new IOException("No PNG writer");
+        return out.toByteArray();
+    }
+
+    static BufferedImage decode(byte[] data) throws IOException {
+        return ImageIO.read(new ByteArrayInputStream(data));
+    }
+
+    /**
+     * Decodes keeping one pixel out of sampleSize in both directions: the result is ceil(size / sampleSize) large
+     */
+    static BufferedImage decodeSubsampled(byte[] data, int sampleSize) throws IOException {
+        ImageInputStream stream = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        ImageReader reader = ImageIO.getImageReaders(stream).next();
+        try {
+            reader.setInput(stream);
+            ImageReadParam param = reader.getDefaultReadParam();
+            param.setSourceSubsampling(sampleSize, sampleSize, 0, 0);
+            return reader.read(0, param);
+        } finally {
+            reader.dispose();
+            stream.close();
+        }
+    }
+
+    /**
+     * Scales the area (left, top, right, bottom) of the image to width x height, as Canvas.drawBitmap() does
+     */
+    static BufferedImage scale(BufferedImage image, int[] area, int width, int height){
+        BufferedImage scaled = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(image, 0, 0, width, height, area[0], area[1], area[2], area[3], null);
+        graphics.dispose();
+        return scaled;
+    }
+
+    /**
+     * Returns a copy of the first length bytes
+     */
+    static byte[] truncate(byte[] data, int length){
+        byte[] truncated = new byte[length];
+        System.arraycopy(data, 0, truncated, 0, length);
+        return truncated;
+    }
+
+    /**
+     * Returns a copy with count random bytes overwritten in [from, to)
+     */
+    static byte[] corrupt(byte[] data, Random random, int from, int to, int count){
+        byte[] corrupted = data.clone();
+        for(int i = 0; i < count; i++){
+            corrupted[from + random.nextInt(to - from)] = (byte) random.nextInt(256);
+        }
+        return corrupted;
+    }
+
+    /**
+     * Collects the decoded rows
+     */
+    static final class RegionSink implements RowSink {
+        final int[][] rows;
+        int rowCount;
+
+        RegionSink(int width, int height){
+            rows = new int[height][width];
+        }
+
+        @Override
+        public void onRow(int y, int[] pixels, int width) {
+            if(width != rows[y].length)
+                throw new AssertionError("Row " + y + " has " + width + " pixels instead of " + rows[y].length);
+            System.arraycopy(pixels, 0, rows[y], 0, width);
+            rowCount++;
+        }
+    }
+}